@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2014 Trillian Mobile AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.robovm.devicebridge.benchmarks;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+import org.junit.runner.Description;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.robovm.devicebridge.internal.adapters.DescriptionTypeAdapter;
+
+import java.io.CharArrayWriter;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sending a run's Description tree, as done on TEST_RUN_STARTED, and
+ * referring to a single test of it afterwards
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DescriptionBenchmark {
+
+    @Param({ "10", "1000", "100000" })
+    public int size;
+
+    private Description suite;
+    private Description test;
+    private String json;
+    private DescriptionTypeAdapter referenceWriter;
+    private final CharArrayWriter buffer = new CharArrayWriter();
+
+    @Setup
+    public void setUp() throws IOException {
+        suite = Fixtures.suite(size);
+        test = Fixtures.methods(suite).get(size / 2);
+        json = write(new DescriptionTypeAdapter(), suite);
+        referenceWriter = new DescriptionTypeAdapter();
+        write(referenceWriter, suite);
+    }
+
+    @Benchmark
+    public int writeTree() throws IOException {
+        /* a fresh registry defines every node, as at the start of a run */
+        return write(new DescriptionTypeAdapter(), suite).length();
+    }
+
+    @Benchmark
+    public Description readTree() throws IOException {
+        return new DescriptionTypeAdapter().read(new JsonReader(new StringReader(json)));
+    }
+
+    @Benchmark
+    public int writeReference() throws IOException {
+        return write(referenceWriter, test).length();
+    }
+
+    private String write(DescriptionTypeAdapter adapter, Description description) throws IOException {
+        buffer.reset();
+        adapter.write(new JsonWriter(buffer), description);
+        return buffer.toString();
+    }
+}
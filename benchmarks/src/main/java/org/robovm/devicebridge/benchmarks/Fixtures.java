@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2014 Trillian Mobile AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.robovm.devicebridge.benchmarks;
+
+import org.junit.runner.Description;
+import org.junit.runner.Result;
+import org.junit.runner.notification.Failure;
+import org.robovm.devicebridge.internal.adapters.ResultTypeAdapter;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Synthetic suites and exceptions shaped like those of real test runs
+ */
+public class Fixtures {
+
+    static final int METHODS_PER_CLASS = 10;
+
+    /**
+     * @param size
+     *            number of test methods
+     * @return suite of classes holding {@link #METHODS_PER_CLASS} methods each
+     */
+    public static Description suite(int size) {
+        Description suite = Description.createSuiteDescription("org.robovm.bench.AllTests");
+        Description testClass = null;
+        for (int i = 0; i < size; i++) {
+            if (i % METHODS_PER_CLASS == 0) {
+                testClass = Description.createSuiteDescription("org.robovm.bench.pkg" + (i / 1000) + ".Test"
+                        + (i / METHODS_PER_CLASS));
+                suite.addChild(testClass);
+            }
+            testClass.addChild(Description.createTestDescription(testClass.getClassName(), "testMethod" + i));
+        }
+        return suite;
+    }
+
+    /**
+     * @return the test methods of a suite, in order
+     */
+    public static List<Description> methods(Description suite) {
+        List<Description> methods = new ArrayList<Description>();
+        for (Description testClass : suite.getChildren()) {
+            methods.addAll(testClass.getChildren());
+        }
+        return methods;
+    }
+
+    /**
+     * @param causes
+     *            length of the cause chain
+     * @param frames
+     *            stack depth at which each exception is thrown
+     * @return exception caused by a chain of others, each with a deep stack
+     */
+    public static Throwable deepException(int causes, int frames) {
+        Throwable cause = null;
+        for (int i = 0; i < causes; i++) {
+            cause = throwAt(frames, "cause " + i, cause);
+        }
+        return cause;
+    }
+
+    /**
+     * @param suppressed
+     *            number of suppressed exceptions
+     * @param frames
+     *            stack depth at which each exception is thrown
+     * @return exception holding many suppressed ones, each with its own cause
+     */
+    public static Throwable wideException(int suppressed, int frames) {
+        Throwable throwable = throwAt(frames, "closing resources", null);
+        for (int i = 0; i < suppressed; i++) {
+            throwable.addSuppressed(throwAt(frames + i % 7, "resource " + i, new IOException("io " + i)));
+        }
+        return throwable;
+    }
+
+    /**
+     * @param failures
+     *            number of failed tests
+     * @return result of a run in which the first methods of a suite failed
+     */
+    public static Result result(int failures) throws IOException {
+        List<Description> methods = methods(suite(failures));
+        Throwable cause = deepException(2, 30);
+        List<Failure> failureList = new ArrayList<Failure>();
+        for (Description method : methods) {
+            failureList.add(new Failure(method, new AssertionError("expected:<1> but was:<2>").initCause(cause)));
+        }
+        return ResultTypeAdapter.createResult(failures * 4, failures / 10, failures * 25L, failureList);
+    }
+
+    private static Throwable throwAt(int depth, String message, Throwable cause) {
+        if (depth > 0) {
+            return throwAt(depth - 1, message, cause);
+        }
+        return new IllegalStateException(message, cause);
+    }
+}
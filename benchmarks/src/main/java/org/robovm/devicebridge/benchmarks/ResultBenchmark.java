@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2014 Trillian Mobile AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.robovm.devicebridge.benchmarks;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+import org.junit.runner.Result;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.robovm.devicebridge.internal.adapters.DescriptionTypeAdapter;
+import org.robovm.devicebridge.internal.adapters.ResultTypeAdapter;
+import org.robovm.devicebridge.internal.adapters.StackTraceRegistry;
+import org.robovm.devicebridge.internal.adapters.ThrowableTypeAdapter;
+
+import java.io.CharArrayWriter;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding the Result sent on TEST_RUN_FINISHED, with its failures
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResultBenchmark {
+
+    @Param({ "10", "1000" })
+    public int failures;
+
+    private Result result;
+    private String json;
+    private final CharArrayWriter buffer = new CharArrayWriter();
+
+    @Setup
+    public void setUp() throws IOException {
+        result = Fixtures.result(failures);
+        json = write(newAdapter());
+    }
+
+    @Benchmark
+    public int write() throws IOException {
+        return write(newAdapter()).length();
+    }
+
+    @Benchmark
+    public Result read() throws IOException {
+        return newAdapter().read(new JsonReader(new StringReader(json)));
+    }
+
+    private String write(ResultTypeAdapter adapter) throws IOException {
+        buffer.reset();
+        adapter.write(new JsonWriter(buffer), result);
+        return buffer.toString();
+    }
+
+    private static ResultTypeAdapter newAdapter() {
+        return new ResultTypeAdapter(new DescriptionTypeAdapter.FailureTypeAdapter(new DescriptionTypeAdapter(),
+                new ThrowableTypeAdapter(new StackTraceRegistry())));
+    }
+}
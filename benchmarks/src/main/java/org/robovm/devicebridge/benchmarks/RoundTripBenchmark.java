@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2014 Trillian Mobile AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.robovm.devicebridge.benchmarks;
+
+import org.junit.runner.Description;
+import org.junit.runner.Result;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.robovm.devicebridge.ResultObject;
+import org.robovm.devicebridge.RoboVMDeviceBridge;
+import org.robovm.devicebridge.internal.listener.RoboTestListener;
+import rx.Observable;
+import rx.functions.Action1;
+import rx.observables.BlockingObservable;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A whole run sent from RoboTestListener to the bridge over loopback, timed
+ * until the bridge has handed TEST_RUN_FINISHED to its subscriber
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RoundTripBenchmark {
+
+    @Param({ "10", "1000", "10000" })
+    public int tests;
+
+    @Param({ "true", "false" })
+    public boolean binary;
+
+    private Description suite;
+    private List<Description> methods;
+    private Result result;
+
+    private final Semaphore runsFinished = new Semaphore(0);
+    private Thread server;
+    private RoboTestListener listener;
+
+    @Setup
+    public void setUp() throws Exception {
+        suite = Fixtures.suite(tests);
+        methods = Fixtures.methods(suite);
+        result = Fixtures.result(0);
+
+        int port = freePort();
+        RoboVMDeviceBridge bridge = new RoboVMDeviceBridge();
+        bridge.setTestHistory(null);
+        bridge.setBinaryProtocolEnabled(binary);
+        final Observable<ResultObject> results = bridge.startServer(port);
+        server = new Thread("bridge") {
+            @Override
+            public void run() {
+                BlockingObservable.from(results).forEach(new Action1<ResultObject>() {
+                    @Override
+                    public void call(ResultObject resultObject) {
+                        if (resultObject.getResultType() == ResultObject.TEST_RUN_FINISHED) {
+                            runsFinished.release();
+                        }
+                    }
+                });
+            }
+        };
+        server.start();
+        listener = connect(port);
+    }
+
+    @Benchmark
+    public void run() throws Exception {
+        listener.testRunStarted(suite);
+        for (Description method : methods) {
+            listener.testStarted(method);
+            listener.testFinished(method);
+        }
+        listener.testRunFinished(result);
+        runsFinished.acquire();
+    }
+
+    @TearDown
+    public void tearDown() throws InterruptedException {
+        listener.close();
+        server.join();
+    }
+
+    private static RoboTestListener connect(int port) throws Exception {
+        /* the server starts listening on its own thread */
+        for (int attempt = 0;; attempt++) {
+            try {
+                return new RoboTestListener(null, "127.0.0.1", String.valueOf(port));
+            } catch (IOException e) {
+                if (attempt == 50) {
+                    throw e;
+                }
+                Thread.sleep(100);
+            }
+        }
+    }
+
+    private static int freePort() throws IOException {
+        ServerSocket socket = new ServerSocket(0);
+        int port = socket.getLocalPort();
+        socket.close();
+        return port;
+    }
+}
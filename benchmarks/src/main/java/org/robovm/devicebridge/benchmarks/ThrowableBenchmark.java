@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2014 Trillian Mobile AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.robovm.devicebridge.benchmarks;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+import org.junit.runner.Description;
+import org.junit.runner.notification.Failure;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.robovm.devicebridge.internal.adapters.DescriptionTypeAdapter;
+import org.robovm.devicebridge.internal.adapters.StackTraceRegistry;
+import org.robovm.devicebridge.internal.adapters.ThrowableTypeAdapter;
+
+import java.io.CharArrayWriter;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding test failures: deep cause chains with long stacks, and exceptions
+ * holding many suppressed ones
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ThrowableBenchmark {
+
+    @Param({ "deep", "wide" })
+    public String shape;
+
+    private Throwable throwable;
+    private Failure failure;
+    private String throwableJson;
+    private String failureJson;
+    private final CharArrayWriter buffer = new CharArrayWriter();
+
+    @Setup
+    public void setUp() throws IOException {
+        throwable = shape.equals("deep") ? Fixtures.deepException(40, 200) : Fixtures.wideException(64, 40);
+        failure = new Failure(Description.createTestDescription("org.robovm.bench.FailingTest", "testFails"),
+                throwable);
+        throwableJson = writeThrowable(newThrowableAdapter());
+        failureJson = writeFailure(newFailureAdapter());
+    }
+
+    @Benchmark
+    public int writeThrowable() throws IOException {
+        /* fresh registries, as for the first failure with these stacks */
+        return writeThrowable(newThrowableAdapter()).length();
+    }
+
+    @Benchmark
+    public Throwable readThrowable() throws IOException {
+        return newThrowableAdapter().read(new JsonReader(new StringReader(throwableJson)));
+    }
+
+    @Benchmark
+    public int writeFailure() throws IOException {
+        return writeFailure(newFailureAdapter()).length();
+    }
+
+    @Benchmark
+    public Failure readFailure() throws IOException {
+        return newFailureAdapter().read(new JsonReader(new StringReader(failureJson)));
+    }
+
+    private String writeThrowable(ThrowableTypeAdapter adapter) throws IOException {
+        buffer.reset();
+        adapter.write(new JsonWriter(buffer), throwable);
+        return buffer.toString();
+    }
+
+    private String writeFailure(DescriptionTypeAdapter.FailureTypeAdapter adapter) throws IOException {
+        buffer.reset();
+        adapter.write(new JsonWriter(buffer), failure);
+        return buffer.toString();
+    }
+
+    private static ThrowableTypeAdapter newThrowableAdapter() {
+        return new ThrowableTypeAdapter(new StackTraceRegistry());
+    }
+
+    private static DescriptionTypeAdapter.FailureTypeAdapter newFailureAdapter() {
+        return new DescriptionTypeAdapter.FailureTypeAdapter(new DescriptionTypeAdapter(), newThrowableAdapter());
+    }
+}
@@ -0,0 +1,487 @@
+/*
+ * Copyright (C) 2014 Trillian Mobile AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.robovm.devicebridge;
+
+import org.junit.runner.Description;
+import org.junit.runner.notification.Failure;
+import org.robovm.devicebridge.internal.Logger;
+import rx.Subscriber;
+
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Writes results as Surefire compatible JUnit XML, a TEST-&lt;class&gt;.xml
+ * file per test class, while they arrive. Test cases are streamed to disk as
+ * they finish; a class's file is completed once the run it belongs to
+ * finishes and no other run of the device still has it, and {@link #SUMMARY_FILE} is rewritten with the totals so far.
+ * Memory use depends on the tests running at once, not on the number of
+ * tests. Failed attempts of retried tests are written the way Surefire
+ * writes reruns: as flakyFailure elements of a test that passed in the end,
+ * or as rerunFailure elements after the first failure of one that didn't.
+ */
+public class JUnitXmlReporter extends Subscriber<ResultObject> {
+
+    public static final String SUMMARY_FILE = "junitbridge-summary.xml";
+
+    private static final String ENCODING = "UTF-8";
+
+    private final File directory;
+    private final XMLOutputFactory factory = XMLOutputFactory.newInstance();
+
+    /** Classes with test cases on disk whose file isn't complete yet, by device and class */
+    private final Map<String, Suite> open = new HashMap<String, Suite>();
+    /** Start times of tests running right now, by device and test */
+    private final Map<String, Long> running = new HashMap<String, Long>();
+    /** Failed attempts of tests being retried, by device and test */
+    private final Map<String, List<Failure>> attemptFailures = new HashMap<String, List<Failure>>();
+    /** Runs started and not yet finished, by device */
+    private final Map<String, List<Description>> runs = new HashMap<String, List<Description>>();
+    /** Report files written per class, to keep files of classes run more than once apart */
+    private final Map<String, Integer> written = new HashMap<String, Integer>();
+
+    private int tests;
+    private int failures;
+    private int errors;
+    private int skipped;
+    private int flakes;
+    private final long startedAt = System.nanoTime();
+
+    /**
+     * @param directory
+     *            where to write the reports, created if needed
+     */
+    public JUnitXmlReporter(File directory) {
+        this.directory = directory;
+    }
+
+    @Override
+    public void onNext(ResultObject result) {
+        try {
+            switch (result.getResultType()) {
+            case ResultObject.TEST_STARTED:
+                if (result.getDescription() != null) {
+                    running.put(key(result, result.getDescription()), time(result));
+                }
+                break;
+            case ResultObject.TEST_FINISHED:
+                testFinished(result, result.getDescription(), null);
+                break;
+            case ResultObject.TEST_FAILURE:
+                if (result.getFailure() != null) {
+                    testFinished(result, result.getFailure().getDescription(), result.getFailure());
+                }
+                break;
+            case ResultObject.TEST_ATTEMPT_FAILED:
+                if (result.getFailure() != null && result.getFailure().getDescription() != null) {
+                    String key = key(result, result.getFailure().getDescription());
+                    List<Failure> failures = attemptFailures.get(key);
+                    if (failures == null) {
+                        failures = new ArrayList<Failure>();
+                        attemptFailures.put(key, failures);
+                    }
+                    failures.add(result.getFailure());
+                }
+                break;
+            case ResultObject.TEST_IGNORED:
+                testIgnored(result);
+                break;
+            case ResultObject.TEST_RUN_STARTED:
+                if (result.getDescription() != null) {
+                    List<Description> started = runs.get(result.getDeviceId());
+                    if (started == null) {
+                        started = new ArrayList<Description>();
+                        runs.put(result.getDeviceId(), started);
+                    }
+                    started.add(result.getDescription());
+                }
+                break;
+            case ResultObject.TEST_RUN_FINISHED:
+                if (result.getDescription() != null) {
+                    runFinished(result.getDeviceId(), result.getDescription());
+                } else {
+                    /* runners that predate the run's description on its finish */
+                    runs.remove(result.getDeviceId());
+                    closeSuites(result.getDeviceId());
+                }
+                writeSummary();
+                break;
+            case ResultObject.RUNNER_CRASHED:
+                runs.remove(result.getDeviceId());
+                closeSuites(result.getDeviceId());
+                writeSummary();
+                break;
+            default:
+                break;
+            }
+        } catch (IOException e) {
+            Logger.warn("Could not write test report " + e.getMessage());
+        } catch (XMLStreamException e) {
+            Logger.warn("Could not write test report " + e.getMessage());
+        }
+    }
+
+    @Override
+    public void onCompleted() {
+        finish();
+    }
+
+    @Override
+    public void onError(Throwable e) {
+        finish();
+    }
+
+    private void finish() {
+        try {
+            closeSuites(null);
+            writeSummary();
+        } catch (IOException e) {
+            Logger.warn("Could not write test report " + e.getMessage());
+        } catch (XMLStreamException e) {
+            Logger.warn("Could not write test report " + e.getMessage());
+        }
+    }
+
+    private void testFinished(ResultObject result, Description description, Failure failure) throws IOException,
+            XMLStreamException {
+        if (description == null) {
+            return;
+        }
+        Long start = running.remove(key(result, description));
+        List<Failure> attempts = attemptFailures.remove(key(result, description));
+        if (start == null && failure == null) {
+            /* failed tests report no finish of their own */
+            return;
+        }
+        long nanos = start == null ? 0 : Math.max(0, time(result) - start);
+        Suite suite = suite(result, description);
+        XMLStreamWriter writer = suite.writer;
+        writer.writeCharacters("\n  ");
+        if (failure == null && attempts == null) {
+            writer.writeEmptyElement("testcase");
+            writeCaseAttributes(writer, description, nanos);
+        } else if (failure == null) {
+            writer.writeStartElement("testcase");
+            writeCaseAttributes(writer, description, nanos);
+            for (Failure attempt : attempts) {
+                writeFailure(writer, "flaky", attempt);
+            }
+            writer.writeCharacters("\n  ");
+            writer.writeEndElement();
+            flakes++;
+        } else {
+            /* like Surefire, the first failure leads and the reruns follow */
+            List<Failure> all = attempts != null ? attempts : new ArrayList<Failure>();
+            all.add(failure);
+            boolean assertion = all.get(0).getException() instanceof AssertionError;
+            writer.writeStartElement("testcase");
+            writeCaseAttributes(writer, description, nanos);
+            writeFailure(writer, null, all.get(0));
+            for (Failure rerun : all.subList(1, all.size())) {
+                writeFailure(writer, "rerun", rerun);
+            }
+            writer.writeCharacters("\n  ");
+            writer.writeEndElement();
+            if (assertion) {
+                suite.failures++;
+                failures++;
+            } else {
+                suite.errors++;
+                errors++;
+            }
+        }
+        suite.tests++;
+        suite.nanos += nanos;
+        tests++;
+    }
+
+    /**
+     * Write a failure or error element, or its prefixed variant such as
+     * flakyFailure
+     */
+    private static void writeFailure(XMLStreamWriter writer, String prefix, Failure failure)
+            throws XMLStreamException {
+        boolean assertion = failure.getException() instanceof AssertionError;
+        writer.writeCharacters("\n    ");
+        if (prefix == null) {
+            writer.writeStartElement(assertion ? "failure" : "error");
+        } else {
+            writer.writeStartElement(prefix + (assertion ? "Failure" : "Error"));
+        }
+        if (failure.getMessage() != null) {
+            writer.writeAttribute("message", failure.getMessage());
+        }
+        writer.writeAttribute("type", exceptionClass(failure.getException()));
+        writer.writeCharacters(stackTrace(failure.getException()));
+        writer.writeEndElement();
+    }
+
+    private void testIgnored(ResultObject result) throws IOException, XMLStreamException {
+        Description description = result.getDescription();
+        if (description == null) {
+            return;
+        }
+        Suite suite = suite(result, description);
+        XMLStreamWriter writer = suite.writer;
+        writer.writeCharacters("\n  ");
+        writer.writeStartElement("testcase");
+        writeCaseAttributes(writer, description, 0);
+        writer.writeEmptyElement("skipped");
+        writer.writeEndElement();
+        suite.tests++;
+        suite.skipped++;
+        tests++;
+        skipped++;
+    }
+
+    private void writeCaseAttributes(XMLStreamWriter writer, Description description, long nanos)
+            throws XMLStreamException {
+        String method = description.getMethodName();
+        writer.writeAttribute("name", method != null ? method : description.getDisplayName());
+        writer.writeAttribute("classname", className(description));
+        writer.writeAttribute("time", seconds(nanos));
+    }
+
+    private Suite suite(ResultObject result, Description description) throws IOException, XMLStreamException {
+        String className = className(description);
+        String key = result.getDeviceId() + "\u0000" + className;
+        Suite suite = open.get(key);
+        if (suite == null) {
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                throw new IOException("Could not create " + directory);
+            }
+            suite = new Suite(result.getDeviceId(), className, File.createTempFile("TEST-", ".part", directory));
+            open.put(key, suite);
+        }
+        return suite;
+    }
+
+    /**
+     * Complete the report files of the classes of a finished run, except
+     * those that another run of the device, such as a parallel lane, still
+     * runs
+     */
+    private void runFinished(String deviceId, Description run) throws IOException, XMLStreamException {
+        Set<String> classes = new HashSet<String>();
+        collectClasses(run, classes);
+        List<Description> started = runs.get(deviceId);
+        if (started != null) {
+            started.remove(run);
+            for (Description other : started) {
+                Set<String> running = new HashSet<String>();
+                collectClasses(other, running);
+                classes.removeAll(running);
+            }
+            if (started.isEmpty()) {
+                runs.remove(deviceId);
+            }
+        }
+        for (String className : classes) {
+            Suite suite = open.remove(deviceId + "\u0000" + className);
+            if (suite != null) {
+                suite.close();
+            }
+        }
+    }
+
+    private static void collectClasses(Description description, Set<String> classes) {
+        classes.add(className(description));
+        for (Description child : description.getChildren()) {
+            collectClasses(child, classes);
+        }
+    }
+
+    /**
+     * Complete the report files of a device's classes
+     *
+     * @param deviceId
+     *            null for every device
+     */
+    private void closeSuites(String deviceId) throws IOException, XMLStreamException {
+        List<Suite> closing = new ArrayList<Suite>();
+        for (Iterator<Suite> suites = open.values().iterator(); suites.hasNext();) {
+            Suite suite = suites.next();
+            if (deviceId == null || deviceId.equals(suite.deviceId)) {
+                closing.add(suite);
+                suites.remove();
+            }
+        }
+        for (Suite suite : closing) {
+            suite.close();
+        }
+    }
+
+    private void writeSummary() throws IOException, XMLStreamException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create " + directory);
+        }
+        File temp = new File(directory, SUMMARY_FILE + ".tmp");
+        OutputStream out = new BufferedOutputStream(new FileOutputStream(temp));
+        try {
+            XMLStreamWriter writer = factory.createXMLStreamWriter(out, ENCODING);
+            writer.writeStartDocument(ENCODING, "1.0");
+            writer.writeCharacters("\n");
+            writer.writeEmptyElement("junitbridge-summary");
+            writer.writeAttribute("tests", String.valueOf(tests));
+            writer.writeAttribute("failures", String.valueOf(failures));
+            writer.writeAttribute("errors", String.valueOf(errors));
+            writer.writeAttribute("skipped", String.valueOf(skipped));
+            writer.writeAttribute("flakes", String.valueOf(flakes));
+            writer.writeAttribute("time", seconds(System.nanoTime() - startedAt));
+            writer.writeEndDocument();
+            writer.close();
+        } finally {
+            out.close();
+        }
+        File summary = new File(directory, SUMMARY_FILE);
+        if (!temp.renameTo(summary) && !(summary.delete() && temp.renameTo(summary))) {
+            throw new IOException("Could not write " + summary);
+        }
+    }
+
+    private File reportFile(String className) {
+        Integer count = written.get(className);
+        written.put(className, count == null ? 1 : count + 1);
+        return new File(directory, "TEST-" + className + (count == null ? "" : "-" + count) + ".xml");
+    }
+
+    private static String key(ResultObject result, Description description) {
+        return result.getDeviceId() + "\u0000" + description.getDisplayName();
+    }
+
+    private static long time(ResultObject result) {
+        /* prefer the device's clock, it isn't skewed by transport delays */
+        if (result.getTimestamp() != 0) {
+            return result.getTimestamp();
+        }
+        return result.getReceivedAt() != 0 ? result.getReceivedAt() : System.nanoTime();
+    }
+
+    private static String className(Description description) {
+        return description.getClassName() != null ? description.getClassName() : description.getDisplayName();
+    }
+
+    private static String exceptionClass(Throwable exception) {
+        if (exception instanceof RemoteAssertionError) {
+            return ((RemoteAssertionError) exception).getClassName();
+        }
+        if (exception instanceof RemoteThrowable) {
+            return ((RemoteThrowable) exception).getClassName();
+        }
+        return exception == null ? "" : exception.getClass().getName();
+    }
+
+    private static String stackTrace(Throwable exception) {
+        if (exception == null) {
+            return "";
+        }
+        StringWriter trace = new StringWriter();
+        exception.printStackTrace(new PrintWriter(trace));
+        return trace.toString();
+    }
+
+    private static String seconds(long nanos) {
+        return String.format(Locale.ENGLISH, "%.3f", nanos / 1e9);
+    }
+
+    /**
+     * A class's test cases, streamed to a part file until the class is done
+     */
+    private class Suite {
+        final String deviceId;
+        final String className;
+        final File body;
+        final OutputStream out;
+        final XMLStreamWriter writer;
+        int tests;
+        int failures;
+        int errors;
+        int skipped;
+        long nanos;
+
+        Suite(String deviceId, String className, File body) throws IOException, XMLStreamException {
+            this.deviceId = deviceId;
+            this.className = className;
+            this.body = body;
+            this.out = new BufferedOutputStream(new FileOutputStream(body));
+            this.writer = factory.createXMLStreamWriter(out, ENCODING);
+        }
+
+        void close() throws IOException, XMLStreamException {
+            /* completes the last element */
+            writer.writeCharacters("\n");
+            writer.flush();
+            writer.close();
+            out.close();
+
+            File report = reportFile(className);
+            OutputStream file = new BufferedOutputStream(new FileOutputStream(report));
+            try {
+                XMLStreamWriter header = factory.createXMLStreamWriter(file, ENCODING);
+                header.writeStartDocument(ENCODING, "1.0");
+                header.writeCharacters("\n");
+                header.writeStartElement("testsuite");
+                header.writeAttribute("name", className);
+                header.writeAttribute("time", seconds(nanos));
+                header.writeAttribute("tests", String.valueOf(tests));
+                header.writeAttribute("errors", String.valueOf(errors));
+                header.writeAttribute("skipped", String.valueOf(skipped));
+                header.writeAttribute("failures", String.valueOf(failures));
+                if (deviceId != null) {
+                    header.writeAttribute("hostname", deviceId);
+                }
+                /* closes the start tag, the cases follow as they were written */
+                header.writeCharacters("");
+                header.flush();
+                InputStream cases = new FileInputStream(body);
+                try {
+                    byte[] buffer = new byte[8192];
+                    int read;
+                    while ((read = cases.read(buffer)) > 0) {
+                        file.write(buffer, 0, read);
+                    }
+                } finally {
+                    cases.close();
+                }
+                file.write("</testsuite>\n".getBytes(ENCODING));
+                header.close();
+            } finally {
+                file.close();
+                if (!body.delete()) {
+                    body.deleteOnExit();
+                }
+            }
+        }
+    }
+}
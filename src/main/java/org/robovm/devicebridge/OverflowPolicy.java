@@ -0,0 +1,34 @@
+/*
+ * Copyright (C) 2014 Trillian Mobile AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.robovm.devicebridge;
+
+/**
+ * What the bridge does with results arriving while a subscriber's buffer is
+ * full, see {@link RoboVMDeviceBridge#setOverflowPolicy(OverflowPolicy)}
+ */
+public enum OverflowPolicy {
+    /**
+     * Stop reading from the runners until the subscriber catches up; no
+     * result is lost
+     */
+    BLOCK,
+    /** Discard the oldest buffered result to make room */
+    DROP_OLDEST,
+    /** Discard the result that doesn't fit */
+    DROP_LATEST,
+    /** Fail the subscriber's stream */
+    FAIL
+}
@@ -0,0 +1,52 @@
+/*
+ * Copyright (C) 2014 Trillian Mobile AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.robovm.devicebridge;
+
+/**
+ * Stands in for an exception thrown on the device whose class isn't available
+ * on the host. Prints like the original exception would.
+ */
+public class RemoteThrowable extends Throwable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String className;
+
+    public RemoteThrowable(String className, String message) {
+        super(message);
+        this.className = className;
+    }
+
+    /**
+     * @return name of the exception class on the device
+     */
+    public String getClassName() {
+        return className;
+    }
+
+    @Override
+    public synchronized Throwable fillInStackTrace() {
+        /* the device stack trace is set after construction */
+        return this;
+    }
+
+    @Override
+    public String toString() {
+        String message = getLocalizedMessage();
+        return message != null ? className + ": " + message : className;
+    }
+}
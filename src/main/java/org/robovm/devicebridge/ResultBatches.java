@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2014 Trillian Mobile AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.robovm.devicebridge;
+
+import rx.Observable;
+import rx.functions.Func1;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Views of a result stream grouped into batches, for consumers that would
+ * rather update once per batch than once per result
+ */
+public class ResultBatches {
+
+    private static final Func1<List<ResultObject>, Boolean> NOT_EMPTY = new Func1<List<ResultObject>, Boolean>() {
+        @Override
+        public Boolean call(List<ResultObject> batch) {
+            return !batch.isEmpty();
+        }
+    };
+
+    private ResultBatches() {
+    }
+
+    /**
+     * @param results
+     * @param timespan
+     *            length of each window
+     * @param unit
+     * @return results received in each window, windows without results are
+     *         skipped
+     */
+    public static Observable<List<ResultObject>> byTime(Observable<ResultObject> results, long timespan,
+            TimeUnit unit) {
+        return results.buffer(timespan, unit).filter(NOT_EMPTY);
+    }
+
+    /**
+     * @param results
+     * @param count
+     *            results per batch
+     * @return batches of count results, the last one may be smaller
+     */
+    public static Observable<List<ResultObject>> byCount(Observable<ResultObject> results, int count) {
+        return results.buffer(count);
+    }
+
+    /**
+     * @param results
+     * @param timespan
+     *            longest time a result waits for its batch
+     * @param unit
+     * @param count
+     *            most results per batch
+     * @return batches emitted when full or when the window ends, whichever
+     *         comes first; windows without results are skipped
+     */
+    public static Observable<List<ResultObject>> byTimeOrCount(Observable<ResultObject> results, long timespan,
+            TimeUnit unit, int count) {
+        return results.buffer(timespan, unit, count).filter(NOT_EMPTY);
+    }
+}
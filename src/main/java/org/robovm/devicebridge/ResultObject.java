@@ -30,11 +30,48 @@ public class ResultObject {
     public static final int TEST_STARTED = 4;
     public static final int TEST_FINISHED = 5;
     public static final int TEST_FAILURE = 6;
+    /** Sent by the runner once it is done; never forwarded to subscribers */
+    public static final int SESSION_END = 7;
+    /** Sent by the runner to ask for the next test; never forwarded to subscribers */
+    public static final int REQUEST_TEST = 8;
+    /**
+     * Made up by the bridge when a runner died without ending its session;
+     * the description is the test it was running, if any
+     */
+    public static final int RUNNER_CRASHED = 9;
+    /**
+     * What the test described printed to System.out, see {@link #getOutput()};
+     * arrives after the test finished, possibly in several parts
+     */
+    public static final int TEST_OUTPUT = 10;
+    /** Like TEST_OUTPUT, for System.err */
+    public static final int TEST_ERROR_OUTPUT = 11;
+    /** Sent by an idle runner to show it is alive; never forwarded to subscribers */
+    public static final int HEARTBEAT = 12;
+    /**
+     * Sent by the runner when the bridge asks for it, the dump being the
+     * output; never forwarded, it ends up in the test's timeout failure
+     */
+    public static final int THREAD_DUMP = 13;
+    /**
+     * A failed attempt of a test that the runner is going to run again, see
+     * {@link #getAttempt()}; the test's TEST_FINISHED or TEST_FAILURE follows
+     * once it passed or ran out of attempts
+     */
+    public static final int TEST_ATTEMPT_FAILED = 14;
 
     public Description description;
     Result result;
     Failure failure;
     int resultType;
+    long sequence;
+    long timestamp;
+    long encodeTime;
+    String output;
+    int attempt;
+    transient String deviceId;
+    transient long receivedAt;
+    transient long decodeTime;
 
     public ResultObject() {
     }
@@ -63,6 +100,95 @@ public class ResultObject {
         this.resultType = resultType;
     }
 
+    public long getSequence() {
+        return sequence;
+    }
+
+    public void setSequence(long sequence) {
+        this.sequence = sequence;
+    }
+
+    /**
+     * @return id of the device that sent this result, set by the bridge
+     */
+    public String getDeviceId() {
+        return deviceId;
+    }
+
+    public void setDeviceId(String deviceId) {
+        this.deviceId = deviceId;
+    }
+
+    /**
+     * @return device's monotonic clock when the event happened, in
+     *         nanoseconds; 0 when not timed
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public void setTimestamp(long timestamp) {
+        this.timestamp = timestamp;
+    }
+
+    /**
+     * @return nanoseconds the device spent encoding this result
+     */
+    public long getEncodeTime() {
+        return encodeTime;
+    }
+
+    public void setEncodeTime(long encodeTime) {
+        this.encodeTime = encodeTime;
+    }
+
+    /**
+     * @return bridge's monotonic clock when the result arrived, in
+     *         nanoseconds, set by the bridge
+     */
+    public long getReceivedAt() {
+        return receivedAt;
+    }
+
+    public void setReceivedAt(long receivedAt) {
+        this.receivedAt = receivedAt;
+    }
+
+    /**
+     * @return nanoseconds the bridge spent decoding this result
+     */
+    public long getDecodeTime() {
+        return decodeTime;
+    }
+
+    public void setDecodeTime(long decodeTime) {
+        this.decodeTime = decodeTime;
+    }
+
+    /**
+     * @return captured output of TEST_OUTPUT and TEST_ERROR_OUTPUT results
+     */
+    public String getOutput() {
+        return output;
+    }
+
+    public void setOutput(String output) {
+        this.output = output;
+    }
+
+    /**
+     * @return attempt of a retried test this result is about, from 1; 0 for
+     *         tests that ran once. A TEST_FINISHED of attempt 2 or later is a
+     *         flaky test.
+     */
+    public int getAttempt() {
+        return attempt;
+    }
+
+    public void setAttempt(int attempt) {
+        this.attempt = attempt;
+    }
+
     public Failure getFailure() {
         return failure;
     }
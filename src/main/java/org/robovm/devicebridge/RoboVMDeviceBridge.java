@@ -16,76 +16,525 @@
 
 package org.robovm.devicebridge;
 
-import com.google.gson.GsonBuilder;
-import org.junit.runner.Description;
-import org.junit.runner.notification.Failure;
 import org.robovm.compiler.config.Config;
 import org.robovm.compiler.target.LaunchParameters;
-import org.robovm.devicebridge.internal.adapters.AtomicIntegerTypeAdapter;
-import org.robovm.devicebridge.internal.adapters.DescriptionTypeAdapter;
+import org.robovm.devicebridge.internal.Constant;
 import org.robovm.devicebridge.internal.Logger;
+import org.robovm.devicebridge.internal.cache.CompileCache;
+import org.robovm.devicebridge.internal.history.TestHistory;
+import org.robovm.devicebridge.internal.journal.EventJournal;
+import org.robovm.devicebridge.internal.protocol.Handshake;
+import org.robovm.devicebridge.internal.server.BoundedBuffer;
+import org.robovm.devicebridge.internal.server.BridgeServer;
+import org.robovm.devicebridge.internal.server.TestQueue;
 import rx.Observable;
+import rx.Scheduler;
 import rx.Subscriber;
+import rx.functions.Action1;
+import rx.functions.Func1;
+import rx.schedulers.Schedulers;
 
-import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.io.InterruptedIOException;
+import java.math.BigInteger;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * Bridge between device and client (IDE, gradle, maven...)
  */
 public class RoboVMDeviceBridge {
 
-    private ServerSocket serverSocket;
+    private final List<BridgeServer> servers = new CopyOnWriteArrayList<BridgeServer>();
+    private boolean binaryProtocolEnabled = true;
+    private boolean compressionEnabled;
+    private CompileCache compileCache = new CompileCache();
+    private TestHistory testHistory;
+    private Scheduler scheduler = Schedulers.newThread();
+    private EventJournal journal;
+    private int bufferSize = DEFAULT_BUFFER_SIZE;
+    private OverflowPolicy overflowPolicy = OverflowPolicy.BLOCK;
+    private int parallelClasses = 1;
+    private int parallelMethods = 1;
+    private int maxRelaunches = DEFAULT_MAX_RELAUNCHES;
+    private int retries;
+    private List<String> testSelection;
+    private String sessionToken = new BigInteger(130, new SecureRandom()).toString(32);
+    private long testTimeout;
+    private long runTimeout;
+    /** Runner processes alive right now, by the device id they were launched with */
+    private final Map<String, Process> processes = new ConcurrentHashMap<String, Process>();
+
+    /** Times a crashed runner is launched again by default */
+    public static final int DEFAULT_MAX_RELAUNCHES = 3;
+
+    /** Results held for each subscriber of a runner's stream by default */
+    public static final int DEFAULT_BUFFER_SIZE = 8192;
+
+    /** Port to pass to startServer to listen on any free port */
+    public static final int EPHEMERAL_PORT = 0;
+
+    /** How long compileAndRun waits for a server to listen, in milliseconds */
+    public static final long SERVER_START_TIMEOUT_MS = 60000;
+
+    /** Device id of the n-th instance launched by {@link #compileAndRun(Config.Builder, int)} */
+    public static final String DEVICE_ID_PREFIX = "device-";
 
     public RoboVMDeviceBridge() {
     }
 
     /**
-     * Create server side listener
+     * Allow runners to use the compact binary wire format. Runners that don't
+     * support it, or when disabled, fall back to JSON.
+     *
+     * @param enabled
+     */
+    public void setBinaryProtocolEnabled(boolean enabled) {
+        this.binaryProtocolEnabled = enabled;
+    }
+
+    /**
+     * Let runners deflate what they send. Worth it over slow links such as
+     * Wi-Fi or tunneled USB, a waste of device CPU on simulators. The
+     * achieved ratio and inflate time are published with the bridge metrics.
+     *
+     * @param enabled
+     */
+    public void setCompressionEnabled(boolean enabled) {
+        this.compressionEnabled = enabled;
+    }
+
+    /**
+     * Run tests in parallel on each launched runner. The test classes must
+     * not share state that isn't thread-safe. When the bridge hands out the
+     * tests, each runner opens one connection per class running at once,
+     * with device ids of the form &lt;device id&gt;/&lt;n&gt; after the first.
+     *
+     * @param classes
+     *            test classes running at once
+     * @param methods
+     *            test methods running at once, over all running classes
+     */
+    public void setParallelism(int classes, int methods) {
+        if (classes < 1 || methods < 1) {
+            throw new IllegalArgumentException("Parallelism must be positive");
+        }
+        this.parallelClasses = classes;
+        this.parallelMethods = methods;
+    }
+
+    /**
+     * Tests launched runners run instead of their bundled class list, so one
+     * compiled app serves any selection. Entries are a class, Class#method or
+     * a pattern where '*' stands for any characters, such as
+     * "com.example.*Test" or "*#testLogin*"; patterns are matched against the
+     * classes of the bundled list. Ignored by runners the bridge hands tests
+     * out to, see {@link #startServer(int, int, List)}.
+     *
+     * @param tests
+     *            entries without commas, null to run the bundled list
+     */
+    public void setTestSelection(List<String> tests) {
+        if (tests != null) {
+            for (String test : tests) {
+                if (test.indexOf(',') >= 0) {
+                    throw new IllegalArgumentException("Test entries can't contain commas: " + test);
+                }
+            }
+        }
+        this.testSelection = tests;
+    }
+
+    /**
+     * When a runner that asks the bridge for its tests crashes, the test it
+     * was running fails and the runner is launched again to run the tests
+     * that are left. Runners that use their bundled list only report the
+     * crash.
+     *
+     * @param maxRelaunches
+     *            times a runner is launched again, 0 to never
+     */
+    public void setMaxRelaunches(int maxRelaunches) {
+        this.maxRelaunches = maxRelaunches;
+    }
+
+    /**
+     * Runners run a test method that failed again right away, in the same
+     * process, until it passes or has been run this many more times. Failed
+     * attempts are reported as TEST_ATTEMPT_FAILED; a test that passed in the
+     * end is flaky, its TEST_FINISHED has an attempt above 1.
+     *
+     * @param retries
+     *            times a failed test is run again, 0 to never
+     */
+    public void setRetries(int retries) {
+        if (retries < 0) {
+            throw new IllegalArgumentException("Retries can't be negative");
+        }
+        this.retries = retries;
+    }
+
+    /**
+     * Fail tests that run for longer than this, and kill their runner; it is
+     * launched again with the tests that are left, up to the relaunch limit.
+     * The failure holds a thread dump of the runner when it could be taken.
+     * Off unless set, tests may run for as long as they take.
+     *
+     * @param testTimeout
+     *            in milliseconds, 0 for no limit
+     */
+    public void setTestTimeout(long testTimeout) {
+        this.testTimeout = testTimeout;
+    }
+
+    /**
+     * Fail the tests still running once a server has been serving for this
+     * long, and kill the runners without launching them again
+     *
+     * @param runTimeout
+     *            in milliseconds, 0 for no limit
+     */
+    public void setRunTimeout(long runTimeout) {
+        this.runTimeout = runTimeout;
+    }
+
+    /**
+     * Token runners launched by this bridge present when they connect; the
+     * servers turn away runners presenting another token, such as those of
+     * other bridges on the same host, or none at all. Runners started by hand
+     * or built before tokens present none, set the token to null to let them
+     * in. A random token is made up for every bridge.
+     *
+     * @param sessionToken
+     *            token to use, null to accept any runner
+     */
+    public void setSessionToken(String sessionToken) {
+        this.sessionToken = sessionToken;
+    }
+
+    public String getSessionToken() {
+        return sessionToken;
+    }
+
+    /**
+     * Cache used to skip compiling the runner when its inputs haven't changed
+     *
+     * @param compileCache
+     *            cache to use, null to always compile
+     */
+    public void setCompileCache(CompileCache compileCache) {
+        this.compileCache = compileCache;
+    }
+
+    /**
+     * @return cache in use, holds hit and miss counts; null when disabled
+     */
+    public CompileCache getCompileCache() {
+        return compileCache;
+    }
+
+    /**
+     * History of test durations and failures, used to run recently failed
+     * and long tests first when the bridge hands out the tests or launches
+     * runners with a {@link #setTestSelection(List) selection}. Runners that
+     * use their bundled list run it in its own order, the bridge doesn't know
+     * its contents. Off unless set, {@link TestHistory#TestHistory()} keeps it
+     * in the user's home.
+     *
+     * @param testHistory
+     *            history to use, null to keep tests in the given order
+     */
+    public void setTestHistory(TestHistory testHistory) {
+        this.testHistory = testHistory;
+    }
+
+    public TestHistory getTestHistory() {
+        return testHistory;
+    }
+
+    /**
+     * Journal every result the servers emit is recorded in, to be replayed
+     * with {@link #replay(File, double)}. The journal stays open for later
+     * servers; close it once done.
+     *
+     * @param journal
+     *            journal to use, null to record nothing
+     */
+    public void setJournal(EventJournal journal) {
+        this.journal = journal;
+    }
+
+    public EventJournal getJournal() {
+        return journal;
+    }
+
+    /**
+     * Scheduler the servers run on, and results are delivered to subscribers
+     * from. Each server and each subscriber takes a worker of its own.
+     *
+     * @param scheduler
+     */
+    public void setScheduler(Scheduler scheduler) {
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * Results held for a subscriber that can't keep up, before the
+     * {@link OverflowPolicy} applies
+     *
+     * @param bufferSize
+     */
+    public void setBufferSize(int bufferSize) {
+        if (bufferSize < 1) {
+            throw new IllegalArgumentException("Buffer size must be positive");
+        }
+        this.bufferSize = bufferSize;
+    }
+
+    /**
+     * What to do with results once a subscriber's buffer is full. Defaults to
+     * {@link OverflowPolicy#BLOCK}, which loses no result but stops reading
+     * from the runners until the subscriber catches up.
+     *
+     * @param overflowPolicy
+     */
+    public void setOverflowPolicy(OverflowPolicy overflowPolicy) {
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    /**
+     * Create server side listener on any free port, so several bridges can
+     * run on one host. Runners launched by
+     * {@link #compileAndRun(Config.Builder)} are told the port.
+     * 
+     * @return
+     */
+    public Observable<ResultObject> startServer() {
+        return startServer(EPHEMERAL_PORT);
+    }
+
+    /**
+     * Create server side listener. The server runs on the bridge's scheduler
+     * once subscribed to, see {@link ResultBatches} to receive the results in
+     * batches.
      * 
      * @param port
-     *            listening port
+     *            listening port, {@link #EPHEMERAL_PORT} for any free port
      * @return
      */
     public Observable<ResultObject> startServer(final int port) {
-        return Observable.create(new Observable.OnSubscribe<ResultObject>() {
+        return startServer(port, 1, null);
+    }
+
+    /**
+     * Create server side listener for several runners sharing one test
+     * session. Results of all runners are merged, tagged with the runner's
+     * device id.
+     * 
+     * @param port
+     *            listening port
+     * @param runners
+     *            number of runners taking part
+     * @param tests
+     *            Class or Class#method entries handed out one at a time to
+     *            whichever runner asks next, null to let each runner use its
+     *            bundled list
+     * @return
+     */
+    public Observable<ResultObject> startServer(int port, int runners, List<String> tests) {
+        return Observable.merge(startSessions(port, runners, tests));
+    }
+
+    /**
+     * Create server side listener, keeping the results of each runner apart.
+     * Emits one Observable per runner when it first connects; subscribe to
+     * it straight away to receive all of its results. Each subscriber gets
+     * the results through a buffer of its own, so a slow one doesn't hold up
+     * the others.
+     * 
+     * @param port
+     *            listening port
+     * @param runners
+     *            number of runners taking part
+     * @param tests
+     *            Class or Class#method entries handed out one at a time to
+     *            whichever runner asks next, null to let each runner use its
+     *            bundled list
+     * @return
+     */
+    public Observable<Observable<ResultObject>> startSessions(final int port, final int runners,
+            final List<String> tests) {
+        return Observable.create(new Observable.OnSubscribe<Observable<ResultObject>>() {
             @Override
-            public void call(Subscriber<? super ResultObject> subscriber) {
-                try {
-                    Logger.log("Starting server listener");
-                    serverSocket = new ServerSocket(port);
-                    Socket socket = serverSocket.accept();
-                    String line;
-                    BufferedReader reader = new BufferedReader(
-                            new InputStreamReader(socket.getInputStream()));
-
-                    while ((line = reader.readLine()) != null) {
-                        Logger.log("Read from socket " + line);
-                        ResultObject resultObject = jsonToResultObject(line);
-                        subscriber.onNext(resultObject);
-                    }
-                    subscriber.onCompleted();
-                } catch (Exception e) {
-                    Logger.log("Error sending result " + e.getMessage());
-                    subscriber.onError(e);
+            public void call(Subscriber<? super Observable<ResultObject>> subscriber) {
+                TestQueue queue = null;
+                if (tests != null) {
+                    queue = new TestQueue(testHistory == null ? tests : testHistory.order(tests));
+                }
+                if (testHistory != null) {
+                    testHistory.beginRun();
                 }
+                serve(port, runners, queue, subscriber);
+            }
+        }).subscribeOn(scheduler);
+    }
+
+    /**
+     * Emit the results recorded in a journal, as a server would have, on the
+     * bridge's scheduler. No device is needed.
+     *
+     * @param journal
+     *            file of an {@link EventJournal}
+     * @param speed
+     *            0 to emit the results as fast as possible, 1 to keep the
+     *            time between them as it was when they were received, 2 for
+     *            twice as fast and so on
+     * @return
+     */
+    public Observable<ResultObject> replay(File journal, double speed) {
+        return EventJournal.replay(journal, speed).subscribeOn(scheduler);
+    }
+
+    /**
+     * Start a server for runners that stay alive between runs. Once the
+     * runners are launched with {@link #compileAndRun(Config.Builder, int)},
+     * submit tests to the returned daemon as often as needed; the runners
+     * exit when it is closed.
+     * 
+     * @param port
+     *            listening port
+     * @param runners
+     *            number of runners taking part
+     * @return
+     */
+    public TestDaemon startDaemon(final int port, final int runners) {
+        final TestQueue queue = new TestQueue();
+        Observable.create(new Observable.OnSubscribe<Observable<ResultObject>>() {
+            @Override
+            public void call(Subscriber<? super Observable<ResultObject>> subscriber) {
+                serve(port, runners, queue, subscriber);
+            }
+        }).subscribeOn(scheduler).subscribe(new Action1<Observable<ResultObject>>() {
+            @Override
+            public void call(Observable<ResultObject> session) {
+            }
+        }, new Action1<Throwable>() {
+            @Override
+            public void call(Throwable e) {
+                /* nothing will run, let waiting runs complete */
+                queue.close();
             }
         });
+        return new TestDaemon(queue, testHistory);
     }
 
-    private ResultObject jsonToResultObject(String jsonString) {
-        ResultObject resultObject = new GsonBuilder()
-                .registerTypeAdapter(Description.class, new DescriptionTypeAdapter())
-                .registerTypeAdapter(AtomicInteger.class, new AtomicIntegerTypeAdapter())
-                .registerTypeAdapter(Failure.class, new DescriptionTypeAdapter.FailureTypeAdapter())
-                .create()
-                .fromJson(jsonString, ResultObject.class);
+    private void serve(int port, int runners, TestQueue queue,
+            final Subscriber<? super Observable<ResultObject>> subscriber) {
+        BridgeServer server = null;
+        try {
+            Logger.debug("Starting server listener");
+            int formats = Handshake.FORMAT_JSON | (binaryProtocolEnabled ? Handshake.FORMAT_BINARY : 0)
+                    | (compressionEnabled ? Handshake.COMPRESS_DEFLATE : 0);
+            server = new BridgeServer(port, runners, queue, formats, sessionToken);
+            server.setTimeouts(testTimeout, runTimeout);
+            server.setHangHandler(new Func1<String, Boolean>() {
+                @Override
+                public Boolean call(String deviceId) {
+                    Process process = processes.get(deviceId);
+                    if (process == null) {
+                        return false;
+                    }
+                    Logger.warn("Killing runner " + deviceId);
+                    process.destroy();
+                    return true;
+                }
+            });
+            Logger.debug("Listening on port " + server.getLocalPort());
+            synchronized (servers) {
+                servers.add(server);
+                servers.notifyAll();
+            }
+            BoundedBuffer<ResultObject> buffer = new BoundedBuffer<ResultObject>(bufferSize, overflowPolicy,
+                    scheduler);
+            server.serve(buffering(buffer, testHistory, journal, subscriber));
+        } catch (Exception e) {
+            Logger.error("Error sending result " + e.getMessage());
+            subscriber.onError(e);
+        } finally {
+            servers.remove(server);
+        }
+    }
+
+    /**
+     * Pass sessions on behind the buffer, recording their results in the test
+     * history and the journal unless they are null
+     */
+    private static Subscriber<Observable<ResultObject>> buffering(final BoundedBuffer<ResultObject> buffer,
+            final TestHistory history, final EventJournal journal,
+            final Subscriber<? super Observable<ResultObject>> subscriber) {
+        final Action1<ResultObject> recorder = new Action1<ResultObject>() {
+            @Override
+            public void call(ResultObject result) {
+                history.record(result);
+            }
+        };
+        final Action1<ResultObject> journaling = new Action1<ResultObject>() {
+            @Override
+            public void call(ResultObject result) {
+                try {
+                    journal.record(result);
+                } catch (IOException e) {
+                    Logger.warn("Could not journal result " + e.getMessage());
+                }
+            }
+        };
+        return new Subscriber<Observable<ResultObject>>(subscriber) {
+            @Override
+            public void onNext(Observable<ResultObject> session) {
+                if (journal != null) {
+                    session.subscribe(journaling);
+                }
+                if (history != null) {
+                    session.subscribe(recorder);
+                }
+                subscriber.onNext(session.lift(buffer));
+            }
+
+            @Override
+            public void onCompleted() {
+                if (history != null) {
+                    saveHistory(history);
+                }
+                if (journal != null) {
+                    journal.force();
+                }
+                subscriber.onCompleted();
+            }
 
-        return resultObject;
+            @Override
+            public void onError(Throwable e) {
+                subscriber.onError(e);
+            }
+        };
+    }
+
+    static void saveHistory(TestHistory history) {
+        try {
+            history.save();
+        } catch (IOException e) {
+            Logger.warn("Could not save test history " + e.getMessage());
+        }
     }
 
     /**
@@ -96,28 +545,155 @@ public class RoboVMDeviceBridge {
      * @throws IOException
      */
     public void compileAndRun(Config.Builder configBuilder) throws IOException {
+        compileAndRun(configBuilder, 1);
+    }
+
+    /**
+     * Compile configuration once and launch several instances of it, each
+     * with its own device id. Use together with
+     * {@link #startServer(int, int, List)} to spread the tests over them.
+     * The instances connect to the server started last, waiting for one to
+     * listen if none does yet.
+     * 
+     * @param configBuilder
+     *            appropriate configuration for execution
+     * @param instances
+     *            number of instances to launch
+     * @throws IOException
+     */
+    public void compileAndRun(Config.Builder configBuilder, int instances) throws IOException {
 
         if (configBuilder == null) {
             throw new IllegalArgumentException("RoboVM configuration cannot be null");
         }
+        if (instances < 1) {
+            throw new IllegalArgumentException("At least one instance must be launched");
+        }
 
-        Logger.log("Building Runner");
-        new org.robovm.compilerhelper.Compiler()
-                .withConfiguration(configBuilder)
-                .compile();
+        Logger.debug("Building Runner");
+        if (compileCache != null) {
+            compileCache.compile(configBuilder);
+        } else {
+            new org.robovm.compilerhelper.Compiler()
+                    .withConfiguration(configBuilder)
+                    .compile();
+        }
 
+        Config config = configBuilder.build();
+        List<String> arguments = new ArrayList<String>();
+        arguments.addAll(Arrays.asList(Constant.ARG_PORT, String.valueOf(awaitServerPort())));
+        if (sessionToken != null) {
+            arguments.addAll(Arrays.asList(Constant.ARG_TOKEN, sessionToken));
+        }
+        /* the runner logs at the bridge's level */
+        arguments.addAll(Arrays.asList(Constant.ARG_LOG_LEVEL, Logger.getLevelName(Logger.getLevel())));
+        if (parallelClasses > 1 || parallelMethods > 1) {
+            arguments.addAll(Arrays.asList(Constant.ARG_PARALLEL_CLASSES, String.valueOf(parallelClasses),
+                    Constant.ARG_PARALLEL_METHODS, String.valueOf(parallelMethods)));
+        }
+        if (retries > 0) {
+            arguments.addAll(Arrays.asList(Constant.ARG_RETRIES, String.valueOf(retries)));
+        }
+        if (testSelection != null) {
+            StringBuilder tests = new StringBuilder();
+            for (String test : testHistory == null ? testSelection : testHistory.order(testSelection)) {
+                tests.append(tests.length() > 0 ? "," : "").append(test);
+            }
+            arguments.addAll(Arrays.asList(Constant.ARG_TESTS, tests.toString()));
+        }
+        ExecutorService launcher = Executors.newFixedThreadPool(instances);
         try {
-            Config config = configBuilder.build();
-
-            Logger.log("Launching Simulator");
-            LaunchParameters launchParameters = config.getTarget().createLaunchParameters();
-            config.getTarget().launch(launchParameters).waitFor();
+            List<Future<Void>> runs = new ArrayList<Future<Void>>();
+            for (int i = 0; i < instances; i++) {
+                if (instances > 1) {
+                    List<String> instanceArguments = new ArrayList<String>(arguments);
+                    instanceArguments.addAll(Arrays.asList(Constant.ARG_DEVICE_ID, DEVICE_ID_PREFIX + i));
+                    runs.add(launcher.submit(launching(config, DEVICE_ID_PREFIX + i, instanceArguments)));
+                } else {
+                    runs.add(launcher.submit(launching(config, Handshake.DEFAULT_DEVICE_ID, arguments)));
+                }
+            }
+            for (Future<Void> run : runs) {
+                try {
+                    run.get();
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof IOException) {
+                        throw (IOException) e.getCause();
+                    }
+                    throw new IOException(e.getCause());
+                }
+            }
         } catch (InterruptedException e) {
-            if (serverSocket != null) {
-                serverSocket.close();
+            for (BridgeServer server : servers) {
+                server.close();
             }
             e.printStackTrace();
+        } finally {
+            launcher.shutdownNow();
+            if (compileCache != null) {
+                /* other bridges may evict the build again */
+                compileCache.release();
+            }
+        }
+    }
+
+    /**
+     * @return port of the server started last, once it listens
+     */
+    private int awaitServerPort() throws IOException {
+        long deadline = System.currentTimeMillis() + SERVER_START_TIMEOUT_MS;
+        synchronized (servers) {
+            try {
+                while (servers.isEmpty()) {
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0) {
+                        throw new IOException("No server listening for the runner, start one first");
+                    }
+                    servers.wait(remaining);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for the server");
+            }
+            return servers.get(servers.size() - 1).getLocalPort();
         }
     }
 
+    /**
+     * Launch a runner, and launch it again with the tests that are left
+     * whenever it crashes. The app is compiled already, only the launch is
+     * repeated.
+     */
+    private Callable<Void> launching(final Config config, final String deviceId, final List<String> arguments) {
+        return new Callable<Void>() {
+            @Override
+            public Void call() throws IOException, InterruptedException {
+                for (int launch = 0;; launch++) {
+                    Logger.debug("Launching Simulator " + deviceId);
+                    LaunchParameters launchParameters = config.getTarget().createLaunchParameters();
+                    if (!arguments.isEmpty()) {
+                        launchParameters.setArguments(arguments);
+                    }
+                    Process process = config.getTarget().launch(launchParameters);
+                    processes.put(deviceId, process);
+                    try {
+                        process.waitFor();
+                    } finally {
+                        processes.remove(deviceId);
+                    }
+                    if (!runnerExited(deviceId, launch < maxRelaunches)) {
+                        return null;
+                    }
+                }
+            }
+        };
+    }
+
+    private boolean runnerExited(String deviceId, boolean mayRelaunch) throws InterruptedException {
+        boolean relaunch = false;
+        for (BridgeServer server : servers) {
+            relaunch |= server.runnerExited(deviceId, mayRelaunch);
+        }
+        return relaunch;
+    }
 }
@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2014 Trillian Mobile AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.robovm.devicebridge;
+
+import org.robovm.devicebridge.internal.history.TestHistory;
+import org.robovm.devicebridge.internal.server.TestQueue;
+import org.robovm.devicebridge.internal.server.TestRun;
+import rx.Observable;
+import rx.Observer;
+
+import java.util.List;
+
+/**
+ * Handle on runners kept alive between runs, see
+ * {@link RoboVMDeviceBridge#startDaemon(int, int)}
+ */
+public class TestDaemon {
+
+    private final TestQueue queue;
+    private final TestHistory history;
+
+    /**
+     * @param queue
+     * @param history
+     *            orders submitted tests, null to keep them as given
+     */
+    public TestDaemon(TestQueue queue, TestHistory history) {
+        this.queue = queue;
+        this.history = history;
+    }
+
+    /**
+     * Run tests on the warm runners
+     * 
+     * @param tests
+     *            Class or Class#method entries
+     * @return results of these tests, completes once all of them ran
+     */
+    public Observable<ResultObject> submit(List<String> tests) {
+        TestRun run = new TestRun(tests.size());
+        if (history != null) {
+            history.beginRun();
+            tests = history.order(tests);
+            run.getResults().subscribe(new Observer<ResultObject>() {
+                @Override
+                public void onCompleted() {
+                    RoboVMDeviceBridge.saveHistory(history);
+                }
+
+                @Override
+                public void onError(Throwable e) {
+                }
+
+                @Override
+                public void onNext(ResultObject result) {
+                }
+            });
+        }
+        queue.submit(run, tests);
+        return run.getResults();
+    }
+
+    /**
+     * Let the runners exit once their current test is done
+     */
+    public void close() {
+        queue.close();
+    }
+}
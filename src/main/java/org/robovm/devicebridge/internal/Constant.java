@@ -18,4 +18,52 @@ package org.robovm.devicebridge.internal;
 public class Constant {
     public static final String DEBUG = "robovm.debug";
 
+    /** Property naming the log level, see {@link Logger#parseLevel(String)} */
+    public static final String LOG_LEVEL = "robovm.log.level";
+
+    /** Cumulative acknowledgement sent by the host, followed by a sequence number */
+    public static final String ACK = "ACK ";
+
+    /**
+     * Answer to a test request: the request's sequence number, followed by the
+     * test to run or nothing once there are no tests left
+     */
+    public static final String TEST = "TEST ";
+
+    /** Asks the runner for a THREAD_DUMP of its threads */
+    public static final String DUMP = "DUMP";
+
+    /** How long a runner that has nothing to send waits before sending a heartbeat */
+    public static final long HEARTBEAT_INTERVAL_MS = 5000;
+
+    /** Runner argument naming the device, followed by the id */
+    public static final String ARG_DEVICE_ID = "--device-id";
+
+    /** Runner argument, followed by the tests to run separated by commas */
+    public static final String ARG_TESTS = "--tests";
+
+    /** Joins the device id and the lane number of lanes with a connection of their own */
+    public static final String LANE_SEPARATOR = "/";
+
+    /** Runner argument, followed by how many classes run at once */
+    public static final String ARG_PARALLEL_CLASSES = "--parallel-classes";
+
+    /** Runner argument, followed by how many test methods run at once */
+    public static final String ARG_PARALLEL_METHODS = "--parallel-methods";
+
+    /** Runner argument, followed by the port the bridge listens on */
+    public static final String ARG_PORT = "--port";
+
+    /** Runner argument, followed by the session token to present to the bridge */
+    public static final String ARG_TOKEN = "--token";
+
+    /** Runner argument, followed by how many times a failed test is run again */
+    public static final String ARG_RETRIES = "--retries";
+
+    /** Port runners connect to when launched without {@link #ARG_PORT} */
+    public static final String DEFAULT_PORT = "8889";
+
+    /** Runner argument, followed by the name of the log level */
+    public static final String ARG_LOG_LEVEL = "--log-level";
+
 }
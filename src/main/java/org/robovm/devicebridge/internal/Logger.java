@@ -16,21 +16,212 @@
 
 package org.robovm.devicebridge.internal;
 
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Logging shared by the bridge and the runner. The level is looked up once,
+ * from the {@link Constant#LOG_LEVEL} property, else {@link Constant#DEBUG};
+ * messages below it cost a field read. Build expensive messages inside an
+ * {@link #isEnabled(int)} check, or use the format variants, which format
+ * only enabled messages.
+ * <p>
+ * Messages are handed to the {@link Appender} by a thread of its own through
+ * a ring buffer of {@link #BUFFER_SIZE} messages, so logging never waits for
+ * the console; when the buffer is full the oldest message is dropped.
+ */
 public class Logger {
-    public static void log(String logString) {
-        if (shouldLog()) {
-            System.out.println(logString);
+
+    public static final int OFF = 0;
+    public static final int ERROR = 1;
+    public static final int WARN = 2;
+    public static final int INFO = 3;
+    public static final int DEBUG = 4;
+
+    static final int BUFFER_SIZE = 1024;
+
+    private static final String[] NAMES = { "off", "error", "warn", "info", "debug" };
+
+    /**
+     * Where messages end up
+     */
+    public interface Appender {
+        void append(String message);
+    }
+
+    private static volatile int level = readLevel();
+    private static volatile Appender appender = new Appender() {
+        @Override
+        public void append(String message) {
+            System.out.println(message);
+        }
+    };
+
+    private static final BlockingQueue<String> buffer = new ArrayBlockingQueue<String>(BUFFER_SIZE);
+    private static final AtomicLong dropped = new AtomicLong();
+    /** Messages enqueued and neither appended nor dropped yet */
+    private static final AtomicLong pending = new AtomicLong();
+    private static volatile Thread writer;
+
+    public static boolean isEnabled(int messageLevel) {
+        return messageLevel <= level;
+    }
+
+    public static boolean isDebugEnabled() {
+        return DEBUG <= level;
+    }
+
+    public static int getLevel() {
+        return level;
+    }
+
+    public static void setLevel(int level) {
+        if (level < OFF || level > DEBUG) {
+            throw new IllegalArgumentException("Unknown log level " + level);
+        }
+        Logger.level = level;
+    }
+
+    /**
+     * @param name
+     *            level name such as "warn", case doesn't matter
+     * @return level constant
+     */
+    public static int parseLevel(String name) {
+        for (int i = 0; i < NAMES.length; i++) {
+            if (NAMES[i].equalsIgnoreCase(name.trim())) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("Unknown log level " + name);
+    }
+
+    public static String getLevelName(int level) {
+        return NAMES[level];
+    }
+
+    public static void setAppender(Appender appender) {
+        Logger.appender = appender;
+    }
+
+    public static void error(String message) {
+        if (ERROR <= level) {
+            enqueue(message);
+        }
+    }
+
+    public static void error(String message, Throwable e) {
+        if (ERROR <= level) {
+            StringWriter trace = new StringWriter();
+            e.printStackTrace(new PrintWriter(trace));
+            enqueue(message + "\n" + trace);
+        }
+    }
+
+    public static void warn(String message) {
+        if (WARN <= level) {
+            enqueue(message);
+        }
+    }
+
+    public static void info(String message) {
+        if (INFO <= level) {
+            enqueue(message);
+        }
+    }
+
+    public static void info(String format, Object... args) {
+        if (INFO <= level) {
+            enqueue(String.format(Locale.ENGLISH, format, args));
         }
     }
 
-    private static boolean shouldLog() {
+    public static void debug(String message) {
+        if (DEBUG <= level) {
+            enqueue(message);
+        }
+    }
 
-        String value;
+    public static void debug(String format, Object... args) {
+        if (DEBUG <= level) {
+            enqueue(String.format(Locale.ENGLISH, format, args));
+        }
+    }
 
-        if ((value = System.getProperty(Constant.DEBUG)) != null) {
-            return value.equals("true");
+    /**
+     * Wait until the messages logged so far have been appended, before the
+     * process exits
+     *
+     * @param timeout
+     *            in milliseconds
+     * @throws InterruptedException
+     */
+    public static void flush(long timeout) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+        while (pending.get() > 0 && System.nanoTime() < deadline) {
+            Thread.sleep(1);
         }
+    }
 
-        return false;
+    private static void enqueue(String message) {
+        /* counted before it is visible to the writer, so flush() can't miss it */
+        pending.incrementAndGet();
+        while (!buffer.offer(message)) {
+            if (buffer.poll() != null) {
+                dropped.incrementAndGet();
+                pending.decrementAndGet();
+            }
+        }
+        if (writer == null) {
+            startWriter();
+        }
+    }
+
+    private static synchronized void startWriter() {
+        if (writer != null) {
+            return;
+        }
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (true) {
+                    String message;
+                    try {
+                        message = buffer.take();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    try {
+                        long lost = dropped.getAndSet(0);
+                        if (lost > 0) {
+                            appender.append("[" + lost + " log messages dropped]");
+                        }
+                        appender.append(message);
+                    } finally {
+                        pending.decrementAndGet();
+                    }
+                }
+            }
+        }, "junitbridge-log");
+        thread.setDaemon(true);
+        thread.start();
+        writer = thread;
+    }
+
+    private static int readLevel() {
+        String value = System.getProperty(Constant.LOG_LEVEL);
+        if (value != null) {
+            try {
+                return parseLevel(value);
+            } catch (IllegalArgumentException e) {
+                System.err.println(e.getMessage());
+            }
+        }
+        return "true".equals(System.getProperty(Constant.DEBUG)) ? DEBUG : WARN;
     }
 }
@@ -16,26 +16,34 @@
  */
 package org.robovm.devicebridge.internal.adapters;
 
-import com.google.gson.*;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
 
-import java.lang.reflect.Type;
+import java.io.IOException;
 import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Serialization for AtomicInteger
  */
-public class AtomicIntegerTypeAdapter implements JsonSerializer<AtomicInteger>, JsonDeserializer<AtomicInteger> {
+public class AtomicIntegerTypeAdapter extends TypeAdapter<AtomicInteger> {
 
     @Override
-    public AtomicInteger deserialize(JsonElement jsonElement, Type type,
-            JsonDeserializationContext jsonDeserializationContext) throws JsonParseException {
-        int intValue = jsonElement.getAsInt();
-        return new AtomicInteger(intValue);
+    public void write(JsonWriter out, AtomicInteger atomicInteger) throws IOException {
+        if (atomicInteger == null) {
+            out.nullValue();
+            return;
+        }
+        out.value(atomicInteger.get());
     }
 
     @Override
-    public JsonElement serialize(AtomicInteger atomicInteger, Type type,
-            JsonSerializationContext jsonSerializationContext) {
-        return new JsonPrimitive(atomicInteger.get());
+    public AtomicInteger read(JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+        return new AtomicInteger(in.nextInt());
     }
 }
@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2014 Trillian Mobile AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.robovm.devicebridge.internal.adapters;
+
+import org.junit.runner.Description;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Integer ids for Descriptions exchanged during a session. The first time a
+ * Description is written it is defined in full along with a new id; after
+ * that only the id is sent, and the reading side hands back the very same
+ * Description instance.
+ * <p>
+ * Both sides start over at every TEST_RUN_STARTED, which defines the whole
+ * tree of the run. A frame refers to the ids as they stood when it was
+ * encoded, so it must be decoded exactly once and in order: after a
+ * reconnect the runner resends only frames the bridge hasn't decoded, and
+ * the bridge skips any it has without decoding them.
+ */
+public class DescriptionRegistry {
+
+    private final Map<Description, Integer> sent = new HashMap<Description, Integer>();
+    private final Map<Integer, Description> received = new HashMap<Integer, Description>();
+    private int nextId = 1;
+
+    /**
+     * Forget everything sent or received so far, called when a run starts
+     */
+    public void reset() {
+        sent.clear();
+        received.clear();
+    }
+
+    /**
+     * Writing side: id of an already defined Description
+     *
+     * @param description
+     * @return id, or 0 if it has not been defined yet
+     */
+    public int lookup(Description description) {
+        Integer id = sent.get(description);
+        return id == null ? 0 : id;
+    }
+
+    /**
+     * Writing side: allocate an id for a Description about to be defined
+     *
+     * @param description
+     * @return new id
+     */
+    public int register(Description description) {
+        int id = nextId++;
+        sent.put(description, id);
+        return id;
+    }
+
+    /**
+     * Reading side: record a Description defined by the other end
+     *
+     * @param id
+     * @param description
+     */
+    public void define(int id, Description description) {
+        received.put(id, description);
+    }
+
+    /**
+     * Reading side: the Description previously defined with the given id
+     *
+     * @param id
+     * @return Description
+     * @throws IOException
+     *             if the id is unknown
+     */
+    public Description resolve(int id) throws IOException {
+        Description description = received.get(id);
+        if (description == null) {
+            throw new IOException("Unknown description id " + id);
+        }
+        return description;
+    }
+
+    /**
+     * Reading side: rebuild a Description, keeping the class and method
+     * identity when the display name has the standard method(class) form
+     *
+     * @param displayName
+     * @param className
+     * @param methodName
+     * @return Description
+     */
+    public static Description create(String displayName, String className, String methodName) {
+        if (className != null && methodName != null) {
+            Description description = Description.createTestDescription(className, methodName);
+            if (description.getDisplayName().equals(displayName)) {
+                return description;
+            }
+        }
+        return Description.createSuiteDescription(displayName);
+    }
+}
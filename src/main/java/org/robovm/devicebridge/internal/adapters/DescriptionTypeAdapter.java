@@ -16,73 +16,171 @@
  */
 package org.robovm.devicebridge.internal.adapters;
 
-import com.google.gson.*;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
 import org.junit.runner.Description;
 import org.junit.runner.notification.Failure;
 
-import java.lang.reflect.Type;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.List;
 
-public class DescriptionTypeAdapter implements JsonDeserializer<Description>, JsonSerializer<Description> {
-    @Override
-    public JsonElement serialize(Description description, Type type,
-            JsonSerializationContext jsonSerializationContext) {
-        JsonObject jsonObject = new JsonObject();
-        jsonObject.add("display_name", new JsonPrimitive(description.getDisplayName()));
+/**
+ * Streaming serialization for JUnit Description trees. A Description is
+ * defined in full the first time it is written and referred to by id after
+ * that, see {@link DescriptionRegistry}.
+ */
+public class DescriptionTypeAdapter extends TypeAdapter<Description> {
+
+    private final DescriptionRegistry registry;
+
+    public DescriptionTypeAdapter() {
+        this(new DescriptionRegistry());
+    }
 
-        ArrayList<Description> subDescription = description.getChildren();
+    public DescriptionTypeAdapter(DescriptionRegistry registry) {
+        this.registry = registry;
+    }
 
-        JsonArray array = new JsonArray();
-        for (Description desc : subDescription) {
-            array.add(serialize(desc, null, null));
+    @Override
+    public void write(JsonWriter out, Description description) throws IOException {
+        if (description == null) {
+            out.nullValue();
+            return;
+        }
+        int id = registry.lookup(description);
+        if (id != 0) {
+            out.beginObject();
+            out.name("id").value(id);
+            out.endObject();
+            return;
         }
 
-        jsonObject.add("sub_description", array);
+        out.beginObject();
+        out.name("id").value(registry.register(description));
+        out.name("display_name").value(description.getDisplayName());
+        out.name("class_name").value(description.getClassName());
+        out.name("method_name").value(description.getMethodName());
+
+        out.name("sub_description").beginArray();
+        for (Description desc : description.getChildren()) {
+            write(out, desc);
+        }
+        out.endArray();
 
-        return jsonObject;
+        out.endObject();
     }
 
     @Override
-    public Description deserialize(JsonElement jsonElement, Type type,
-            JsonDeserializationContext jsonDeserializationContext) throws JsonParseException {
-        JsonObject jsonObject = jsonElement.getAsJsonObject();
-        String displayName = jsonObject.get("display_name").getAsString();
-        Description description = Description.createSuiteDescription(displayName);
+    public Description read(JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+        int id = 0;
+        String displayName = null;
+        String className = null;
+        String methodName = null;
+        List<Description> children = null;
+
+        in.beginObject();
+        while (in.hasNext()) {
+            String name = in.nextName();
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+            } else if (name.equals("id")) {
+                id = in.nextInt();
+            } else if (name.equals("display_name")) {
+                displayName = in.nextString();
+            } else if (name.equals("class_name")) {
+                className = in.nextString();
+            } else if (name.equals("method_name")) {
+                methodName = in.nextString();
+            } else if (name.equals("sub_description")) {
+                in.beginArray();
+                while (in.hasNext()) {
+                    if (children == null) {
+                        children = new ArrayList<Description>();
+                    }
+                    children.add(read(in));
+                }
+                in.endArray();
+            } else {
+                in.skipValue();
+            }
+        }
+        in.endObject();
 
-        JsonArray array = jsonObject.getAsJsonArray("sub_description");
+        if (displayName == null) {
+            return registry.resolve(id);
+        }
 
-        for (JsonElement e : array) {
-            description.addChild(deserialize(e, null, null));
+        Description description = DescriptionRegistry.create(displayName, className, methodName);
+        if (children != null) {
+            for (Description child : children) {
+                description.addChild(child);
+            }
+        }
+        /* runners that predate ids don't send one */
+        if (id != 0) {
+            registry.define(id, description);
         }
         return description;
     }
 
-    public static class FailureTypeAdapter implements JsonSerializer<Failure>, JsonDeserializer<Failure> {
+    public static class FailureTypeAdapter extends TypeAdapter<Failure> {
 
-        @Override
-        public JsonElement serialize(Failure failure, Type type, JsonSerializationContext jsonSerializationContext) {
-            JsonObject jsonObject = new JsonObject();
+        private final DescriptionTypeAdapter descriptionAdapter;
+        private final ThrowableTypeAdapter throwableAdapter;
 
-            jsonObject.add("message", new JsonPrimitive(failure.getMessage()));
-            jsonObject.add("description",
-                    new DescriptionTypeAdapter().serialize(failure.getDescription(), null, null));
-            jsonObject.add("exception", new ThrowableTypeAdapter().serialize(failure.getException(), null, null));
+        public FailureTypeAdapter() {
+            this(new DescriptionTypeAdapter(), new ThrowableTypeAdapter());
+        }
 
-            return jsonObject;
+        public FailureTypeAdapter(DescriptionTypeAdapter descriptionAdapter, ThrowableTypeAdapter throwableAdapter) {
+            this.descriptionAdapter = descriptionAdapter;
+            this.throwableAdapter = throwableAdapter;
         }
 
         @Override
-        public Failure deserialize(JsonElement jsonElement, Type type,
-                JsonDeserializationContext jsonDeserializationContext) throws JsonParseException {
-            JsonObject jsonObject = jsonElement.getAsJsonObject();
-            JsonObject jsonDescription = jsonObject.getAsJsonObject("description");
-            JsonObject jsonException = jsonObject.getAsJsonObject("exception");
-            Description description = new DescriptionTypeAdapter().deserialize(jsonDescription, null, null);
-            Throwable throwable = new ThrowableTypeAdapter().deserialize(jsonException, null, null);
-
-            Failure failure = new Failure(description, throwable);
+        public void write(JsonWriter out, Failure failure) throws IOException {
+            if (failure == null) {
+                out.nullValue();
+                return;
+            }
+            out.beginObject();
+            out.name("description");
+            descriptionAdapter.write(out, failure.getDescription());
+            out.name("exception");
+            throwableAdapter.write(out, failure.getException());
+            out.endObject();
+        }
 
-            return failure;
+        @Override
+        public Failure read(JsonReader in) throws IOException {
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            }
+            Description description = null;
+            Throwable throwable = null;
+
+            in.beginObject();
+            while (in.hasNext()) {
+                String name = in.nextName();
+                if (name.equals("description")) {
+                    description = descriptionAdapter.read(in);
+                } else if (name.equals("exception")) {
+                    throwable = throwableAdapter.read(in);
+                } else {
+                    in.skipValue();
+                }
+            }
+            in.endObject();
+
+            return new Failure(description, throwable);
         }
     }
 }
@@ -0,0 +1,54 @@
+/*
+ * Copyright (C) 2014 Trillian Mobile AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.robovm.devicebridge.internal.adapters;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import org.junit.runner.Description;
+import org.junit.runner.Result;
+import org.junit.runner.notification.Failure;
+import org.robovm.devicebridge.ResultObject;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates the Gson instances used by the runner and the bridge. Each instance
+ * carries its own {@link DescriptionRegistry} and {@link StackTraceRegistry},
+ * so one instance is used per session and direction, and reused for every
+ * result on it.
+ */
+public class GsonFactory {
+
+    public static Gson create() {
+        DescriptionRegistry registry = new DescriptionRegistry();
+        DescriptionTypeAdapter descriptionAdapter = new DescriptionTypeAdapter(registry);
+        ThrowableTypeAdapter throwableAdapter = new ThrowableTypeAdapter(new StackTraceRegistry());
+        DescriptionTypeAdapter.FailureTypeAdapter failureAdapter = new DescriptionTypeAdapter.FailureTypeAdapter(
+                descriptionAdapter, throwableAdapter);
+        ResultTypeAdapter resultAdapter = new ResultTypeAdapter(failureAdapter);
+
+        return new GsonBuilder()
+                .registerTypeAdapter(Description.class, descriptionAdapter)
+                .registerTypeAdapter(AtomicInteger.class, new AtomicIntegerTypeAdapter())
+                .registerTypeAdapter(Failure.class, failureAdapter)
+                .registerTypeAdapter(Throwable.class, throwableAdapter)
+                .registerTypeAdapter(Result.class, resultAdapter)
+                .registerTypeAdapter(ResultObject.class,
+                        new ResultObjectTypeAdapter(registry, descriptionAdapter, resultAdapter, failureAdapter))
+                .create();
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2014 Trillian Mobile AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.robovm.devicebridge.internal.adapters;
+
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import org.junit.runner.Description;
+import org.junit.runner.Result;
+import org.junit.runner.notification.Failure;
+import org.robovm.devicebridge.ResultObject;
+
+import java.io.IOException;
+
+/**
+ * Serialization for ResultObject. The type is written first so the reading
+ * side knows a run is starting before it reads the run's Description tree,
+ * then the sequence, so frames already decoded can be skipped.
+ */
+public class ResultObjectTypeAdapter extends TypeAdapter<ResultObject> {
+
+    private final DescriptionRegistry registry;
+    private final TypeAdapter<Description> descriptionAdapter;
+    private final TypeAdapter<Result> resultAdapter;
+    private final TypeAdapter<Failure> failureAdapter;
+
+    public ResultObjectTypeAdapter(DescriptionRegistry registry, TypeAdapter<Description> descriptionAdapter,
+            TypeAdapter<Result> resultAdapter, TypeAdapter<Failure> failureAdapter) {
+        this.registry = registry;
+        this.descriptionAdapter = descriptionAdapter;
+        this.resultAdapter = resultAdapter;
+        this.failureAdapter = failureAdapter;
+    }
+
+    @Override
+    public void write(JsonWriter out, ResultObject message) throws IOException {
+        if (message == null) {
+            out.nullValue();
+            return;
+        }
+        long start = System.nanoTime();
+        if (message.getResultType() == ResultObject.TEST_RUN_STARTED) {
+            registry.reset();
+        }
+        out.beginObject();
+        out.name("resultType").value(message.getResultType());
+        out.name("sequence").value(message.getSequence());
+        if (message.getDescription() != null) {
+            out.name("description");
+            descriptionAdapter.write(out, message.getDescription());
+        }
+        if (message.getResult() != null) {
+            out.name("result");
+            resultAdapter.write(out, message.getResult());
+        }
+        if (message.getFailure() != null) {
+            out.name("failure");
+            failureAdapter.write(out, message.getFailure());
+        }
+        if (message.getOutput() != null) {
+            out.name("output").value(message.getOutput());
+        }
+        if (message.getAttempt() != 0) {
+            out.name("attempt").value(message.getAttempt());
+        }
+        if (message.getTimestamp() != 0) {
+            /* written last so the encode time covers the rest of the object */
+            out.name("timestamp").value(message.getTimestamp());
+            message.setEncodeTime(System.nanoTime() - start);
+            out.name("encode_time").value(message.getEncodeTime());
+        }
+        out.endObject();
+    }
+
+    @Override
+    public ResultObject read(JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+        ResultObject message = new ResultObject();
+
+        in.beginObject();
+        while (in.hasNext()) {
+            String name = in.nextName();
+            if (name.equals("resultType")) {
+                message.setResultType(in.nextInt());
+                if (message.getResultType() == ResultObject.TEST_RUN_STARTED) {
+                    registry.reset();
+                }
+            } else if (name.equals("sequence")) {
+                message.setSequence(in.nextLong());
+            } else if (name.equals("description")) {
+                message.setDescription(descriptionAdapter.read(in));
+            } else if (name.equals("result")) {
+                message.setResult(resultAdapter.read(in));
+            } else if (name.equals("failure")) {
+                message.setFailure(failureAdapter.read(in));
+            } else if (name.equals("output")) {
+                message.setOutput(in.nextString());
+            } else if (name.equals("attempt")) {
+                message.setAttempt(in.nextInt());
+            } else if (name.equals("timestamp")) {
+                message.setTimestamp(in.nextLong());
+            } else if (name.equals("encode_time")) {
+                message.setEncodeTime(in.nextLong());
+            } else {
+                in.skipValue();
+            }
+        }
+        in.endObject();
+
+        return message;
+    }
+}
@@ -16,24 +16,117 @@
  */
 package org.robovm.devicebridge.internal.adapters;
 
-import com.google.gson.*;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
 import org.junit.runner.Result;
+import org.junit.runner.notification.Failure;
 
-import java.lang.reflect.Type;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
- * Serialization for JUnit Result class
+ * Serialization for JUnit Result class. Field names match the ones Gson's
+ * reflective adapter used to produce.
  */
-public class ResultTypeAdapter implements JsonSerializer<Result> {
+public class ResultTypeAdapter extends TypeAdapter<Result> {
+
+    private final TypeAdapter<Failure> failureAdapter;
+
+    public ResultTypeAdapter(TypeAdapter<Failure> failureAdapter) {
+        this.failureAdapter = failureAdapter;
+    }
+
+    @Override
+    public void write(JsonWriter out, Result result) throws IOException {
+        if (result == null) {
+            out.nullValue();
+            return;
+        }
+        out.beginObject();
+        out.name("fRunTime").value(result.getRunTime());
+        out.name("fIgnoreCount").value(result.getIgnoreCount());
+        out.name("fCount").value(result.getRunCount());
+
+        out.name("fFailures").beginArray();
+        List<Failure> failures = result.getFailures();
+        synchronized (failures) {
+            for (Failure failure : failures) {
+                failureAdapter.write(out, failure);
+            }
+        }
+        out.endArray();
+
+        out.endObject();
+    }
 
     @Override
-    public JsonElement serialize(Result result, Type type, JsonSerializationContext jsonSerializationContext) {
-        JsonObject jsonObject = new JsonObject();
+    public Result read(JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+        long runTime = 0;
+        int ignoreCount = 0;
+        int runCount = 0;
+        List<Failure> failures = new ArrayList<Failure>();
+
+        in.beginObject();
+        while (in.hasNext()) {
+            String name = in.nextName();
+            if (name.equals("fRunTime")) {
+                runTime = in.nextLong();
+            } else if (name.equals("fIgnoreCount")) {
+                ignoreCount = in.nextInt();
+            } else if (name.equals("fCount")) {
+                runCount = in.nextInt();
+            } else if (name.equals("fFailures")) {
+                in.beginArray();
+                while (in.hasNext()) {
+                    failures.add(failureAdapter.read(in));
+                }
+                in.endArray();
+            } else {
+                in.skipValue();
+            }
+        }
+        in.endObject();
 
-        jsonObject.add("fRunTime", new JsonPrimitive(result.getRunTime()));
-        jsonObject.add("fIgnoreCount", new JsonPrimitive(result.getIgnoreCount()));
-        jsonObject.add("fCount", new JsonPrimitive(result.getRunCount()));
+        return createResult(runCount, ignoreCount, runTime, failures);
+    }
+
+    /**
+     * Result has no setters, fill in its fields the same way Gson's
+     * reflective adapter does
+     *
+     * @param runCount
+     * @param ignoreCount
+     * @param runTime
+     * @param failures
+     * @return Result
+     * @throws IOException
+     */
+    public static Result createResult(int runCount, int ignoreCount, long runTime, List<Failure> failures)
+            throws IOException {
+        Result result = new Result();
+        try {
+            setField(result, "fCount", new AtomicInteger(runCount));
+            setField(result, "fIgnoreCount", new AtomicInteger(ignoreCount));
+            setField(result, "fRunTime", runTime);
+            result.getFailures().addAll(failures);
+        } catch (Exception e) {
+            throw new IOException("Can't rebuild JUnit Result: " + e.getMessage());
+        }
+        return result;
+    }
 
-        return jsonObject;
+    private static void setField(Result result, String name, Object value) throws Exception {
+        Field field = Result.class.getDeclaredField(name);
+        field.setAccessible(true);
+        field.set(result, value);
     }
 }
@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2014 Trillian Mobile AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.robovm.devicebridge.internal.adapters;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Integer ids for stack traces exchanged during a session, so a stack trace
+ * repeated by several failures is only sent once. Works like
+ * {@link DescriptionRegistry}, but is never reset since stack traces aren't
+ * tied to a run; instead the writing side stops handing out ids once
+ * {@link #MAX_STACK_TRACES} have been registered.
+ */
+public class StackTraceRegistry {
+
+    static final int MAX_STACK_TRACES = 1024;
+
+    private final Map<List<StackTraceElement>, Integer> sent = new HashMap<List<StackTraceElement>, Integer>();
+    private final Map<Integer, StackTraceElement[]> received = new HashMap<Integer, StackTraceElement[]>();
+    private int nextId = 1;
+
+    /**
+     * Writing side: id of an already defined stack trace
+     *
+     * @param frames
+     * @return id, or 0 if it has not been defined yet
+     */
+    public int lookup(StackTraceElement[] frames) {
+        Integer id = sent.get(Arrays.asList(frames));
+        return id == null ? 0 : id;
+    }
+
+    /**
+     * Writing side: allocate an id for a stack trace about to be defined
+     *
+     * @param frames
+     * @return new id, or 0 if the table is full and the frames must be sent
+     *         inline
+     */
+    public int register(StackTraceElement[] frames) {
+        if (sent.size() >= MAX_STACK_TRACES) {
+            return 0;
+        }
+        int id = nextId++;
+        sent.put(Arrays.asList(frames), id);
+        return id;
+    }
+
+    public void define(int id, StackTraceElement[] frames) {
+        received.put(id, frames);
+    }
+
+    public StackTraceElement[] resolve(int id) throws IOException {
+        StackTraceElement[] frames = received.get(id);
+        if (frames == null) {
+            throw new IOException("Unknown stack trace id " + id);
+        }
+        return frames;
+    }
+}
@@ -0,0 +1,270 @@
+/*
+ * Copyright (C) 2014 Trillian Mobile AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package org.robovm.devicebridge.internal.adapters;
+
+import org.robovm.devicebridge.RemoteAssertionError;
+import org.robovm.devicebridge.RemoteThrowable;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Structured form of an exception as it goes over the wire: class name,
+ * message, stack frames, cause and suppressed exceptions. Frames shared with
+ * the enclosing exception are trimmed the way printStackTrace() trims them,
+ * at most {@link #MAX_FRAMES} frames of each exception are kept, and stack
+ * traces already sent during the session are referred to by id.
+ */
+public class ThrowableData {
+
+    static final int MAX_FRAMES = 64;
+    static final int MAX_DEPTH = 32;
+
+    private final String className;
+    private final String message;
+    private final boolean assertion;
+    private final int stackId;
+    private final StackTraceElement[] frames;
+    private final int omitted;
+    private final int common;
+    private final ThrowableData cause;
+    private final List<ThrowableData> suppressed;
+
+    /**
+     * @param className
+     * @param message
+     * @param assertion
+     *            whether the exception is an AssertionError
+     * @param stackId
+     *            id of the stack trace, 0 if sent inline
+     * @param frames
+     *            frames of the exception, null to refer to the stack trace
+     *            with the given id
+     * @param omitted
+     *            number of frames dropped beyond MAX_FRAMES
+     * @param common
+     *            number of trailing frames shared with the enclosing exception
+     * @param cause
+     * @param suppressed
+     */
+    public ThrowableData(String className, String message, boolean assertion, int stackId,
+            StackTraceElement[] frames, int omitted, int common, ThrowableData cause, List<ThrowableData> suppressed) {
+        this.className = className;
+        this.message = message;
+        this.assertion = assertion;
+        this.stackId = stackId;
+        this.frames = frames;
+        this.omitted = omitted;
+        this.common = common;
+        this.cause = cause;
+        this.suppressed = suppressed;
+    }
+
+    public String getClassName() {
+        return className;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    public boolean isAssertion() {
+        return assertion;
+    }
+
+    public int getStackId() {
+        return stackId;
+    }
+
+    public StackTraceElement[] getFrames() {
+        return frames;
+    }
+
+    public int getOmitted() {
+        return omitted;
+    }
+
+    public int getCommon() {
+        return common;
+    }
+
+    public ThrowableData getCause() {
+        return cause;
+    }
+
+    public List<ThrowableData> getSuppressed() {
+        return suppressed;
+    }
+
+    /**
+     * Writing side: capture an exception and its causes
+     *
+     * @param throwable
+     * @param stacks
+     *            stack traces sent so far during the session, or null to
+     *            send every stack trace inline
+     * @return ThrowableData
+     */
+    public static ThrowableData capture(Throwable throwable, StackTraceRegistry stacks) {
+        Set<Throwable> seen = Collections.newSetFromMap(new IdentityHashMap<Throwable, Boolean>());
+        return capture(throwable, null, stacks, seen, 0);
+    }
+
+    /**
+     * @param enclosing
+     *            trace of the enclosing exception as the reading side rebuilds
+     *            it, so without the frames truncation dropped
+     */
+    private static ThrowableData capture(Throwable throwable, StackTraceElement[] enclosing,
+            StackTraceRegistry stacks, Set<Throwable> seen, int depth) {
+        seen.add(throwable);
+
+        StackTraceElement[] trace = throwable.getStackTrace();
+        int common = enclosing == null ? 0 : framesInCommon(trace, enclosing);
+        int unique = trace.length - common;
+        int kept = Math.min(unique, MAX_FRAMES);
+        StackTraceElement[] frames = Arrays.copyOf(trace, kept);
+
+        int stackId = stacks == null ? 0 : stacks.lookup(frames);
+        if (stackId != 0) {
+            frames = null;
+        } else if (stacks != null) {
+            stackId = stacks.register(frames);
+        }
+
+        /* what rebuild() makes of this exception's trace */
+        List<StackTraceElement> sent = new ArrayList<StackTraceElement>(kept + common + 1);
+        sent.addAll(Arrays.asList(trace).subList(0, kept));
+        if (unique > kept) {
+            sent.add(omittedFrame(unique - kept));
+        }
+        sent.addAll(Arrays.asList(trace).subList(unique, trace.length));
+        StackTraceElement[] sentTrace = sent.toArray(new StackTraceElement[sent.size()]);
+
+        ThrowableData cause = null;
+        List<ThrowableData> suppressed = Collections.emptyList();
+        if (depth < MAX_DEPTH) {
+            Throwable throwableCause = throwable.getCause();
+            if (throwableCause != null && !seen.contains(throwableCause)) {
+                cause = capture(throwableCause, sentTrace, stacks, seen, depth + 1);
+            }
+            Throwable[] throwableSuppressed = throwable.getSuppressed();
+            if (throwableSuppressed.length > 0) {
+                suppressed = new ArrayList<ThrowableData>(throwableSuppressed.length);
+                for (Throwable t : throwableSuppressed) {
+                    if (!seen.contains(t)) {
+                        suppressed.add(capture(t, sentTrace, stacks, seen, depth + 1));
+                    }
+                }
+            }
+        }
+
+        return new ThrowableData(throwable.getClass().getName(), throwable.getMessage(),
+                throwable instanceof AssertionError, stackId, frames, unique - kept, common, cause, suppressed);
+    }
+
+    private static int framesInCommon(StackTraceElement[] trace, StackTraceElement[] enclosing) {
+        int m = trace.length - 1;
+        int n = enclosing.length - 1;
+        while (m >= 0 && n >= 0 && trace[m].equals(enclosing[n])) {
+            m--;
+            n--;
+        }
+        return trace.length - 1 - m;
+    }
+
+    /**
+     * Reading side: rebuild the exception. The original class is used when it
+     * is available on the host, a {@link RemoteThrowable} or
+     * {@link RemoteAssertionError} stands in for it otherwise.
+     *
+     * @param stacks
+     *            stack traces received so far during the session
+     * @return Throwable
+     * @throws IOException
+     *             if the data refers to an unknown stack trace
+     */
+    public Throwable rebuild(StackTraceRegistry stacks) throws IOException {
+        return rebuild(stacks, new StackTraceElement[0]);
+    }
+
+    private Throwable rebuild(StackTraceRegistry stacks, StackTraceElement[] enclosing) throws IOException {
+        StackTraceElement[] own;
+        if (frames != null) {
+            own = frames;
+            if (stackId != 0) {
+                stacks.define(stackId, frames);
+            }
+        } else {
+            own = stacks.resolve(stackId);
+        }
+
+        int shared = Math.min(common, enclosing.length);
+        List<StackTraceElement> trace = new ArrayList<StackTraceElement>(own.length + shared + 1);
+        trace.addAll(Arrays.asList(own));
+        if (omitted > 0) {
+            trace.add(omittedFrame(omitted));
+        }
+        trace.addAll(Arrays.asList(enclosing).subList(enclosing.length - shared, enclosing.length));
+        StackTraceElement[] fullTrace = trace.toArray(new StackTraceElement[trace.size()]);
+
+        Throwable throwable = instantiate();
+        throwable.setStackTrace(fullTrace);
+
+        if (cause != null) {
+            Throwable rebuiltCause = cause.rebuild(stacks, fullTrace);
+            try {
+                throwable.initCause(rebuiltCause);
+            } catch (IllegalStateException e) {
+                /* the constructor already set a cause */
+            }
+        }
+        for (ThrowableData s : suppressed) {
+            throwable.addSuppressed(s.rebuild(stacks, fullTrace));
+        }
+        return throwable;
+    }
+
+    /**
+     * Stands in for the frames dropped beyond MAX_FRAMES
+     */
+    private static StackTraceElement omittedFrame(int omitted) {
+        return new StackTraceElement("...", omitted + " frames omitted", null, -1);
+    }
+
+    private Throwable instantiate() {
+        try {
+            Class<?> type = Class.forName(className, false, ThrowableData.class.getClassLoader());
+            if (type == AssertionError.class) {
+                return message != null ? new AssertionError(message) : new AssertionError();
+            }
+            if (Throwable.class.isAssignableFrom(type)) {
+                return (Throwable) type.getConstructor(String.class).newInstance(message);
+            }
+        } catch (Exception e) {
+            /* not available on the host, use a stand-in */
+        } catch (LinkageError e) {
+            /* not available on the host, use a stand-in */
+        }
+        return assertion ? new RemoteAssertionError(className, message) : new RemoteThrowable(className, message);
+    }
+}
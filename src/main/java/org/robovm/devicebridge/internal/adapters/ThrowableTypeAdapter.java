@@ -17,61 +17,235 @@
 package org.robovm.devicebridge.internal.adapters;
 
 import biz.source_code.base64Coder.Base64Coder;
-import com.google.gson.*;
-import org.robovm.apple.foundation.Foundation;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
 import org.robovm.devicebridge.internal.Logger;
 
-import java.io.*;
-import java.lang.reflect.Type;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidClassException;
+import java.io.ObjectInputStream;
+import java.io.ObjectStreamClass;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 
 /**
- * Serialization class for exceptions
+ * Serialization class for exceptions, see {@link ThrowableData} for what is
+ * sent
  */
-public class ThrowableTypeAdapter implements JsonSerializer<Throwable>, JsonDeserializer<Throwable> {
+public class ThrowableTypeAdapter extends TypeAdapter<Throwable> {
 
-    @Override
-    public JsonElement serialize(Throwable throwable, Type type,
-            JsonSerializationContext jsonSerializationContext) {
-        JsonObject jsonObject = new JsonObject();
-        String throwableString = null;
+    private final StackTraceRegistry stacks;
 
-        Logger.log("Serializing " + throwable.getMessage());
+    public ThrowableTypeAdapter() {
+        this(new StackTraceRegistry());
+    }
 
-        ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
-        try {
-            ObjectOutputStream outputStream = new ObjectOutputStream(byteStream);
-            outputStream.writeObject(throwable);
-            outputStream.flush();
-            throwableString = new String(Base64Coder.encode(byteStream.toByteArray()));
-        } catch (IOException e) {
-            Logger.log("Error serializing JSON " + e.getMessage());
-            e.printStackTrace();
+    public ThrowableTypeAdapter(StackTraceRegistry stacks) {
+        this.stacks = stacks;
+    }
+
+    @Override
+    public void write(JsonWriter out, Throwable throwable) throws IOException {
+        if (throwable == null) {
+            out.nullValue();
+            return;
         }
+        writeData(out, ThrowableData.capture(throwable, stacks));
+    }
 
-        jsonObject.addProperty("throwableObject", throwableString);
+    @Override
+    public Throwable read(JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+        return readData(in).rebuild(stacks);
+    }
 
-        return jsonObject;
+    private void writeData(JsonWriter out, ThrowableData data) throws IOException {
+        out.beginObject();
+        out.name("class_name").value(data.getClassName());
+        if (data.getMessage() != null) {
+            out.name("message").value(data.getMessage());
+        }
+        if (data.isAssertion()) {
+            out.name("assertion").value(true);
+        }
+        if (data.getStackId() != 0) {
+            out.name("stack").value(data.getStackId());
+        }
+        if (data.getFrames() != null) {
+            out.name("frames").beginArray();
+            for (StackTraceElement frame : data.getFrames()) {
+                out.beginArray();
+                out.value(frame.getClassName());
+                out.value(frame.getMethodName());
+                out.value(frame.getFileName());
+                out.value(frame.getLineNumber());
+                out.endArray();
+            }
+            out.endArray();
+        }
+        if (data.getOmitted() != 0) {
+            out.name("omitted").value(data.getOmitted());
+        }
+        if (data.getCommon() != 0) {
+            out.name("common").value(data.getCommon());
+        }
+        if (data.getCause() != null) {
+            out.name("cause");
+            writeData(out, data.getCause());
+        }
+        if (!data.getSuppressed().isEmpty()) {
+            out.name("suppressed").beginArray();
+            for (ThrowableData suppressed : data.getSuppressed()) {
+                writeData(out, suppressed);
+            }
+            out.endArray();
+        }
+        out.endObject();
     }
 
-    @Override
-    public Throwable deserialize(JsonElement jsonElement, Type type,
-            JsonDeserializationContext jsonDeserializationContext) throws JsonParseException {
+    private ThrowableData readData(JsonReader in) throws IOException {
+        String className = null;
+        String message = null;
+        boolean assertion = false;
+        int stackId = 0;
+        StackTraceElement[] frames = null;
+        int omitted = 0;
+        int common = 0;
+        ThrowableData cause = null;
+        List<ThrowableData> suppressed = Collections.emptyList();
+        ThrowableData legacy = null;
 
-        JsonObject jsonObject = jsonElement.getAsJsonObject();
+        in.beginObject();
+        while (in.hasNext()) {
+            String name = in.nextName();
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+            } else if (name.equals("class_name")) {
+                className = in.nextString();
+            } else if (name.equals("message")) {
+                message = in.nextString();
+            } else if (name.equals("assertion")) {
+                assertion = in.nextBoolean();
+            } else if (name.equals("stack")) {
+                stackId = in.nextInt();
+            } else if (name.equals("frames")) {
+                frames = readFrames(in);
+            } else if (name.equals("omitted")) {
+                omitted = in.nextInt();
+            } else if (name.equals("common")) {
+                common = in.nextInt();
+            } else if (name.equals("cause")) {
+                cause = readData(in);
+            } else if (name.equals("suppressed")) {
+                suppressed = new ArrayList<ThrowableData>();
+                in.beginArray();
+                while (in.hasNext()) {
+                    suppressed.add(readData(in));
+                }
+                in.endArray();
+            } else if (name.equals("throwableObject")) {
+                /* runners that predate the structured format send a serialized exception */
+                legacy = legacyData(deserialize(Base64Coder.decode(in.nextString())));
+            } else {
+                in.skipValue();
+            }
+        }
+        in.endObject();
+
+        if (legacy != null) {
+            return legacy;
+        }
+        return new ThrowableData(className, message, assertion, stackId, frames, omitted, common, cause, suppressed);
+    }
+
+    private StackTraceElement[] readFrames(JsonReader in) throws IOException {
+        List<StackTraceElement> frames = new ArrayList<StackTraceElement>();
+        in.beginArray();
+        while (in.hasNext()) {
+            in.beginArray();
+            String declaringClass = in.nextString();
+            String methodName = in.nextString();
+            String fileName = null;
+            if (in.peek() == JsonToken.NULL) {
+                in.nextNull();
+            } else {
+                fileName = in.nextString();
+            }
+            int lineNumber = in.nextInt();
+            in.endArray();
+            frames.add(new StackTraceElement(declaringClass, methodName, fileName, lineNumber));
+        }
+        in.endArray();
+        return frames.toArray(new StackTraceElement[frames.size()]);
+    }
 
-        String throwableString = jsonObject.get("throwableObject").getAsString();
+    private ThrowableData legacyData(Throwable throwable) {
+        if (throwable == null) {
+            return new ThrowableData(RuntimeException.class.getName(), "Exception could not be deserialized", false,
+                    0, new StackTraceElement[0], 0, 0, null, Collections.<ThrowableData> emptyList());
+        }
+        return ThrowableData.capture(throwable, null);
+    }
 
-        byte bytes[] = Base64Coder.decode(throwableString);
+    private static Throwable deserialize(byte[] bytes) {
         ByteArrayInputStream byteArrayInputStream = new ByteArrayInputStream(bytes);
         try {
-            ObjectInputStream objectInputStream = new ObjectInputStream(byteArrayInputStream);
+            ObjectInputStream objectInputStream = new ThrowableInputStream(byteArrayInputStream);
             return (Throwable) objectInputStream.readObject();
         } catch (IOException e) {
-            e.printStackTrace();
+            Logger.warn("Can't deserialize exception - " + e.getMessage());
         } catch (ClassNotFoundException e) {
-            e.printStackTrace();
+            Logger.warn("Can't deserialize exception - " + e.getMessage());
         }
 
         return null;
     }
+
+    /**
+     * Only resolves the classes a serialized exception is made of, the bytes
+     * come from the network
+     */
+    private static class ThrowableInputStream extends ObjectInputStream {
+
+        private static final Set<String> ALLOWED = new HashSet<String>(Arrays.asList(String.class.getName(),
+                StackTraceElement.class.getName(), ArrayList.class.getName(),
+                "java.util.Collections$EmptyList", "java.util.Collections$UnmodifiableCollection",
+                "java.util.Collections$UnmodifiableList", "java.util.Collections$UnmodifiableRandomAccessList",
+                "java.lang.Throwable$SentinelHolder"));
+
+        ThrowableInputStream(InputStream in) throws IOException {
+            super(in);
+        }
+
+        @Override
+        protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+            String name = desc.getName();
+            if (name.startsWith("[")) {
+                name = name.substring(name.lastIndexOf('[') + 1);
+                if (name.length() == 1) {
+                    /* array of a primitive type */
+                    return super.resolveClass(desc);
+                }
+                name = name.substring(1, name.length() - 1);
+            }
+            if (!ALLOWED.contains(name)) {
+                Class<?> type = Class.forName(name, false, getClass().getClassLoader());
+                if (!Throwable.class.isAssignableFrom(type)) {
+                    throw new InvalidClassException(name, "not part of an exception");
+                }
+            }
+            return super.resolveClass(desc);
+        }
+    }
 }
@@ -0,0 +1,473 @@
+/*
+ * Copyright (C) 2014 Trillian Mobile AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.robovm.devicebridge.internal.cache;
+
+import org.robovm.compiler.config.Config;
+import org.robovm.compiler.config.Resource;
+import org.robovm.devicebridge.internal.Logger;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Keeps compiled runner apps keyed by a hash of everything that goes into
+ * them: classpath contents, main class, resources, force linked classes,
+ * property lists and target settings. Each build is placed in its own entry
+ * directory, so a rerun with unchanged inputs launches the app already there
+ * instead of compiling.
+ * <p>
+ * Several bridges may share the cache directory. Lookups, compiles and
+ * evictions happen under a lock on the directory; a build is compiled into a
+ * directory of its own and renamed into place once complete, and the entry a
+ * bridge launches is locked until {@link #release()} so others don't evict
+ * it.
+ */
+public class CompileCache {
+
+    static final String STAMP_FILE = "build.properties";
+    static final String KEY = "key";
+    static final String COMPILE_TIME = "compileTime";
+    /** Locked while the cache directory is looked up or changed */
+    static final String LOCK_FILE = ".lock";
+    /** Locked, shared, while the app of an entry is in use */
+    static final String IN_USE_FILE = "in-use";
+    static final String PART_SUFFIX = ".part";
+
+    /** Entries in use in this JVM, file locks can't be held twice by one process */
+    private static final Map<File, EntryLock> IN_USE = new HashMap<File, EntryLock>();
+
+    /** Number of builds kept, least recently used ones are deleted */
+    public static final int DEFAULT_MAX_ENTRIES = 4;
+
+    private final File directory;
+    private final int maxEntries;
+
+    /** Digests of files already hashed, reused while their size and date don't change */
+    private final Map<File, FileDigest> digests = new HashMap<File, FileDigest>();
+
+    /** Entry handed out last, until released */
+    private File using;
+
+    private int hits;
+    private int misses;
+    private long timeSaved;
+
+    public CompileCache() {
+        this(new File(System.getProperty("user.home"), ".robovm/junitbridge/apps"), DEFAULT_MAX_ENTRIES);
+    }
+
+    /**
+     * @param directory
+     *            where builds are kept
+     * @param maxEntries
+     *            number of builds kept
+     */
+    public CompileCache(File directory, int maxEntries) {
+        this.directory = directory;
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * Point the configuration at the cache entry for its inputs and compile
+     * it, unless that entry already holds a complete build. The entry stays
+     * in use until {@link #release()}.
+     *
+     * @param configBuilder
+     * @return true when the cached build is used
+     * @throws IOException
+     */
+    public boolean compile(Config.Builder configBuilder) throws IOException {
+        long start = System.currentTimeMillis();
+        String key = key(configBuilder.build());
+        File entry = new File(directory, key);
+        File stamp = new File(entry, STAMP_FILE);
+        release();
+
+        /* one lock per directory and process, another bridge of this JVM waits here */
+        synchronized (IN_USE) {
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                throw new IOException("Could not create " + directory);
+            }
+            RandomAccessFile lockFile = new RandomAccessFile(new File(directory, LOCK_FILE), "rw");
+            try {
+                FileLock lock = lockFile.getChannel().lock();
+                try {
+                    Properties build = readStamp(stamp);
+                    if (build != null) {
+                        long saved = Long.parseLong(build.getProperty(COMPILE_TIME, "0"))
+                                - (System.currentTimeMillis() - start);
+                        hits++;
+                        timeSaved += Math.max(saved, 0);
+                        stamp.setLastModified(System.currentTimeMillis());
+                        use(configBuilder, entry);
+                        Logger.debug("Runner unchanged, using cached build %s (saved %dms, %s)", key, saved, this);
+                        return true;
+                    }
+
+                    misses++;
+                    File built = File.createTempFile(key + "-", PART_SUFFIX, directory);
+                    if (!built.delete() || !built.mkdir()) {
+                        throw new IOException("Could not create " + built);
+                    }
+                    Logger.debug("Runner changed, compiling into %s (%s)", entry, this);
+                    try {
+                        configBuilder.tmpDir(new File(built, "tmp"));
+                        configBuilder.installDir(new File(built, "app"));
+                        new org.robovm.compilerhelper.Compiler()
+                                .withConfiguration(configBuilder)
+                                .compile();
+
+                        build = new Properties();
+                        build.setProperty(KEY, key);
+                        build.setProperty(COMPILE_TIME, String.valueOf(System.currentTimeMillis() - start));
+                        OutputStream out = new FileOutputStream(new File(built, STAMP_FILE));
+                        try {
+                            build.store(out, null);
+                        } finally {
+                            out.close();
+                        }
+                        /* an entry without a stamp is what a build before renames left behind */
+                        delete(entry);
+                        if (!built.renameTo(entry)) {
+                            throw new IOException("Could not move " + built + " to " + entry);
+                        }
+                    } finally {
+                        delete(built);
+                    }
+                    use(configBuilder, entry);
+                    evict(entry);
+                    return false;
+                } finally {
+                    lock.release();
+                }
+            } finally {
+                lockFile.close();
+            }
+        }
+    }
+
+    /**
+     * Let other bridges evict the entry handed out by the last
+     * {@link #compile(Config.Builder)}, once its app isn't launched anymore
+     */
+    public void release() {
+        if (using == null) {
+            return;
+        }
+        synchronized (IN_USE) {
+            EntryLock entryLock = IN_USE.get(using);
+            if (entryLock != null && --entryLock.users == 0) {
+                IN_USE.remove(using);
+                entryLock.close();
+            }
+        }
+        using = null;
+    }
+
+    /**
+     * Point the configuration at an entry and lock it against eviction,
+     * called with IN_USE held
+     */
+    private void use(Config.Builder configBuilder, File entry) throws IOException {
+        configBuilder.tmpDir(new File(entry, "tmp"));
+        configBuilder.installDir(new File(entry, "app"));
+        EntryLock entryLock = IN_USE.get(entry);
+        if (entryLock == null) {
+            RandomAccessFile file = new RandomAccessFile(new File(entry, IN_USE_FILE), "rw");
+            try {
+                entryLock = new EntryLock(file, file.getChannel().lock(0, Long.MAX_VALUE, true));
+            } catch (IOException e) {
+                file.close();
+                throw e;
+            }
+            IN_USE.put(entry, entryLock);
+        }
+        entryLock.users++;
+        using = entry;
+    }
+
+    /**
+     * @param config
+     * @return hash of everything the compiled app depends on
+     * @throws IOException
+     */
+    public String key(Config config) throws IOException {
+        List<String> settings = new ArrayList<String>();
+        settings.add(config.getMainClass());
+        settings.add(config.getExecutableName());
+        settings.add(String.valueOf(config.getOs()));
+        settings.add(String.valueOf(config.getArch()));
+        settings.add("forceLink");
+        addAll(settings, config.getForceLinkClasses());
+        settings.add("frameworks");
+        addAll(settings, config.getFrameworks());
+        settings.add("libs");
+        settings.add(String.valueOf(config.getLibs()));
+        settings.add("exportedSymbols");
+        addAll(settings, config.getExportedSymbols());
+        settings.add(config.getTargetType());
+        settings.add(config.getIosSdkVersion());
+        settings.add(String.valueOf(config.isDebug()));
+
+        List<File> inputs = new ArrayList<File>();
+        inputs.add(config.getIosInfoPList());
+        inputs.add(config.getIosEntitlementsPList());
+        inputs.add(config.getIosResourceRulesPList());
+        addAll(inputs, config.getBootclasspath());
+        addAll(inputs, config.getClasspath());
+        if (config.getResources() != null) {
+            for (Resource resource : config.getResources()) {
+                inputs.add(resource.getPath() != null ? resource.getPath() : resource.getDirectory());
+            }
+        }
+        return hash(settings, inputs);
+    }
+
+    /**
+     * @param settings
+     * @param inputs
+     *            files or directories, hashed by content
+     * @return hex encoded hash
+     * @throws IOException
+     */
+    public String hash(List<String> settings, List<File> inputs) throws IOException {
+        MessageDigest digest = newDigest();
+        for (String setting : settings) {
+            update(digest, String.valueOf(setting));
+        }
+        for (File input : inputs) {
+            update(digest, "input");
+            if (input != null) {
+                hashTree(digest, input, "");
+            }
+        }
+        return toHex(digest.digest());
+    }
+
+    public int getHits() {
+        return hits;
+    }
+
+    public int getMisses() {
+        return misses;
+    }
+
+    /**
+     * @return compile time avoided by cache hits, in milliseconds
+     */
+    public long getTimeSaved() {
+        return timeSaved;
+    }
+
+    @Override
+    public String toString() {
+        return hits + " hits, " + misses + " misses, " + timeSaved + "ms saved";
+    }
+
+    private void hashTree(MessageDigest digest, File file, String path) throws IOException {
+        if (file.isDirectory()) {
+            File[] children = file.listFiles();
+            if (children == null) {
+                return;
+            }
+            Arrays.sort(children);
+            for (File child : children) {
+                hashTree(digest, child, path + "/" + child.getName());
+            }
+        } else if (file.isFile()) {
+            update(digest, path);
+            digest.update(fileDigest(file));
+        } else {
+            update(digest, "missing " + file);
+        }
+    }
+
+    private byte[] fileDigest(File file) throws IOException {
+        FileDigest cached = digests.get(file);
+        if (cached != null && cached.length == file.length() && cached.lastModified == file.lastModified()) {
+            return cached.digest;
+        }
+
+        MessageDigest digest = newDigest();
+        byte[] buffer = new byte[64 * 1024];
+        InputStream in = new FileInputStream(file);
+        try {
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                digest.update(buffer, 0, read);
+            }
+        } finally {
+            in.close();
+        }
+        FileDigest hashed = new FileDigest(file.length(), file.lastModified(), digest.digest());
+        digests.put(file, hashed);
+        return hashed.digest;
+    }
+
+    private Properties readStamp(File stamp) throws IOException {
+        if (!stamp.isFile()) {
+            return null;
+        }
+        Properties build = new Properties();
+        InputStream in = new FileInputStream(stamp);
+        try {
+            build.load(in);
+        } finally {
+            in.close();
+        }
+        return build;
+    }
+
+    /**
+     * Delete the least recently used builds beyond maxEntries that no bridge
+     * uses, and builds left behind by bridges that stopped while compiling.
+     * Called with the directory locked.
+     */
+    private void evict(File current) {
+        File[] entries = directory.listFiles();
+        if (entries == null) {
+            return;
+        }
+        List<File> complete = new ArrayList<File>();
+        for (File entry : entries) {
+            if (entry.getName().endsWith(PART_SUFFIX)) {
+                /* compiles only happen under the lock, nobody is writing this one */
+                Logger.debug("Deleting incomplete build " + entry.getName());
+                delete(entry);
+            } else if (!entry.equals(current) && new File(entry, STAMP_FILE).isFile()) {
+                complete.add(entry);
+            }
+        }
+        Collections.sort(complete, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                long lastUsedA = new File(a, STAMP_FILE).lastModified();
+                long lastUsedB = new File(b, STAMP_FILE).lastModified();
+                return lastUsedA > lastUsedB ? -1 : (lastUsedA < lastUsedB ? 1 : 0);
+            }
+        });
+        for (int i = maxEntries - 1; i < complete.size(); i++) {
+            File entry = complete.get(i);
+            if (IN_USE.containsKey(entry)) {
+                continue;
+            }
+            try {
+                RandomAccessFile file = new RandomAccessFile(new File(entry, IN_USE_FILE), "rw");
+                try {
+                    if (file.getChannel().tryLock() == null) {
+                        Logger.debug("Keeping cached build " + entry.getName() + ", another bridge uses it");
+                        continue;
+                    }
+                    Logger.debug("Evicting cached build " + entry.getName());
+                    delete(entry);
+                } finally {
+                    file.close();
+                }
+            } catch (IOException e) {
+                Logger.warn("Can't evict cached build " + entry.getName() + " - " + e.getMessage());
+            }
+        }
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    private static <T> void addAll(List<? super T> target, List<T> values) {
+        if (values != null) {
+            target.addAll(values);
+        }
+    }
+
+    private static void update(MessageDigest digest, String value) throws IOException {
+        digest.update(value.getBytes("UTF-8"));
+        digest.update((byte) 0);
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * Shared lock on an entry's in use file, held while bridges of this JVM
+     * use the entry
+     */
+    private static class EntryLock {
+        final RandomAccessFile file;
+        final FileLock lock;
+        int users;
+
+        EntryLock(RandomAccessFile file, FileLock lock) {
+            this.file = file;
+            this.lock = lock;
+        }
+
+        void close() {
+            try {
+                lock.release();
+                file.close();
+            } catch (IOException e) {
+                Logger.warn("Can't unlock cached build - " + e.getMessage());
+            }
+        }
+    }
+
+    private static class FileDigest {
+        final long length;
+        final long lastModified;
+        final byte[] digest;
+
+        FileDigest(long length, long lastModified, byte[] digest) {
+            this.length = length;
+            this.lastModified = lastModified;
+            this.digest = digest;
+        }
+    }
+}
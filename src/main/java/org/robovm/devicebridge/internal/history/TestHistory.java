@@ -0,0 +1,318 @@
+/*
+ * Copyright (C) 2014 Trillian Mobile AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.robovm.devicebridge.internal.history;
+
+import org.junit.runner.Description;
+import org.robovm.devicebridge.ResultObject;
+import org.robovm.devicebridge.internal.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Duration and outcome of every test seen in earlier runs, used to put the
+ * tests most likely to fail and the longest ones first.
+ */
+public class TestHistory {
+
+    static final int MAGIC = 0x52564d48;
+    static final int VERSION = 1;
+
+    /** A failure in one of this many last runs puts the test first */
+    public static final int RECENT_RUNS = 3;
+
+    /** Tests not seen in this many runs are forgotten */
+    public static final int MAX_AGE_RUNS = 50;
+
+    private final File file;
+    private final Map<String, Record> records = new HashMap<String, Record>();
+    private final Map<String, Long> started = new HashMap<String, Long>();
+    private int runs;
+
+    /**
+     * Load the history kept in the user's home, starting empty if there is
+     * none
+     */
+    public TestHistory() {
+        this(new File(System.getProperty("user.home"), ".robovm/junitbridge/history"));
+    }
+
+    /**
+     * Load the history kept in a file, starting empty if there is none
+     *
+     * @param file
+     */
+    public TestHistory(File file) {
+        this.file = file;
+        if (file.isFile()) {
+            try {
+                read();
+            } catch (IOException e) {
+                Logger.warn("Ignoring unreadable test history " + e.getMessage());
+                records.clear();
+                runs = 0;
+            }
+        }
+    }
+
+    /**
+     * Start recording a new run
+     */
+    public synchronized void beginRun() {
+        runs++;
+    }
+
+    public void record(ResultObject result) {
+        /* prefer the device's clock, it isn't skewed by transport delays */
+        long time = result.getTimestamp() != 0 ? result.getTimestamp() / 1000000 : System.currentTimeMillis();
+        record(result, time);
+    }
+
+    /**
+     * Record a result received at the given time
+     *
+     * @param result
+     * @param time
+     *            in milliseconds
+     */
+    public synchronized void record(ResultObject result, long time) {
+        Description description;
+        switch (result.getResultType()) {
+        case ResultObject.TEST_STARTED:
+            description = result.getDescription();
+            if (isTest(description)) {
+                started.put(startKey(result, description), time);
+            }
+            break;
+
+        case ResultObject.TEST_ATTEMPT_FAILED:
+            /* flaky tests count as failed, they should run first too */
+            description = result.getFailure() == null ? null : result.getFailure().getDescription();
+            if (isTest(description)) {
+                started.remove(startKey(result, description));
+                getRecord(key(description)).lastFailedRun = runs;
+            }
+            break;
+
+        case ResultObject.TEST_FAILURE:
+            /* a failed test sends no TEST_FINISHED, its failure ends it */
+            description = result.getFailure() == null ? null : result.getFailure().getDescription();
+            if (isTest(description)) {
+                finished(result, description, time).lastFailedRun = runs;
+            }
+            break;
+
+        case ResultObject.TEST_FINISHED:
+            description = result.getDescription();
+            if (isTest(description)) {
+                finished(result, description, time);
+            }
+            break;
+
+        case ResultObject.RUNNER_CRASHED:
+            /* the tests the runner was running won't finish */
+            String prefix = result.getDeviceId() + " ";
+            for (Iterator<String> it = started.keySet().iterator(); it.hasNext();) {
+                if (it.next().startsWith(prefix)) {
+                    it.remove();
+                }
+            }
+            break;
+        }
+    }
+
+    private Record finished(ResultObject result, Description description, long time) {
+        Long start = started.remove(startKey(result, description));
+        Record record = getRecord(key(description));
+        if (start != null) {
+            int duration = (int) Math.min(time - start, Integer.MAX_VALUE);
+            /* average with earlier runs to smooth out slow outliers */
+            record.duration = record.lastRun < 0 ? duration : (record.duration + duration) / 2;
+        }
+        record.lastRun = runs;
+        return record;
+    }
+
+    /**
+     * Order tests: those that failed recently first, the most recent failure
+     * first; then tests never seen before; then the rest by descending
+     * duration. Whole class entries count with the sum of their methods.
+     *
+     * @param tests
+     *            Class or Class#method entries
+     * @return ordered copy
+     */
+    public synchronized List<String> order(List<String> tests) {
+        final Map<String, Record> summaries = new HashMap<String, Record>();
+        for (String test : tests) {
+            summaries.put(test, summarize(test));
+        }
+        List<String> ordered = new ArrayList<String>(tests);
+        Collections.sort(ordered, new Comparator<String>() {
+            @Override
+            public int compare(String a, String b) {
+                return rank(summaries.get(a), summaries.get(b));
+            }
+        });
+        return ordered;
+    }
+
+    /**
+     * Write the history back to its file, forgetting tests not seen for
+     * {@link #MAX_AGE_RUNS} runs
+     *
+     * @throws IOException
+     */
+    public synchronized void save() throws IOException {
+        for (Iterator<Record> it = records.values().iterator(); it.hasNext();) {
+            Record record = it.next();
+            if (runs - Math.max(record.lastRun, record.lastFailedRun) > MAX_AGE_RUNS) {
+                it.remove();
+            }
+        }
+
+        File directory = file.getAbsoluteFile().getParentFile();
+        directory.mkdirs();
+        /* bridges running at once each write a file of their own, the last rename wins */
+        File temp = File.createTempFile(file.getName() + "-", ".tmp", directory);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(runs);
+            out.writeInt(records.size());
+            for (Map.Entry<String, Record> entry : records.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeInt(entry.getValue().duration);
+                out.writeInt(entry.getValue().lastRun);
+                out.writeInt(entry.getValue().lastFailedRun);
+            }
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(file)) {
+            file.delete();
+            if (!temp.renameTo(file)) {
+                temp.delete();
+                throw new IOException("Could not write test history to " + file);
+            }
+        }
+    }
+
+    private void read() throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("Unknown test history format");
+            }
+            runs = in.readInt();
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String key = in.readUTF();
+                Record record = new Record();
+                record.duration = in.readInt();
+                record.lastRun = in.readInt();
+                record.lastFailedRun = in.readInt();
+                records.put(key, record);
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private int rank(Record a, Record b) {
+        boolean failedA = isRecentFailure(a);
+        boolean failedB = isRecentFailure(b);
+        if (failedA != failedB) {
+            return failedA ? -1 : 1;
+        }
+        if (failedA && a.lastFailedRun != b.lastFailedRun) {
+            return a.lastFailedRun > b.lastFailedRun ? -1 : 1;
+        }
+        boolean knownA = a.lastRun >= 0;
+        boolean knownB = b.lastRun >= 0;
+        if (knownA != knownB) {
+            return knownA ? 1 : -1;
+        }
+        return a.duration > b.duration ? -1 : (a.duration < b.duration ? 1 : 0);
+    }
+
+    private boolean isRecentFailure(Record record) {
+        return record.lastFailedRun >= 0 && runs - record.lastFailedRun < RECENT_RUNS;
+    }
+
+    /**
+     * @return record of a Class#method entry, or the sum over the methods of
+     *         a whole class entry
+     */
+    private Record summarize(String test) {
+        if (test.contains("#")) {
+            Record record = records.get(test);
+            return record != null ? record : new Record();
+        }
+        Record summary = new Record();
+        String prefix = test + "#";
+        for (Map.Entry<String, Record> entry : records.entrySet()) {
+            if (entry.getKey().startsWith(prefix)) {
+                Record record = entry.getValue();
+                summary.duration += record.duration;
+                summary.lastRun = Math.max(summary.lastRun, record.lastRun);
+                summary.lastFailedRun = Math.max(summary.lastFailedRun, record.lastFailedRun);
+            }
+        }
+        return summary;
+    }
+
+    private Record getRecord(String key) {
+        Record record = records.get(key);
+        if (record == null) {
+            record = new Record();
+            records.put(key, record);
+        }
+        return record;
+    }
+
+    private static boolean isTest(Description description) {
+        return description != null && description.getMethodName() != null;
+    }
+
+    private static String key(Description description) {
+        return description.getClassName() + "#" + description.getMethodName();
+    }
+
+    private static String startKey(ResultObject result, Description description) {
+        return result.getDeviceId() + " " + key(description);
+    }
+
+    private static class Record {
+        int duration;
+        int lastRun = -1;
+        int lastFailedRun = -1;
+    }
+}
@@ -0,0 +1,271 @@
+/*
+ * Copyright (C) 2014 Trillian Mobile AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.robovm.devicebridge.internal.journal;
+
+import org.robovm.devicebridge.ResultObject;
+import org.robovm.devicebridge.internal.protocol.BinaryResultCodec;
+import org.robovm.devicebridge.internal.protocol.ResultCodec;
+import rx.Observable;
+import rx.Subscriber;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Append-only record of the results a bridge emitted, with the time each was
+ * received, for replaying them later with {@link #replay(File, double)}.
+ * <p>
+ * The file is written through memory-mapped segments of at least
+ * {@link #SEGMENT_SIZE} bytes, so recording a result costs no system call.
+ * Records are written before their length, and the unwritten part of a
+ * segment reads as zeros: a journal whose bridge died is readable up to the
+ * last complete record. {@link #close()} trims the file to what was written.
+ */
+public class EventJournal implements Closeable {
+
+    static final int MAGIC = 0x52564d4a;
+    static final int VERSION = 1;
+    static final int SEGMENT_SIZE = 4 * 1024 * 1024;
+
+    /* length, then receivedAt, encodeTime and decodeTime */
+    private static final int RECORD_HEADER = 4 + 3 * 8;
+
+    private final File file;
+    private final RandomAccessFile raf;
+    private final FileChannel channel;
+    /* results are encoded in order by a single codec, like on the wire */
+    private final ResultCodec codec = new BinaryResultCodec();
+    private MappedByteBuffer segment;
+    private long position;
+    private long records;
+    private boolean closed;
+
+    /**
+     * Start a journal, replacing whatever the file held
+     *
+     * @param file
+     * @throws IOException
+     */
+    public EventJournal(File file) throws IOException {
+        this.file = file;
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (!parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Could not create " + parent);
+        }
+        raf = new RandomAccessFile(file, "rw");
+        raf.setLength(0);
+        channel = raf.getChannel();
+        reserve(8);
+        segment.putInt(MAGIC);
+        segment.putInt(VERSION);
+        position = 8;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * @return number of results recorded so far
+     */
+    public synchronized long getRecords() {
+        return records;
+    }
+
+    /**
+     * Append a result
+     *
+     * @param result
+     *            result as emitted by the bridge, with its device id and
+     *            receive time
+     * @throws IOException
+     */
+    public synchronized void record(ResultObject result) throws IOException {
+        if (closed) {
+            throw new IOException("Journal " + file + " is closed");
+        }
+        /* encoding sets the encode time, leave the original alone */
+        byte[] frame = codec.encode(copy(result));
+        byte[] deviceId = result.getDeviceId() == null ? null : result.getDeviceId().getBytes("UTF-8");
+        int length = RECORD_HEADER - 4 + 2 + (deviceId == null ? 0 : deviceId.length) + frame.length;
+
+        reserve(4 + length);
+        int start = segment.position();
+        segment.position(start + 4);
+        segment.putLong(result.getReceivedAt());
+        segment.putLong(result.getEncodeTime());
+        segment.putLong(result.getDecodeTime());
+        if (deviceId == null) {
+            segment.putShort((short) -1);
+        } else {
+            segment.putShort((short) deviceId.length);
+            segment.put(deviceId);
+        }
+        segment.put(frame);
+        /* a record counts once its length is there */
+        segment.putInt(start, length);
+        position += 4 + length;
+        records++;
+    }
+
+    /**
+     * Write what was recorded so far to the disk
+     */
+    public synchronized void force() {
+        if (segment != null) {
+            segment.force();
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            force();
+            segment = null;
+            channel.truncate(position);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Map a new segment at the end of the journal unless the current one has
+     * room for the given number of bytes
+     */
+    private void reserve(int bytes) throws IOException {
+        if (segment == null || segment.remaining() < bytes) {
+            segment = channel.map(FileChannel.MapMode.READ_WRITE, position, Math.max(SEGMENT_SIZE, bytes));
+        }
+    }
+
+    private static ResultObject copy(ResultObject result) {
+        ResultObject copy = new ResultObject();
+        copy.setResultType(result.getResultType());
+        copy.setSequence(result.getSequence());
+        copy.setDescription(result.getDescription());
+        copy.setResult(result.getResult());
+        copy.setFailure(result.getFailure());
+        copy.setTimestamp(result.getTimestamp());
+        copy.setOutput(result.getOutput());
+        copy.setAttempt(result.getAttempt());
+        return copy;
+    }
+
+    /**
+     * Emit the results recorded in a journal, from the subscribing thread
+     *
+     * @param file
+     * @param speed
+     *            0 to emit the results as fast as possible, 1 to keep the
+     *            time between them as it was when they were received, 2 for
+     *            twice as fast and so on
+     * @return results with the device id and the times recorded
+     */
+    public static Observable<ResultObject> replay(final File file, final double speed) {
+        if (speed < 0) {
+            throw new IllegalArgumentException("Replay speed must not be negative");
+        }
+        return Observable.create(new Observable.OnSubscribe<ResultObject>() {
+            @Override
+            public void call(Subscriber<? super ResultObject> subscriber) {
+                try {
+                    replay(file, speed, subscriber);
+                } catch (Exception e) {
+                    subscriber.onError(e);
+                }
+            }
+        });
+    }
+
+    private static void replay(File file, double speed, Subscriber<? super ResultObject> subscriber)
+            throws IOException, InterruptedException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("Unknown journal format " + file);
+            }
+            ResultCodec codec = new BinaryResultCodec();
+            long startedAt = System.nanoTime();
+            long firstReceivedAt = 0;
+            boolean first = true;
+
+            while (!subscriber.isUnsubscribed()) {
+                byte[] record;
+                try {
+                    int length = in.readInt();
+                    if (length <= 0) {
+                        /* rest of the last segment, never written */
+                        break;
+                    }
+                    record = new byte[length];
+                    in.readFully(record);
+                } catch (EOFException e) {
+                    /* cut short, keep what is complete */
+                    break;
+                }
+
+                ByteBuffer buffer = ByteBuffer.wrap(record);
+                long receivedAt = buffer.getLong();
+                long encodeTime = buffer.getLong();
+                long decodeTime = buffer.getLong();
+                int idLength = buffer.getShort();
+                String deviceId = null;
+                if (idLength >= 0) {
+                    deviceId = new String(record, buffer.position(), idLength, "UTF-8");
+                    buffer.position(buffer.position() + idLength);
+                }
+                ResultObject result = codec.read(buffer);
+                if (result == null) {
+                    throw new IOException("Corrupt journal record in " + file);
+                }
+                result.setDeviceId(deviceId);
+                result.setReceivedAt(receivedAt);
+                result.setEncodeTime(encodeTime);
+                result.setDecodeTime(decodeTime);
+
+                if (first) {
+                    firstReceivedAt = receivedAt;
+                    first = false;
+                }
+                if (speed > 0) {
+                    long due = startedAt + (long) ((receivedAt - firstReceivedAt) / speed);
+                    long wait = due - System.nanoTime();
+                    if (wait > 0) {
+                        TimeUnit.NANOSECONDS.sleep(wait);
+                    }
+                }
+                subscriber.onNext(result);
+            }
+            subscriber.onCompleted();
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,30 @@
+/*
+ * Copyright (C) 2014 Trillian Mobile AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.robovm.devicebridge.internal.listener;
+
+import org.robovm.apple.foundation.Foundation;
+import org.robovm.devicebridge.internal.Logger;
+
+/**
+ * Sends the runner's log to NSLog, where the device log picks it up
+ */
+public class FoundationAppender implements Logger.Appender {
+
+    @Override
+    public void append(String message) {
+        Foundation.log(message);
+    }
+}
@@ -0,0 +1,237 @@
+/*
+ * Copyright (C) 2014 Trillian Mobile AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.robovm.devicebridge.internal.listener;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.UnsupportedEncodingException;
+
+/**
+ * Captures what a test prints to System.out and System.err while still
+ * letting it through to the device log. Capture is per thread, from
+ * {@link #start()} to {@link #stop()}, so tests running in parallel keep their
+ * output apart; output of threads the test starts itself isn't captured.
+ * <p>
+ * Each stream keeps at most {@link #HEAD_SIZE} bytes from the start of the
+ * output and the last {@link #TAIL_SIZE} bytes, dropping what is in between.
+ */
+public class OutputCapture {
+
+    static final int HEAD_SIZE = 8192;
+    static final int TAIL_SIZE = 8192;
+
+    private static final ThreadLocal<OutputCapture> current = new ThreadLocal<OutputCapture>();
+    private static PrintStream originalOut;
+    private static PrintStream originalErr;
+
+    private final Buffer out = new Buffer(HEAD_SIZE, TAIL_SIZE);
+    private final Buffer err = new Buffer(HEAD_SIZE, TAIL_SIZE);
+
+    /**
+     * Replace System.out and System.err with streams that capture, once
+     */
+    public static synchronized void install() {
+        if (originalOut != null) {
+            return;
+        }
+        originalOut = System.out;
+        originalErr = System.err;
+        System.setOut(new PrintStream(new Tee(originalOut, false), true));
+        System.setErr(new PrintStream(new Tee(originalErr, true), true));
+    }
+
+    /**
+     * Put back the System.out and System.err that {@link #install()} replaced
+     *
+     * @return whether the streams had been replaced
+     */
+    public static synchronized boolean uninstall() {
+        if (originalOut == null) {
+            return false;
+        }
+        System.setOut(originalOut);
+        System.setErr(originalErr);
+        originalOut = null;
+        originalErr = null;
+        return true;
+    }
+
+    /**
+     * Start capturing the current thread's output, discarding whatever it
+     * captured before
+     */
+    public static void start() {
+        current.set(new OutputCapture());
+    }
+
+    /**
+     * Stop capturing the current thread's output
+     *
+     * @return what was captured, null if nothing was being captured
+     */
+    public static OutputCapture stop() {
+        OutputCapture capture = current.get();
+        current.remove();
+        return capture;
+    }
+
+    /**
+     * @return what went to System.out
+     */
+    public Buffer getOut() {
+        return out;
+    }
+
+    /**
+     * @return what went to System.err
+     */
+    public Buffer getErr() {
+        return err;
+    }
+
+    /**
+     * Bounded byte buffer keeping the start and the end of what was written
+     */
+    public static class Buffer {
+        private final byte[] head;
+        private final byte[] tail;
+        private int headLength;
+        /* bytes written past the head, the last tail.length of them are kept */
+        private long tailCount;
+
+        public Buffer(int headSize, int tailSize) {
+            head = new byte[headSize];
+            tail = new byte[tailSize];
+        }
+
+        public synchronized void write(byte[] bytes, int offset, int length) {
+            int toHead = Math.min(length, head.length - headLength);
+            System.arraycopy(bytes, offset, head, headLength, toHead);
+            headLength += toHead;
+            offset += toHead;
+            length -= toHead;
+            if (length > tail.length) {
+                tailCount += length - tail.length;
+                offset += length - tail.length;
+                length = tail.length;
+            }
+            while (length > 0) {
+                int position = (int) (tailCount % tail.length);
+                int count = Math.min(length, tail.length - position);
+                System.arraycopy(bytes, offset, tail, position, count);
+                tailCount += count;
+                offset += count;
+                length -= count;
+            }
+        }
+
+        public synchronized boolean isEmpty() {
+            return headLength == 0;
+        }
+
+        /**
+         * @return bytes written but not kept
+         */
+        public synchronized long getDropped() {
+            return Math.max(0, tailCount - tail.length);
+        }
+
+        @Override
+        public synchronized String toString() {
+            int kept = (int) Math.min(tailCount, tail.length);
+            byte[] bytes = new byte[headLength + kept];
+            System.arraycopy(head, 0, bytes, 0, headLength);
+            int position = (int) (tailCount % tail.length);
+            int start = tailCount > tail.length ? position : 0;
+            int first = Math.min(kept, tail.length - start);
+            System.arraycopy(tail, start, bytes, headLength, first);
+            System.arraycopy(tail, 0, bytes, headLength + first, kept - first);
+            try {
+                long dropped = getDropped();
+                if (dropped == 0) {
+                    /* head and tail join up, characters may span them */
+                    return new String(bytes, "UTF-8");
+                }
+                /* don't decode the halves of characters cut where bytes were dropped */
+                int headEnd = characterStart(bytes, headLength);
+                int tailStart = headLength;
+                while (tailStart < bytes.length && isContinuation(bytes[tailStart])) {
+                    tailStart++;
+                }
+                dropped += headLength - headEnd + tailStart - headLength;
+                return new String(bytes, 0, headEnd, "UTF-8") + "\n[... " + dropped + " bytes dropped ...]\n"
+                        + new String(bytes, tailStart, bytes.length - tailStart, "UTF-8");
+            } catch (UnsupportedEncodingException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        /**
+         * @return end to decode up to: the start of a UTF-8 sequence that is
+         *         cut off at the end, or the end itself
+         */
+        private static int characterStart(byte[] bytes, int end) {
+            int start = end - 1;
+            while (start > 0 && end - start < 4 && isContinuation(bytes[start])) {
+                start--;
+            }
+            if (start < 0) {
+                return end;
+            }
+            int lead = bytes[start] & 0xFF;
+            int length = lead >= 0xF0 ? 4 : lead >= 0xE0 ? 3 : lead >= 0xC0 ? 2 : 1;
+            return start + length > end ? start : end;
+        }
+
+        private static boolean isContinuation(byte b) {
+            return (b & 0xC0) == 0x80;
+        }
+    }
+
+    /**
+     * Writes through to the original stream and to the current thread's
+     * capture, if any
+     */
+    private static class Tee extends OutputStream {
+        private final PrintStream original;
+        private final boolean error;
+
+        Tee(PrintStream original, boolean error) {
+            this.original = original;
+            this.error = error;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            original.write(bytes, offset, length);
+            OutputCapture capture = current.get();
+            if (capture != null) {
+                (error ? capture.err : capture.out).write(bytes, offset, length);
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            original.flush();
+        }
+    }
+}
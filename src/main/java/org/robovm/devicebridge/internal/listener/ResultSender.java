@@ -0,0 +1,666 @@
+/*
+ * Copyright (C) 2014 Trillian Mobile AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.robovm.devicebridge.internal.listener;
+
+import org.robovm.devicebridge.ResultObject;
+import org.robovm.devicebridge.internal.Constant;
+import org.robovm.devicebridge.internal.Logger;
+import org.robovm.devicebridge.internal.protocol.Handshake;
+import org.robovm.devicebridge.internal.protocol.ResultCodec;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.ConnectException;
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Sends results to the host from a dedicated thread. Events are queued by the
+ * JUnit thread and written in batches, a batch being closed once it holds
+ * {@link #BATCH_SIZE} events or {@link #BATCH_WINDOW_MS} have elapsed since
+ * its first event.
+ * <p>
+ * Every frame carries a sequence number and is kept until the host
+ * acknowledges it. If the connection drops, the sender reconnects and resends
+ * whatever has not been acknowledged yet; the host drops duplicates.
+ * <p>
+ * When the host asks for it, frames are deflated on their way out. The
+ * compression context lasts as long as the connection and is flushed at
+ * the end of every batch, so no event waits for more to arrive.
+ * <p>
+ * Captured test output travels on the same connection but has a queue of its
+ * own: a few chunks of it follow each batch of results, so a chatty test never
+ * holds up the events behind it. Output that doesn't fit the queue is dropped.
+ * <p>
+ * When the host watches for hung runners, the sender sends a heartbeat
+ * whenever it has had nothing to send for {@link Constant#HEARTBEAT_INTERVAL_MS},
+ * and answers the host's requests for a thread dump. Both happen on threads
+ * of the sender's own, so they keep working while a test hangs.
+ */
+public class ResultSender {
+
+    static final int QUEUE_CAPACITY = 1024;
+    static final int BATCH_SIZE = 64;
+    static final long BATCH_WINDOW_MS = 50;
+    static final int MAX_UNACKED = 4096;
+    static final int RECONNECT_ATTEMPTS = 10;
+    static final long RECONNECT_BACKOFF_MS = 100;
+    static final long CLOSE_TIMEOUT_MS = 30000;
+    static final int HANDSHAKE_TIMEOUT_MS = 10000;
+    static final int CONNECT_ATTEMPTS = 10;
+    static final int OUTPUT_QUEUE_CAPACITY = 256;
+    static final int OUTPUT_CHUNK_SIZE = 4096;
+    static final int OUTPUT_CHUNKS_PER_BATCH = 4;
+
+    /* queue markers, compared by identity */
+    private static final ResultObject FLUSH = new ResultObject();
+    private static final ResultObject CLOSE = new ResultObject();
+    private static final ResultObject OUTPUT = new ResultObject();
+
+    private final String host;
+    private final int port;
+    private final String deviceId;
+    private final String token;
+    private final BlockingQueue<ResultObject> queue = new ArrayBlockingQueue<ResultObject>(QUEUE_CAPACITY);
+    private final BlockingQueue<ResultObject> outputQueue = new ArrayBlockingQueue<ResultObject>(
+            OUTPUT_QUEUE_CAPACITY);
+    private final Thread thread;
+
+    private final Object lock = new Object();
+    private final ArrayDeque<Frame> unacked = new ArrayDeque<Frame>();
+    private long submitted;
+    private long written;
+    private long acknowledged;
+    private boolean connectionLost;
+    private boolean stopped;
+    private boolean servingTests;
+    private boolean acceptingOutput;
+    private boolean watched;
+    private long droppedOutput;
+    private long lastAssigned;
+    private final Map<Long, String> assignments = new HashMap<Long, String>();
+
+    private long nextSequence = 1;
+    private int formats = Handshake.FORMAT_BINARY | Handshake.FORMAT_JSON | Handshake.COMPRESS_DEFLATE;
+    private ResultCodec codec;
+    private Socket socket;
+    private OutputStream out;
+
+    /* set while the host wants the frames compressed, used by the sender thread only */
+    private Deflater deflater;
+    private DeflaterOutputStream deflating;
+    private final ByteArrayOutputStream deflated = new ByteArrayOutputStream();
+    private long rawBytes;
+    private long deflatedBytes;
+    private long deflateNanos;
+
+    public ResultSender(String host, int port, String deviceId) throws IOException {
+        this(host, port, deviceId, null);
+    }
+
+    /**
+     * @param host
+     * @param port
+     * @param deviceId
+     * @param token
+     *            session token the runner was launched with, null for none
+     * @throws IOException
+     */
+    public ResultSender(String host, int port, String deviceId, String token) throws IOException {
+        this.host = host;
+        this.port = port;
+        this.deviceId = deviceId;
+        this.token = token;
+
+        connectRetrying();
+
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                sendLoop();
+            }
+        }, "RoboTestListener-sender");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Queue a result for sending, blocking only while the queue is full
+     *
+     * @param message
+     * @throws InterruptedException
+     */
+    public void send(ResultObject message) throws InterruptedException {
+        synchronized (lock) {
+            if (stopped) {
+                throw new IllegalStateException("Connection to host died");
+            }
+            submitted++;
+        }
+        queue.put(message);
+    }
+
+    /**
+     * Queue captured output for sending, never blocking. The output is split
+     * into chunks that each carry the message's type and description; chunks
+     * that don't fit the output queue are dropped.
+     *
+     * @param message
+     *            TEST_OUTPUT or TEST_ERROR_OUTPUT result
+     */
+    public void sendOutput(ResultObject message) {
+        synchronized (lock) {
+            if (stopped || !acceptingOutput) {
+                return;
+            }
+        }
+        String output = message.getOutput();
+        for (int start = 0; start < output.length(); start += OUTPUT_CHUNK_SIZE) {
+            ResultObject chunk = new ResultObject();
+            chunk.setResultType(message.getResultType());
+            chunk.setDescription(message.getDescription());
+            chunk.setTimestamp(message.getTimestamp());
+            chunk.setOutput(output.substring(start, Math.min(output.length(), start + OUTPUT_CHUNK_SIZE)));
+            if (!outputQueue.offer(chunk)) {
+                synchronized (lock) {
+                    droppedOutput += output.length() - start;
+                }
+                break;
+            }
+        }
+        /* wakes the sender up, if the queue is full it is busy anyway */
+        queue.offer(OUTPUT);
+    }
+
+    /**
+     * Wait until every queued result has been written to the host
+     *
+     * @throws InterruptedException
+     */
+    public void flush() throws InterruptedException {
+        long target;
+        synchronized (lock) {
+            if (stopped) {
+                return;
+            }
+            target = submitted;
+        }
+        queue.put(FLUSH);
+        synchronized (lock) {
+            while (written < target && !stopped) {
+                lock.wait();
+            }
+        }
+    }
+
+    /**
+     * @return whether the host hands out the tests to run, see
+     *         {@link #requestTest()}
+     */
+    public boolean isHostServingTests() {
+        synchronized (lock) {
+            return servingTests;
+        }
+    }
+
+    /**
+     * Ask the host for the next test to run
+     *
+     * @return class or Class#method to run, null once there are no tests left
+     * @throws InterruptedException
+     * @throws IOException
+     *             if the connection to the host died
+     */
+    public String requestTest() throws InterruptedException, IOException {
+        ResultObject request = new ResultObject();
+        request.setResultType(ResultObject.REQUEST_TEST);
+        send(request);
+        flush();
+
+        synchronized (lock) {
+            /* sequence is assigned by the sender thread before flush returns */
+            long sequence = request.getSequence();
+            while (!assignments.containsKey(sequence)) {
+                if (stopped) {
+                    throw new IOException("Connection to host died");
+                }
+                lock.wait();
+            }
+            String test = assignments.remove(sequence);
+            return test.length() == 0 ? null : test;
+        }
+    }
+
+    /**
+     * Flush outstanding results, wait for the host to acknowledge them and
+     * close the host connection
+     *
+     * @throws InterruptedException
+     */
+    public void close() throws InterruptedException {
+        flush();
+        synchronized (lock) {
+            if (stopped) {
+                return;
+            }
+        }
+        queue.put(CLOSE);
+        thread.join();
+    }
+
+    private void sendLoop() {
+        List<ResultObject> batch = new ArrayList<ResultObject>(BATCH_SIZE);
+        try {
+            boolean closing = false;
+
+            while (!closing) {
+                closing = fillBatch(batch);
+                int results = batch.size();
+                /* output follows the results, all of it before the session ends */
+                outputQueue.drainTo(batch, closing ? Integer.MAX_VALUE : OUTPUT_CHUNKS_PER_BATCH);
+                if (!outputQueue.isEmpty()) {
+                    queue.offer(OUTPUT);
+                }
+                if (closing) {
+                    ResultObject end = new ResultObject();
+                    end.setResultType(ResultObject.SESSION_END);
+                    batch.add(end);
+                }
+                if (!batch.isEmpty()) {
+                    transmit(batch);
+                }
+                synchronized (lock) {
+                    written += results;
+                    lock.notifyAll();
+                }
+                batch.clear();
+            }
+            awaitAcknowledgement(nextSequence - 1);
+            if (deflatedBytes > 0) {
+                Logger.debug("Compressed %d bytes to %d in %d ms", rawBytes, deflatedBytes,
+                        TimeUnit.NANOSECONDS.toMillis(deflateNanos));
+            }
+            synchronized (lock) {
+                if (droppedOutput > 0) {
+                    Logger.warn("Dropped " + droppedOutput + " characters of test output");
+                }
+            }
+        } catch (IOException e) {
+            Logger.error("Can't send results - " + e.getMessage(), e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            synchronized (lock) {
+                stopped = true;
+                lock.notifyAll();
+            }
+            queue.clear();
+            outputQueue.clear();
+            disconnect();
+            endDeflater();
+        }
+    }
+
+    /**
+     * Collect the next batch of results
+     *
+     * @param batch
+     * @return true if the sender has been asked to close
+     * @throws InterruptedException
+     */
+    private boolean fillBatch(List<ResultObject> batch) throws InterruptedException {
+        ResultObject message = queue.poll(Constant.HEARTBEAT_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        if (message == null) {
+            synchronized (lock) {
+                if (watched) {
+                    ResultObject heartbeat = new ResultObject();
+                    heartbeat.setResultType(ResultObject.HEARTBEAT);
+                    /* counted like any result, so flush() keeps track */
+                    submitted++;
+                    batch.add(heartbeat);
+                }
+            }
+            return false;
+        }
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(BATCH_WINDOW_MS);
+
+        while (true) {
+            if (message == CLOSE) {
+                return true;
+            }
+            if (message == FLUSH || message == OUTPUT) {
+                return false;
+            }
+            batch.add(message);
+            if (batch.size() >= BATCH_SIZE) {
+                return false;
+            }
+            long remaining = deadline - System.nanoTime();
+            message = remaining > 0 ? queue.poll(remaining, TimeUnit.NANOSECONDS) : queue.poll();
+            if (message == null) {
+                return false;
+            }
+        }
+    }
+
+    private void transmit(List<ResultObject> batch) throws IOException, InterruptedException {
+        List<Frame> frames = new ArrayList<Frame>(batch.size());
+        for (ResultObject message : batch) {
+            message.setSequence(nextSequence++);
+            frames.add(new Frame(message.getSequence(), codec.encode(message)));
+        }
+
+        boolean reconnect;
+        synchronized (lock) {
+            /* host sets the pace: don't run further ahead than MAX_UNACKED */
+            while (unacked.size() + frames.size() > MAX_UNACKED && !connectionLost) {
+                lock.wait();
+            }
+            unacked.addAll(frames);
+            reconnect = connectionLost;
+        }
+
+        if (reconnect) {
+            reconnect();
+            return;
+        }
+        try {
+            write(frames);
+        } catch (IOException e) {
+            Logger.warn("Lost connection to host - " + e.getMessage());
+            reconnect();
+        }
+    }
+
+    /**
+     * Write frames to the host, deflating them when it asked for it
+     */
+    private void write(List<Frame> frames) throws IOException {
+        if (deflating == null) {
+            for (Frame frame : frames) {
+                out.write(frame.bytes);
+            }
+            out.flush();
+            return;
+        }
+        long start = System.nanoTime();
+        for (Frame frame : frames) {
+            deflating.write(frame.bytes);
+            rawBytes += frame.bytes.length;
+        }
+        /* sync flush: the host can inflate everything written so far */
+        deflating.flush();
+        deflateNanos += System.nanoTime() - start;
+        deflatedBytes += deflated.size();
+        deflated.writeTo(out);
+        deflated.reset();
+        out.flush();
+    }
+
+    private void endDeflater() {
+        if (deflater != null) {
+            deflater.end();
+            deflater = null;
+            deflating = null;
+        }
+    }
+
+    private void awaitAcknowledgement(long sequence) throws IOException, InterruptedException {
+        long deadline = System.currentTimeMillis() + CLOSE_TIMEOUT_MS;
+        while (true) {
+            boolean reconnect;
+            synchronized (lock) {
+                long remaining = deadline - System.currentTimeMillis();
+                while (acknowledged < sequence && !connectionLost && remaining > 0) {
+                    lock.wait(remaining);
+                    remaining = deadline - System.currentTimeMillis();
+                }
+                if (acknowledged >= sequence) {
+                    return;
+                }
+                if (remaining <= 0) {
+                    throw new IOException("Host did not acknowledge results up to " + sequence);
+                }
+                reconnect = connectionLost;
+            }
+            if (reconnect) {
+                reconnect();
+            }
+        }
+    }
+
+    /**
+     * Reopen the connection and resend every frame the host hasn't
+     * acknowledged, in order
+     */
+    private void reconnect() throws IOException, InterruptedException {
+        long backoff = RECONNECT_BACKOFF_MS;
+        IOException lastError = null;
+
+        for (int attempt = 0; attempt < RECONNECT_ATTEMPTS; attempt++) {
+            disconnect();
+            Thread.sleep(backoff);
+            backoff = Math.min(backoff * 2, 5000);
+            try {
+                connect();
+                List<Frame> pending;
+                synchronized (lock) {
+                    pending = new ArrayList<Frame>(unacked);
+                }
+                write(pending);
+                Logger.info("Reconnected to host, resent " + pending.size() + " results");
+                return;
+            } catch (IOException e) {
+                lastError = e;
+            }
+        }
+        throw lastError;
+    }
+
+    /**
+     * Connect for the first time, retrying while nothing listens yet: the
+     * runner may be up before the host
+     */
+    private void connectRetrying() throws IOException {
+        long backoff = RECONNECT_BACKOFF_MS;
+        for (int attempt = 1;; attempt++) {
+            try {
+                connect();
+                return;
+            } catch (ConnectException e) {
+                if (attempt >= CONNECT_ATTEMPTS) {
+                    throw e;
+                }
+                Logger.debug("Host not listening on port " + port + " yet, retrying in " + backoff + " ms");
+            }
+            try {
+                Thread.sleep(backoff);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while connecting to host");
+            }
+            backoff = Math.min(backoff * 2, 5000);
+        }
+    }
+
+    private void connect() throws IOException {
+        final Socket newSocket = new Socket(host, port);
+        newSocket.setTcpNoDelay(true);
+        synchronized (lock) {
+            socket = newSocket;
+            connectionLost = false;
+        }
+        out = new BufferedOutputStream(newSocket.getOutputStream());
+        final BufferedReader reader = new BufferedReader(new InputStreamReader(newSocket.getInputStream(), "UTF-8"));
+
+        Handshake.writeHello(out, formats, deviceId, token);
+        newSocket.setSoTimeout(HANDSHAKE_TIMEOUT_MS);
+        Handshake handshake = Handshake.readReply(reader, deviceId);
+        newSocket.setSoTimeout(0);
+        if (codec == null) {
+            codec = Handshake.createCodec(handshake.getFormat());
+            /* pending frames are encoded in this format, stick to it on reconnect */
+            formats = handshake.getFormat() | (formats & Handshake.COMPRESS_DEFLATE);
+        }
+        /* a new connection starts a new compression context */
+        endDeflater();
+        deflated.reset();
+        if (handshake.isCompressed()) {
+            /* favor speed, the device's CPU is busy running tests */
+            deflater = new Deflater(Deflater.BEST_SPEED);
+            deflating = new DeflaterOutputStream(deflated, deflater, true);
+        }
+        /* frames the host decoded before the connection dropped mustn't be resent */
+        acknowledge(handshake.getAcknowledged());
+        synchronized (lock) {
+            servingTests = handshake.isServingTests();
+            acceptingOutput = handshake.isAcceptingOutput();
+            watched = handshake.isWatching();
+        }
+
+        Thread ackReader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                readAcknowledgements(newSocket, reader);
+            }
+        }, "RoboTestListener-acks");
+        ackReader.setDaemon(true);
+        ackReader.start();
+    }
+
+    private void disconnect() {
+        Socket oldSocket;
+        synchronized (lock) {
+            oldSocket = socket;
+            socket = null;
+        }
+        if (oldSocket != null) {
+            try {
+                oldSocket.close();
+            } catch (IOException e) {
+                Logger.error("Can't close connection to host - " + e.getMessage(), e);
+            }
+        }
+    }
+
+    private void readAcknowledgements(Socket ackSocket, BufferedReader reader) {
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith(Constant.ACK)) {
+                    acknowledge(Long.parseLong(line.substring(Constant.ACK.length()).trim()));
+                } else if (line.startsWith(Constant.TEST)) {
+                    assign(line.substring(Constant.TEST.length()));
+                } else if (line.equals(Constant.DUMP)) {
+                    sendThreadDump();
+                }
+            }
+        } catch (IOException e) {
+            /* handled below */
+        } catch (NumberFormatException e) {
+            Logger.warn("Invalid acknowledgement from host - " + e.getMessage());
+        }
+        synchronized (lock) {
+            if (socket == ackSocket) {
+                connectionLost = true;
+                lock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Queue a dump of every thread's stack without blocking, the JUnit thread
+     * may well be stuck
+     */
+    private void sendThreadDump() {
+        StringBuilder dump = new StringBuilder();
+        for (Map.Entry<Thread, StackTraceElement[]> entry : Thread.getAllStackTraces().entrySet()) {
+            Thread thread = entry.getKey();
+            dump.append('"').append(thread.getName()).append("\" ").append(thread.getState()).append('\n');
+            for (StackTraceElement element : entry.getValue()) {
+                dump.append("\tat ").append(element).append('\n');
+            }
+            dump.append('\n');
+        }
+        ResultObject message = new ResultObject();
+        message.setResultType(ResultObject.THREAD_DUMP);
+        message.setOutput(dump.toString());
+        synchronized (lock) {
+            if (stopped) {
+                return;
+            }
+            submitted++;
+        }
+        if (!queue.offer(message)) {
+            synchronized (lock) {
+                submitted--;
+            }
+            Logger.warn("Could not send thread dump, the send queue is full");
+        }
+    }
+
+    private void assign(String assignment) {
+        int space = assignment.indexOf(' ');
+        long sequence = Long.parseLong(space < 0 ? assignment : assignment.substring(0, space));
+        String test = space < 0 ? "" : assignment.substring(space + 1).trim();
+        synchronized (lock) {
+            /* the host repeats its last answer after a reconnect, keep only the first */
+            if (sequence == lastAssigned) {
+                return;
+            }
+            lastAssigned = sequence;
+            assignments.put(sequence, test);
+            lock.notifyAll();
+        }
+    }
+
+    private void acknowledge(long sequence) {
+        synchronized (lock) {
+            if (sequence <= acknowledged) {
+                return;
+            }
+            acknowledged = sequence;
+            while (!unacked.isEmpty() && unacked.peekFirst().sequence <= sequence) {
+                unacked.removeFirst();
+            }
+            lock.notifyAll();
+        }
+    }
+
+    private static class Frame {
+        final long sequence;
+        final byte[] bytes;
+
+        Frame(long sequence, byte[] bytes) {
+            this.sequence = sequence;
+            this.bytes = bytes;
+        }
+    }
+}
@@ -15,39 +15,76 @@
  */
 package org.robovm.devicebridge.internal.listener;
 
-import com.google.gson.GsonBuilder;
 import org.apache.maven.surefire.report.RunListener;
 import org.junit.runner.Description;
 import org.junit.runner.Result;
 import org.junit.runner.notification.Failure;
-import org.robovm.apple.foundation.Foundation;
 import org.robovm.devicebridge.ResultObject;
-import org.robovm.devicebridge.internal.adapters.AtomicIntegerTypeAdapter;
-import org.robovm.devicebridge.internal.adapters.DescriptionTypeAdapter;
-import org.robovm.devicebridge.internal.adapters.ThrowableTypeAdapter;
+import org.robovm.devicebridge.internal.Logger;
+import org.robovm.devicebridge.internal.adapters.ResultTypeAdapter;
+import org.robovm.devicebridge.internal.protocol.Handshake;
 
 import java.io.IOException;
-import java.io.PrintWriter;
-import java.net.Socket;
 import java.util.ArrayList;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import static org.robovm.devicebridge.ResultObject.*;
 
 /**
  * JUnit RunListener which sends results via a socket to a listening instance
- * (eg. surefire provider)
+ * (eg. surefire provider). Safe to share between tests running in parallel:
+ * results are queued to the sender, whose thread alone writes to the socket.
+ * What each test prints is captured by {@link OutputCapture} and sent once
+ * the test finished. With retries set, a failed test method is reported as
+ * TEST_ATTEMPT_FAILED for the runner to run it again; its TEST_FINISHED or
+ * TEST_FAILURE is sent once it passed or ran out of attempts, and the Result
+ * sent when the run finishes counts only these final verdicts.
  */
 public class RoboTestListener extends org.junit.runner.notification.RunListener {
 
     private final RunListener reporter;
-    private Socket hostSocket;
+    private final ResultSender sender;
 
-    private static ArrayList<String> failedTests = new ArrayList<String>();
+    /** Tests that failed and haven't finished yet, their finish isn't reported */
+    private final Set<Description> failedTests = Collections
+            .newSetFromMap(new ConcurrentHashMap<Description, Boolean>());
+
+    /** Times a failed test is run again */
+    private volatile int retries;
+
+    /** Attempt of tests that are running or being retried, from 1 */
+    private final Map<Description, Integer> attempts = new ConcurrentHashMap<Description, Integer>();
+
+    /** Tests whose failed attempt is to be run again, with its failure */
+    private final Map<Description, Failure> retrying = new ConcurrentHashMap<Description, Failure>();
+
+    /** Failures of attempts that were run again, with their attempt, left out of the run's Result */
+    private final Map<Failure, Integer> retriedFailures = Collections
+            .synchronizedMap(new IdentityHashMap<Failure, Integer>());
+
+    /** Run started on the calling thread, JUnitCore starts and finishes it on the same one */
+    private final ThreadLocal<Description> runs = new ThreadLocal<Description>();
 
     public RoboTestListener(RunListener reporter, String host, String port) throws IOException {
+        this(reporter, host, port, Handshake.DEFAULT_DEVICE_ID);
+    }
+
+    public RoboTestListener(RunListener reporter, String host, String port, String deviceId) throws IOException {
+        this(reporter, host, port, deviceId, null);
+    }
+
+    public RoboTestListener(RunListener reporter, String host, String port, String deviceId, String token)
+            throws IOException {
         this.reporter = reporter;
-        hostSocket = new Socket(host, Integer.parseInt(port));
+        sender = new ResultSender(host, Integer.parseInt(port), deviceId, token);
+        OutputCapture.install();
     }
 
     @Override
@@ -57,33 +94,140 @@ public class RoboTestListener extends org.junit.runner.notification.RunListener
 
     @Override
     public void testRunStarted(Description description) throws Exception {
+        runs.set(description);
         sendToHost(TEST_RUN_STARTED, createDescriptionResult(description, TEST_RUN_STARTED));
     }
 
     @Override
     public void testRunFinished(Result result) throws Exception {
-        sendToHost(TEST_RUN_FINISHED, createResultResult(result, TEST_RUN_FINISHED));
+        ResultObject finished = createResultResult(finalVerdicts(result), TEST_RUN_FINISHED);
+        /* tells the host which run finished when lanes share the listener */
+        finished.setDescription(runs.get());
+        runs.remove();
+        sendToHost(TEST_RUN_FINISHED, finished);
     }
 
     @Override
     public void testStarted(Description description) throws Exception {
+        retrying.remove(description);
+        Integer attempt = attempts.get(description);
+        attempts.put(description, attempt == null ? 1 : attempt + 1);
         sendToHost(TEST_STARTED, createDescriptionResult(description, TEST_STARTED));
+        OutputCapture.start();
     }
 
     @Override
     public void testFinished(Description description) throws Exception {
-        for (String failedTest : failedTests) {
-            if (description.getDisplayName().equals(failedTest)) {
-                return;
-            }
+        OutputCapture capture = OutputCapture.stop();
+        int attempt = getAttempt(description);
+        if (!failedTests.remove(description)) {
+            ResultObject finished = createDescriptionResult(description, TEST_FINISHED);
+            finished.setAttempt(attempt > 1 ? attempt : 0);
+            sendToHost(TEST_FINISHED, finished);
+        }
+        if (!retrying.containsKey(description)) {
+            attempts.remove(description);
+        }
+        if (capture != null) {
+            sendOutput(description, TEST_OUTPUT, capture.getOut());
+            sendOutput(description, TEST_ERROR_OUTPUT, capture.getErr());
         }
-        sendToHost(TEST_FINISHED, createDescriptionResult(description, TEST_FINISHED));
     }
 
     @Override
     public void testFailure(Failure failure) throws Exception {
-        failedTests.add(failure.getDescription().getDisplayName());
-        sendToHost(TEST_FAILURE, createFailureResult(failure, TEST_FAILURE));
+        Description description = failure.getDescription();
+        int attempt = getAttempt(description);
+        /* the first failure of an attempt decides whether it is run again */
+        if (failedTests.add(description) && attempt > 0 && attempt <= retries
+                && description.getMethodName() != null) {
+            retrying.put(description, failure);
+        }
+        if (retrying.containsKey(description)) {
+            retriedFailures.put(failure, attempt);
+            ResultObject result = createFailureResult(failure, TEST_ATTEMPT_FAILED);
+            result.setAttempt(attempt);
+            sendToHost(TEST_ATTEMPT_FAILED, result);
+        } else {
+            ResultObject result = createFailureResult(failure, TEST_FAILURE);
+            result.setAttempt(attempt > 1 ? attempt : 0);
+            sendToHost(TEST_FAILURE, result);
+        }
+    }
+
+    /**
+     * @param retries
+     *            times a failed test method is run again, 0 to report its
+     *            failure right away
+     */
+    public void setRetries(int retries) {
+        this.retries = retries;
+    }
+
+    /**
+     * @param description
+     * @return number of the failed attempt of a test that is to be run again,
+     *         0 if it isn't; the caller runs it again while this is above 0
+     */
+    public int getRetryAttempt(Description description) {
+        return retrying.containsKey(description) ? getAttempt(description) : 0;
+    }
+
+    /**
+     * The test couldn't be run again: report the failure of its last attempt
+     * as its final verdict
+     *
+     * @param description
+     */
+    public void giveUp(Description description) {
+        Failure failure = retrying.remove(description);
+        Integer attempt = attempts.remove(description);
+        if (failure != null) {
+            /* the last attempt's failures are the verdict after all */
+            synchronized (retriedFailures) {
+                for (Iterator<Map.Entry<Failure, Integer>> it = retriedFailures.entrySet().iterator(); it
+                        .hasNext();) {
+                    Map.Entry<Failure, Integer> retried = it.next();
+                    if (retried.getValue().equals(attempt)
+                            && description.equals(retried.getKey().getDescription())) {
+                        it.remove();
+                    }
+                }
+            }
+            ResultObject result = createFailureResult(failure, TEST_FAILURE);
+            result.setAttempt(attempt != null && attempt > 1 ? attempt : 0);
+            sendToHost(TEST_FAILURE, result);
+        }
+    }
+
+    /**
+     * JUnit counts every attempt: leave out the runs and failures of the
+     * attempts that were run again
+     */
+    private Result finalVerdicts(Result result) throws IOException {
+        List<Failure> failures = new ArrayList<Failure>();
+        Set<String> retriedAttempts = new HashSet<String>();
+        List<Failure> all = result.getFailures();
+        synchronized (all) {
+            for (Failure failure : all) {
+                Integer attempt = retriedFailures.remove(failure);
+                if (attempt == null) {
+                    failures.add(failure);
+                } else {
+                    retriedAttempts.add(attempt + " " + failure.getDescription().getDisplayName());
+                }
+            }
+        }
+        if (retriedAttempts.isEmpty()) {
+            return result;
+        }
+        return ResultTypeAdapter.createResult(result.getRunCount() - retriedAttempts.size(),
+                result.getIgnoreCount(), result.getRunTime(), failures);
+    }
+
+    private int getAttempt(Description description) {
+        Integer attempt = attempts.get(description);
+        return attempt == null ? 0 : attempt;
     }
 
     private ResultObject createFailureResult(Failure failure, int type) {
@@ -107,59 +251,53 @@ public class RoboTestListener extends org.junit.runner.notification.RunListener
         return resultObject;
     }
 
-    public void sendToHost(int type, ResultObject message) {
+    private void sendOutput(Description description, int type, OutputCapture.Buffer output) {
+        if (output.isEmpty()) {
+            return;
+        }
+        ResultObject resultObject = createDescriptionResult(description, type);
+        resultObject.setOutput(output.toString());
+        resultObject.setTimestamp(System.nanoTime());
+        sender.sendOutput(resultObject);
+    }
 
-        if (type == TEST_RUN_FINISHED) {
-            try {
-                transmit(message);
-                hostSocket.close();
-            } catch (Exception e) {
-                e.printStackTrace();
-            }
-        } else {
-            try {
-                transmit(message);
-            } catch (Exception e) {
-                Foundation.log("Can't send result " + type + " - " + e.getMessage());
-                for (StackTraceElement stackTraceElement : e.getStackTrace()) {
-                    Foundation.log("\t" + stackTraceElement.toString());
-                }
-                ;
-                e.printStackTrace();
+    public void sendToHost(int type, ResultObject message) {
+        try {
+            message.setTimestamp(System.nanoTime());
+            sender.send(message);
+            if (type == TEST_RUN_FINISHED) {
+                sender.flush();
             }
+        } catch (Exception e) {
+            Logger.error("Can't send result " + type + " - " + e.getMessage(), e);
         }
     }
 
-    private void transmit(ResultObject message) throws IOException, InterruptedException {
+    /**
+     * @return whether the host hands out the tests to run
+     */
+    public boolean isHostServingTests() {
+        return sender.isHostServingTests();
+    }
 
-        if (hostSocket == null) {
-            throw new RuntimeException("Connection to host died");
-        } else {
-            Foundation.log("Transmitting to host");
-            // if (hostSocket.isConnected()) {
-            // Foundation.log("socket connected");
-            // } else {
-            // Foundation.log("socket not connected");
-            // }
-
-            PrintWriter writer;
-
-            String transmitMessage = new GsonBuilder()
-                    .registerTypeAdapter(Description.class, new DescriptionTypeAdapter())
-                    .registerTypeAdapter(AtomicInteger.class, new AtomicIntegerTypeAdapter())
-                    .registerTypeAdapter(Failure.class, new DescriptionTypeAdapter.FailureTypeAdapter())
-                    .registerTypeAdapter(Throwable.class, new ThrowableTypeAdapter())
-                    .create().toJson(message);
-
-            Foundation.log("GSON created");
-            Foundation.log("Sending : " + transmitMessage);
-            writer = new PrintWriter(hostSocket.getOutputStream(), true);
-            writer.println(transmitMessage);
-            writer.flush();
-            /* Give server time to process response */
-            Thread.sleep(2000);
+    /**
+     * Ask the host for the next test to run
+     *
+     * @return class or Class#method to run, null once there are no tests left
+     * @throws InterruptedException
+     * @throws IOException
+     */
+    public String requestTest() throws InterruptedException, IOException {
+        return sender.requestTest();
+    }
 
-        }
+    /**
+     * Send any outstanding results and close the connection to the host
+     *
+     * @throws InterruptedException
+     */
+    public void close() throws InterruptedException {
+        sender.close();
     }
 
 }
@@ -0,0 +1,277 @@
+/*
+ * Copyright (C) 2014 Trillian Mobile AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.robovm.devicebridge.internal.metrics;
+
+import org.junit.runner.Description;
+import org.robovm.devicebridge.ResultObject;
+import org.robovm.devicebridge.internal.Logger;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collects timings of the results a bridge server receives and publishes them
+ * over JMX as org.robovm.devicebridge:type=Bridge,port=&lt;port&gt;. Results
+ * are recorded from the server thread; the getters may be called from any
+ * thread.
+ */
+public class BridgeMetrics implements BridgeMetricsMBean {
+
+    static final String DOMAIN = "org.robovm.devicebridge";
+
+    /** Seconds over which the event rate is averaged */
+    static final int RATE_WINDOW = 10;
+
+    private final AtomicLong events = new AtomicLong();
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLong compressedBytes = new AtomicLong();
+    private final AtomicLong inflatedBytes = new AtomicLong();
+    private final AtomicLong inflateNanos = new AtomicLong();
+    private final long[] rateSeconds = new long[RATE_WINDOW + 1];
+    private final long[] rateCounts = new long[RATE_WINDOW + 1];
+
+    private final LatencyHistogram encodeTime = new LatencyHistogram();
+    private final LatencyHistogram decodeTime = new LatencyHistogram();
+    private final LatencyHistogram lag = new LatencyHistogram();
+    private final LatencyHistogram testDuration = new LatencyHistogram();
+
+    /** Smallest receive time minus device time seen per device, the clocks aren't related */
+    private final Map<String, Long> clockOffsets = new HashMap<String, Long>();
+    private final Map<String, Long> testsStarted = new HashMap<String, Long>();
+
+    private ObjectName name;
+
+    /**
+     * Publish over JMX, failing quietly where JMX isn't available
+     *
+     * @param port
+     *            port of the server
+     */
+    public void register(int port) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName objectName = new ObjectName(DOMAIN + ":type=Bridge,port=" + port);
+            if (server.isRegistered(objectName)) {
+                server.unregisterMBean(objectName);
+            }
+            server.registerMBean(this, objectName);
+            name = objectName;
+        } catch (Exception e) {
+            Logger.warn("Could not register bridge metrics " + e.getMessage());
+        }
+    }
+
+    public void unregister() {
+        if (name == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+        } catch (Exception e) {
+            Logger.warn("Could not unregister bridge metrics " + e.getMessage());
+        }
+        name = null;
+    }
+
+    public void bytesReceived(int count) {
+        bytes.addAndGet(count);
+    }
+
+    /**
+     * Record bytes of a compressed stream and what they inflated to
+     *
+     * @param compressed
+     * @param inflated
+     * @param nanos
+     *            time spent inflating
+     */
+    public void inflated(int compressed, int inflated, long nanos) {
+        compressedBytes.addAndGet(compressed);
+        inflatedBytes.addAndGet(inflated);
+        inflateNanos.addAndGet(nanos);
+    }
+
+    /**
+     * Record a result, its receive and decode times must be set
+     *
+     * @param result
+     */
+    public void received(ResultObject result) {
+        events.incrementAndGet();
+        countForRate(result.getReceivedAt());
+        decodeTime.record(result.getDecodeTime() / 1000);
+        if (result.getResultType() == ResultObject.RUNNER_CRASHED) {
+            /* the tests the runner was running won't finish */
+            String prefix = result.getDeviceId() + " ";
+            for (Iterator<String> it = testsStarted.keySet().iterator(); it.hasNext();) {
+                if (it.next().startsWith(prefix)) {
+                    it.remove();
+                }
+            }
+        }
+        if (result.getTimestamp() == 0) {
+            return;
+        }
+        encodeTime.record(result.getEncodeTime() / 1000);
+
+        String deviceId = result.getDeviceId();
+        long offset = result.getReceivedAt() - result.getTimestamp();
+        Long fastest = clockOffsets.get(deviceId);
+        if (fastest == null || offset < fastest) {
+            clockOffsets.put(deviceId, offset);
+            fastest = offset;
+        }
+        lag.record((offset - fastest) / 1000);
+
+        Description description = result.getFailure() != null ? result.getFailure().getDescription()
+                : result.getDescription();
+        if (description == null || description.getMethodName() == null) {
+            return;
+        }
+        String test = deviceId + " " + description.getDisplayName();
+        if (result.getResultType() == ResultObject.TEST_STARTED) {
+            testsStarted.put(test, result.getTimestamp());
+        } else if (result.getResultType() == ResultObject.TEST_FINISHED
+                || result.getResultType() == ResultObject.TEST_FAILURE) {
+            /* a failed test sends no TEST_FINISHED, its failure ends it */
+            Long started = testsStarted.remove(test);
+            if (started != null) {
+                testDuration.record((result.getTimestamp() - started) / 1000000);
+            }
+        } else if (result.getResultType() == ResultObject.TEST_ATTEMPT_FAILED) {
+            testsStarted.remove(test);
+        }
+    }
+
+    @Override
+    public long getEvents() {
+        return events.get();
+    }
+
+    @Override
+    public long getBytes() {
+        return bytes.get();
+    }
+
+    @Override
+    public long getCompressedBytes() {
+        return compressedBytes.get();
+    }
+
+    @Override
+    public long getInflatedBytes() {
+        return inflatedBytes.get();
+    }
+
+    @Override
+    public double getCompressionRatio() {
+        long compressed = compressedBytes.get();
+        return compressed == 0 ? 1 : inflatedBytes.get() / (double) compressed;
+    }
+
+    @Override
+    public long getInflateTime() {
+        return inflateNanos.get() / 1000;
+    }
+
+    @Override
+    public synchronized double getEventsPerSecond() {
+        long now = System.nanoTime() / 1000000000L;
+        long total = 0;
+        for (int i = 0; i < rateSeconds.length; i++) {
+            /* the current second is still filling up */
+            if (rateSeconds[i] < now && rateSeconds[i] >= now - RATE_WINDOW) {
+                total += rateCounts[i];
+            }
+        }
+        return total / (double) RATE_WINDOW;
+    }
+
+    @Override
+    public long getEncodeTimeP50() {
+        return encodeTime.getPercentile(50);
+    }
+
+    @Override
+    public long getEncodeTimeP99() {
+        return encodeTime.getPercentile(99);
+    }
+
+    @Override
+    public long getEncodeTimeMax() {
+        return encodeTime.getMax();
+    }
+
+    @Override
+    public long getDecodeTimeP50() {
+        return decodeTime.getPercentile(50);
+    }
+
+    @Override
+    public long getDecodeTimeP99() {
+        return decodeTime.getPercentile(99);
+    }
+
+    @Override
+    public long getDecodeTimeMax() {
+        return decodeTime.getMax();
+    }
+
+    @Override
+    public long getLagP50() {
+        return lag.getPercentile(50);
+    }
+
+    @Override
+    public long getLagP99() {
+        return lag.getPercentile(99);
+    }
+
+    @Override
+    public long getLagMax() {
+        return lag.getMax();
+    }
+
+    @Override
+    public long getTestDurationP50() {
+        return testDuration.getPercentile(50);
+    }
+
+    @Override
+    public long getTestDurationP99() {
+        return testDuration.getPercentile(99);
+    }
+
+    @Override
+    public long getTestDurationMax() {
+        return testDuration.getMax();
+    }
+
+    private synchronized void countForRate(long nanos) {
+        long second = nanos / 1000000000L;
+        int slot = (int) (((second % rateSeconds.length) + rateSeconds.length) % rateSeconds.length);
+        if (rateSeconds[slot] != second) {
+            rateSeconds[slot] = second;
+            rateCounts[slot] = 0;
+        }
+        rateCounts[slot]++;
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright (C) 2014 Trillian Mobile AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.robovm.devicebridge.internal.metrics;
+
+/**
+ * Transport and serialization counters of a bridge server. Times are in
+ * microseconds unless noted otherwise.
+ */
+public interface BridgeMetricsMBean {
+
+    long getEvents();
+
+    long getBytes();
+
+    /** Bytes received from runners that compress their output */
+    long getCompressedBytes();
+
+    /** What the compressed bytes inflated to */
+    long getInflatedBytes();
+
+    /** Inflated over compressed bytes, 1 when nothing was compressed */
+    double getCompressionRatio();
+
+    /** Total time spent inflating */
+    long getInflateTime();
+
+    double getEventsPerSecond();
+
+    long getEncodeTimeP50();
+
+    long getEncodeTimeP99();
+
+    long getEncodeTimeMax();
+
+    long getDecodeTimeP50();
+
+    long getDecodeTimeP99();
+
+    long getDecodeTimeMax();
+
+    /** Device to bridge delay beyond the fastest delivery seen */
+    long getLagP50();
+
+    long getLagP99();
+
+    long getLagMax();
+
+    /** Test durations in milliseconds, measured on the device */
+    long getTestDurationP50();
+
+    long getTestDurationP99();
+
+    long getTestDurationMax();
+}
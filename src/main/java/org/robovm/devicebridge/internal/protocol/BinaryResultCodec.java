@@ -0,0 +1,485 @@
+/*
+ * Copyright (C) 2014 Trillian Mobile AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.robovm.devicebridge.internal.protocol;
+
+import org.junit.runner.Description;
+import org.junit.runner.Result;
+import org.junit.runner.notification.Failure;
+import org.robovm.devicebridge.ResultObject;
+import org.robovm.devicebridge.internal.adapters.DescriptionRegistry;
+import org.robovm.devicebridge.internal.adapters.ResultTypeAdapter;
+import org.robovm.devicebridge.internal.adapters.StackTraceRegistry;
+import org.robovm.devicebridge.internal.adapters.ThrowableData;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compact binary wire format. Every frame is a varint payload length followed
+ * by the payload:
+ *
+ * <pre>
+ * type      byte, one of the ResultObject TEST_* constants
+ * sequence  varint
+ * flags     byte, which of description/result/failure/output/attempt/timing
+ *           follow
+ * ...       the present fields, in that order
+ * </pre>
+ *
+ * Strings and Descriptions go through per-session tables: the first
+ * occurrence defines an index explicitly, later ones refer to it. Definitions
+ * carry their index, but decoding changes the tables, and a frame decoded
+ * a second time after a run reset them may not find the ids it refers to.
+ * Frames the runner resends after a reconnect are therefore skipped by their
+ * sequence, see {@link #read(ByteBuffer, long)}.
+ */
+public class BinaryResultCodec implements ResultCodec {
+
+    static final int MAX_STRINGS = 65536;
+    static final int MAX_FRAME_LENGTH = 64 * 1024 * 1024;
+
+    private static final int HAS_DESCRIPTION = 1;
+    private static final int HAS_RESULT = 2;
+    private static final int HAS_FAILURE = 4;
+    private static final int HAS_TIMING = 8;
+    private static final int HAS_OUTPUT = 16;
+    private static final int HAS_ATTEMPT = 32;
+
+    /* string tags, see writeString */
+    private static final int STRING_NULL = 0;
+    private static final int STRING_LITERAL = 1;
+
+    private final Map<String, Integer> sentStrings = new HashMap<String, Integer>();
+    private final Map<Integer, String> receivedStrings = new HashMap<Integer, String>();
+    private final DescriptionRegistry registry = new DescriptionRegistry();
+    private final StackTraceRegistry stacks = new StackTraceRegistry();
+
+    @Override
+    public byte[] encode(ResultObject message) throws IOException {
+        long start = System.nanoTime();
+        ByteArrayOutputStream payload = new ByteArrayOutputStream(256);
+
+        payload.write(message.getResultType());
+        if (message.getResultType() == ResultObject.TEST_RUN_STARTED) {
+            registry.reset();
+        }
+        writeVarint(payload, message.getSequence());
+
+        int flags = 0;
+        if (message.getDescription() != null) {
+            flags |= HAS_DESCRIPTION;
+        }
+        if (message.getResult() != null) {
+            flags |= HAS_RESULT;
+        }
+        if (message.getFailure() != null) {
+            flags |= HAS_FAILURE;
+        }
+        if (message.getTimestamp() != 0) {
+            flags |= HAS_TIMING;
+        }
+        if (message.getOutput() != null) {
+            flags |= HAS_OUTPUT;
+        }
+        if (message.getAttempt() != 0) {
+            flags |= HAS_ATTEMPT;
+        }
+        payload.write(flags);
+
+        if (message.getDescription() != null) {
+            writeDescription(payload, message.getDescription());
+        }
+        if (message.getResult() != null) {
+            writeResult(payload, message.getResult());
+        }
+        if (message.getFailure() != null) {
+            writeFailure(payload, message.getFailure());
+        }
+        if (message.getOutput() != null) {
+            /* not worth a string table entry, output rarely repeats */
+            writeBytes(payload, message.getOutput().getBytes("UTF-8"));
+        }
+        if (message.getAttempt() != 0) {
+            writeVarint(payload, message.getAttempt());
+        }
+        if (message.getTimestamp() != 0) {
+            /* written last so the encode time covers the rest of the frame */
+            writeVarint(payload, message.getTimestamp());
+            message.setEncodeTime(System.nanoTime() - start);
+            writeVarint(payload, message.getEncodeTime());
+        }
+
+        ByteArrayOutputStream frame = new ByteArrayOutputStream(payload.size() + 5);
+        writeVarint(frame, payload.size());
+        payload.writeTo(frame);
+        return frame.toByteArray();
+    }
+
+    @Override
+    public ResultObject read(InputStream in) throws IOException {
+        int first = in.read();
+        if (first < 0) {
+            return null;
+        }
+        long length = readVarint(in, first);
+        if (length > MAX_FRAME_LENGTH) {
+            throw new IOException("Frame too large: " + length);
+        }
+        byte[] payload = new byte[(int) length];
+        new DataInputStream(in).readFully(payload);
+        return decode(new ByteArrayInputStream(payload));
+    }
+
+    @Override
+    public ResultObject read(ByteBuffer buffer) throws IOException {
+        return read(buffer, 0);
+    }
+
+    @Override
+    public ResultObject read(ByteBuffer buffer, long decodedThrough) throws IOException {
+        /* peek at the length prefix, the frame may not have arrived in full yet */
+        int position = buffer.position();
+        long length = 0;
+        int shift = 0;
+        int b;
+        do {
+            if (position == buffer.limit()) {
+                return null;
+            }
+            if (shift > 63) {
+                throw new IOException("Malformed varint");
+            }
+            b = buffer.get(position++);
+            length |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+
+        if (length > MAX_FRAME_LENGTH) {
+            throw new IOException("Frame too large: " + length);
+        }
+        if (buffer.limit() - position < length) {
+            return null;
+        }
+        byte[] payload = new byte[(int) length];
+        buffer.position(position);
+        buffer.get(payload);
+        return decode(new ByteArrayInputStream(payload), decodedThrough);
+    }
+
+    private ResultObject decode(InputStream in) throws IOException {
+        return decode(in, 0);
+    }
+
+    private ResultObject decode(InputStream in, long decodedThrough) throws IOException {
+        ResultObject message = new ResultObject();
+
+        message.setResultType(readByte(in));
+        message.setSequence(readVarint(in));
+        if (message.getSequence() != 0 && message.getSequence() <= decodedThrough) {
+            return message;
+        }
+        if (message.getResultType() == ResultObject.TEST_RUN_STARTED) {
+            registry.reset();
+        }
+
+        int flags = readByte(in);
+        if ((flags & HAS_DESCRIPTION) != 0) {
+            message.setDescription(readDescription(in));
+        }
+        if ((flags & HAS_RESULT) != 0) {
+            message.setResult(readResult(in));
+        }
+        if ((flags & HAS_FAILURE) != 0) {
+            message.setFailure(readFailure(in));
+        }
+        if ((flags & HAS_OUTPUT) != 0) {
+            message.setOutput(new String(readBytes(in), "UTF-8"));
+        }
+        if ((flags & HAS_ATTEMPT) != 0) {
+            message.setAttempt((int) readVarint(in));
+        }
+        if ((flags & HAS_TIMING) != 0) {
+            message.setTimestamp(readVarint(in));
+            message.setEncodeTime(readVarint(in));
+        }
+        return message;
+    }
+
+    /**
+     * Descriptions are written as a varint tag: 0 for null, 2 * id + 1 for a
+     * reference to an already defined id, 2 * id for a definition of that id
+     * followed by display name, class name, method name and children.
+     */
+    private void writeDescription(OutputStream out, Description description) throws IOException {
+        if (description == null) {
+            writeVarint(out, 0);
+            return;
+        }
+        int id = registry.lookup(description);
+        if (id != 0) {
+            writeVarint(out, 2L * id + 1);
+            return;
+        }
+        writeVarint(out, 2L * registry.register(description));
+        writeString(out, description.getDisplayName());
+        writeString(out, description.getClassName());
+        writeString(out, description.getMethodName());
+        ArrayList<Description> children = description.getChildren();
+        writeVarint(out, children.size());
+        for (Description child : children) {
+            writeDescription(out, child);
+        }
+    }
+
+    private Description readDescription(InputStream in) throws IOException {
+        long tag = readVarint(in);
+        if (tag == 0) {
+            return null;
+        }
+        int id = (int) (tag >>> 1);
+        if ((tag & 1) == 1) {
+            return registry.resolve(id);
+        }
+        String displayName = readString(in);
+        String className = readString(in);
+        String methodName = readString(in);
+        Description description = DescriptionRegistry.create(displayName, className, methodName);
+        long children = readVarint(in);
+        for (long i = 0; i < children; i++) {
+            description.addChild(readDescription(in));
+        }
+        registry.define(id, description);
+        return description;
+    }
+
+    private void writeResult(OutputStream out, Result result) throws IOException {
+        writeVarint(out, result.getRunCount());
+        writeVarint(out, result.getIgnoreCount());
+        writeVarint(out, result.getRunTime());
+        List<Failure> failures = result.getFailures();
+        synchronized (failures) {
+            writeVarint(out, failures.size());
+            for (Failure failure : failures) {
+                writeFailure(out, failure);
+            }
+        }
+    }
+
+    private Result readResult(InputStream in) throws IOException {
+        int runCount = (int) readVarint(in);
+        int ignoreCount = (int) readVarint(in);
+        long runTime = readVarint(in);
+        long failureCount = readVarint(in);
+        List<Failure> failures = new ArrayList<Failure>();
+        for (long i = 0; i < failureCount; i++) {
+            failures.add(readFailure(in));
+        }
+        return ResultTypeAdapter.createResult(runCount, ignoreCount, runTime, failures);
+    }
+
+    private void writeFailure(OutputStream out, Failure failure) throws IOException {
+        writeDescription(out, failure.getDescription());
+        writeThrowable(out, failure.getException() == null ? null : ThrowableData.capture(failure.getException(),
+                stacks));
+    }
+
+    private Failure readFailure(InputStream in) throws IOException {
+        Description description = readDescription(in);
+        ThrowableData exception = readThrowable(in);
+        return new Failure(description, exception == null ? null : exception.rebuild(stacks));
+    }
+
+    private void writeThrowable(OutputStream out, ThrowableData data) throws IOException {
+        if (data == null) {
+            out.write(0);
+            return;
+        }
+        out.write(data.isAssertion() ? 2 : 1);
+        writeString(out, data.getClassName());
+        writeString(out, data.getMessage());
+        writeVarint(out, data.getStackId());
+        StackTraceElement[] frames = data.getFrames();
+        if (frames == null) {
+            writeVarint(out, 0);
+        } else {
+            writeVarint(out, frames.length + 1L);
+            for (StackTraceElement frame : frames) {
+                writeString(out, frame.getClassName());
+                writeString(out, frame.getMethodName());
+                writeString(out, frame.getFileName());
+                writeVarint(out, zigzag(frame.getLineNumber()));
+            }
+        }
+        writeVarint(out, data.getOmitted());
+        writeVarint(out, data.getCommon());
+        writeThrowable(out, data.getCause());
+        writeVarint(out, data.getSuppressed().size());
+        for (ThrowableData suppressed : data.getSuppressed()) {
+            writeThrowable(out, suppressed);
+        }
+    }
+
+    private ThrowableData readThrowable(InputStream in) throws IOException {
+        int tag = readByte(in);
+        if (tag == 0) {
+            return null;
+        }
+        String className = readString(in);
+        String message = readString(in);
+        int stackId = (int) readVarint(in);
+        StackTraceElement[] frames = null;
+        long frameCount = readVarint(in);
+        if (frameCount > 0) {
+            frames = new StackTraceElement[(int) (frameCount - 1)];
+            for (int i = 0; i < frames.length; i++) {
+                frames[i] = new StackTraceElement(readString(in), readString(in), readString(in),
+                        unzigzag(readVarint(in)));
+            }
+        }
+        int omitted = (int) readVarint(in);
+        int common = (int) readVarint(in);
+        ThrowableData cause = readThrowable(in);
+        long suppressedCount = readVarint(in);
+        List<ThrowableData> suppressed = new ArrayList<ThrowableData>();
+        for (long i = 0; i < suppressedCount; i++) {
+            suppressed.add(readThrowable(in));
+        }
+        return new ThrowableData(className, message, tag == 2, stackId, frames, omitted, common, cause, suppressed);
+    }
+
+    private static long zigzag(int value) {
+        return ((long) value << 1) ^ (value >> 31);
+    }
+
+    private static int unzigzag(long value) {
+        return (int) ((value >>> 1) ^ -(value & 1));
+    }
+
+    /**
+     * Strings are written as a varint tag: 0 for null, 1 for a literal that
+     * follows, 2 + 2i for the definition of table entry i that follows, 3 + 2i
+     * for a reference to table entry i.
+     */
+    private void writeString(OutputStream out, String value) throws IOException {
+        if (value == null) {
+            writeVarint(out, STRING_NULL);
+            return;
+        }
+        Integer index = sentStrings.get(value);
+        if (index != null) {
+            writeVarint(out, 3 + 2L * index);
+            return;
+        }
+        if (sentStrings.size() < MAX_STRINGS) {
+            index = sentStrings.size();
+            sentStrings.put(value, index);
+            writeVarint(out, 2 + 2L * index);
+        } else {
+            writeVarint(out, STRING_LITERAL);
+        }
+        writeBytes(out, value.getBytes("UTF-8"));
+    }
+
+    private String readString(InputStream in) throws IOException {
+        long tag = readVarint(in);
+        if (tag == STRING_NULL) {
+            return null;
+        }
+        if (tag == STRING_LITERAL) {
+            return new String(readBytes(in), "UTF-8");
+        }
+        int index = (int) ((tag - 2) / 2);
+        if ((tag & 1) == 1) {
+            String value = receivedStrings.get(index);
+            if (value == null) {
+                throw new IOException("Unknown string reference " + index);
+            }
+            return value;
+        }
+        String value = new String(readBytes(in), "UTF-8");
+        receivedStrings.put(index, value);
+        return value;
+    }
+
+    /* byte arrays are prefixed with varint length + 1, 0 meaning null */
+    private static void writeBytes(OutputStream out, byte[] bytes) throws IOException {
+        if (bytes == null) {
+            writeVarint(out, 0);
+            return;
+        }
+        writeVarint(out, bytes.length + 1L);
+        out.write(bytes);
+    }
+
+    private static byte[] readBytes(InputStream in) throws IOException {
+        long length = readVarint(in);
+        if (length == 0) {
+            return null;
+        }
+        if (length - 1 > MAX_FRAME_LENGTH) {
+            throw new IOException("Field too large: " + (length - 1));
+        }
+        byte[] bytes = new byte[(int) (length - 1)];
+        new DataInputStream(in).readFully(bytes);
+        return bytes;
+    }
+
+    static void writeVarint(OutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    static long readVarint(InputStream in) throws IOException {
+        return readVarint(in, readByte(in));
+    }
+
+    private static long readVarint(InputStream in, int first) throws IOException {
+        long value = first & 0x7F;
+        int shift = 7;
+        int b = first;
+        while ((b & 0x80) != 0) {
+            if (shift > 63) {
+                throw new IOException("Malformed varint");
+            }
+            b = readByte(in);
+            value |= (long) (b & 0x7F) << shift;
+            shift += 7;
+        }
+        return value;
+    }
+
+    private static int readByte(InputStream in) throws IOException {
+        int b = in.read();
+        if (b < 0) {
+            throw new EOFException("Truncated frame");
+        }
+        return b;
+    }
+
+}
@@ -0,0 +1,341 @@
+/*
+ * Copyright (C) 2014 Trillian Mobile AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.robovm.devicebridge.internal.protocol;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Connection handshake choosing the wire format. The runner opens with
+ * {@link #MAGIC}, the protocol version, a bit mask of the formats it supports,
+ * its device id and, from version 3 on, the session token it was launched
+ * with; the bridge answers with a "FORMAT &lt;n&gt;" line,
+ * followed by " TESTS" when it hands out the tests to run, " DEFLATE" when
+ * the runner's output is to be compressed, " OUTPUT" when it accepts the
+ * tests' captured output and " HEARTBEAT" when it watches for hung runners.
+ * A runner that reconnects is told " ACKED &lt;n&gt;", the last sequence the
+ * bridge decoded from it, so it resends only what comes after. Runners that
+ * predate the handshake start straight away with a JSON object, and are
+ * served JSON without a reply.
+ */
+public class Handshake {
+
+    public static final int VERSION = 3;
+
+    /* hellos without a session token are sent as version 2 */
+    static final int VERSION_WITHOUT_TOKEN = 2;
+
+    public static final int FORMAT_JSON = 1;
+    public static final int FORMAT_BINARY = 2;
+
+    /** Offered along with the formats: deflate the runner's output */
+    public static final int COMPRESS_DEFLATE = 16;
+
+    /** Device id of runners that don't send one */
+    public static final String DEFAULT_DEVICE_ID = "default";
+
+    static final byte[] MAGIC = { 'R', 'V', 'M', 'B' };
+    static final String REPLY = "FORMAT ";
+    static final String SERVING_TESTS = "TESTS";
+    static final String DEFLATE = "DEFLATE";
+    static final String OUTPUT = "OUTPUT";
+    static final String HEARTBEAT = "HEARTBEAT";
+    static final String ACKED = "ACKED";
+
+    private final int format;
+    private final String deviceId;
+    private final String token;
+    private final boolean servingTests;
+    private final boolean compressed;
+    private final boolean acceptingOutput;
+    private final boolean watching;
+    private final long acknowledged;
+    private final String reply;
+
+    Handshake(int format, String deviceId, String token, boolean servingTests, boolean compressed,
+            boolean acceptingOutput, boolean watching, long acknowledged, String reply) {
+        this.format = format;
+        this.deviceId = deviceId;
+        this.token = token;
+        this.servingTests = servingTests;
+        this.compressed = compressed;
+        this.acceptingOutput = acceptingOutput;
+        this.watching = watching;
+        this.acknowledged = acknowledged;
+        this.reply = reply;
+    }
+
+    /**
+     * @return chosen FORMAT_* constant, 0 when the runner and the bridge have
+     *         none in common
+     */
+    public int getFormat() {
+        return format;
+    }
+
+    /**
+     * @return id the runner identified itself with
+     */
+    public String getDeviceId() {
+        return deviceId;
+    }
+
+    /**
+     * @return session token the runner presented, null if it sent none
+     */
+    public String getToken() {
+        return token;
+    }
+
+    /**
+     * @return whether the runner should ask the bridge for tests to run
+     */
+    public boolean isServingTests() {
+        return servingTests;
+    }
+
+    /**
+     * @return whether everything the runner sends after its hello is a
+     *         deflate stream
+     */
+    public boolean isCompressed() {
+        return compressed;
+    }
+
+    /**
+     * @return whether the bridge takes TEST_OUTPUT and TEST_ERROR_OUTPUT
+     *         results
+     */
+    public boolean isAcceptingOutput() {
+        return acceptingOutput;
+    }
+
+    /**
+     * @return whether the bridge wants heartbeats and may ask for thread
+     *         dumps
+     */
+    public boolean isWatching() {
+        return watching;
+    }
+
+    /**
+     * @return last sequence the bridge decoded from the runner before it
+     *         reconnected, 0 for a new session
+     */
+    public long getAcknowledged() {
+        return acknowledged;
+    }
+
+    /**
+     * Runner side: offer the given formats
+     *
+     * @param out
+     * @param formats
+     *            bit mask of FORMAT_* constants, plus COMPRESS_DEFLATE to
+     *            offer compression
+     * @param deviceId
+     * @throws IOException
+     */
+    public static void writeHello(OutputStream out, int formats, String deviceId) throws IOException {
+        writeHello(out, formats, deviceId, null);
+    }
+
+    /**
+     * Runner side: offer the given formats, presenting a session token
+     *
+     * @param out
+     * @param formats
+     * @param deviceId
+     * @param token
+     *            token the runner was launched with, null for none
+     * @throws IOException
+     */
+    public static void writeHello(OutputStream out, int formats, String deviceId, String token)
+            throws IOException {
+        DataOutputStream data = new DataOutputStream(out);
+        data.write(MAGIC);
+        /* bridges that predate tokens understand a hello without one */
+        data.write(token != null ? VERSION : VERSION_WITHOUT_TOKEN);
+        data.write(formats);
+        data.writeUTF(deviceId);
+        if (token != null) {
+            data.writeUTF(token);
+        }
+        data.flush();
+    }
+
+    /**
+     * Runner side: read the bridge's answer
+     *
+     * @param in
+     * @param deviceId
+     * @return Handshake
+     * @throws IOException
+     */
+    public static Handshake readReply(BufferedReader in, String deviceId) throws IOException {
+        String line = in.readLine();
+        if (line == null || !line.startsWith(REPLY)) {
+            throw new IOException("Unexpected handshake reply: " + line);
+        }
+        String[] words = line.substring(REPLY.length()).trim().split(" ");
+        int format;
+        try {
+            format = Integer.parseInt(words[0]);
+        } catch (NumberFormatException e) {
+            throw new IOException("Unexpected handshake reply: " + line);
+        }
+        if (format != FORMAT_JSON && format != FORMAT_BINARY) {
+            throw new IOException("Bridge does not support any offered wire format");
+        }
+        boolean servingTests = false;
+        boolean compressed = false;
+        boolean acceptingOutput = false;
+        boolean watching = false;
+        long acknowledged = 0;
+        for (int i = 1; i < words.length; i++) {
+            servingTests |= words[i].equals(SERVING_TESTS);
+            compressed |= words[i].equals(DEFLATE);
+            acceptingOutput |= words[i].equals(OUTPUT);
+            watching |= words[i].equals(HEARTBEAT);
+            if (words[i].equals(ACKED) && i + 1 < words.length) {
+                try {
+                    acknowledged = Long.parseLong(words[++i]);
+                } catch (NumberFormatException e) {
+                    throw new IOException("Unexpected handshake reply: " + line);
+                }
+            }
+        }
+        return new Handshake(format, deviceId, null, servingTests, compressed, acceptingOutput, watching,
+                acknowledged, null);
+    }
+
+    /**
+     * Bridge side: read the runner's hello and pick the preferred common
+     * format
+     *
+     * @param in
+     *            bytes received from the runner so far, the hello is consumed
+     *            once complete
+     * @param formats
+     *            bit mask of FORMAT_* constants the bridge accepts, plus
+     *            COMPRESS_DEFLATE to accept compression
+     * @param servingTests
+     *            whether the bridge hands out the tests to run
+     * @return Handshake, or null until the whole hello has arrived
+     * @throws IOException
+     */
+    public static Handshake accept(ByteBuffer in, int formats, boolean servingTests) throws IOException {
+        if (!in.hasRemaining()) {
+            return null;
+        }
+        int start = in.position();
+        if (in.get(start) != MAGIC[0]) {
+            return new Handshake(FORMAT_JSON, DEFAULT_DEVICE_ID, null, false, false, false, false, 0, null);
+        }
+        if (in.remaining() < MAGIC.length + 2) {
+            return null;
+        }
+        for (int i = 1; i < MAGIC.length; i++) {
+            if (in.get(start + i) != MAGIC[i]) {
+                throw new IOException("Invalid handshake from runner");
+            }
+        }
+        int version = in.get(start + MAGIC.length) & 0xFF;
+        if (version < 1) {
+            throw new IOException("Unsupported protocol version " + version);
+        }
+        int offered = in.get(start + MAGIC.length + 1) & 0xFF;
+        int length = MAGIC.length + 2;
+
+        String deviceId = DEFAULT_DEVICE_ID;
+        String token = null;
+        if (version >= 2) {
+            deviceId = readUTF(in, start, length);
+            if (deviceId == null) {
+                return null;
+            }
+            length += 2 + (in.getShort(start + length) & 0xFFFF);
+            if (version >= 3) {
+                token = readUTF(in, start, length);
+                if (token == null) {
+                    return null;
+                }
+                length += 2 + (in.getShort(start + length) & 0xFFFF);
+            }
+        } else {
+            /* version 1 runners can't ask for tests */
+            servingTests = false;
+        }
+        in.position(start + length);
+
+        int common = offered & formats;
+        int chosen = (common & FORMAT_BINARY) != 0 ? FORMAT_BINARY : common & FORMAT_JSON;
+        boolean compressed = chosen != 0 && (common & COMPRESS_DEFLATE) != 0;
+        return new Handshake(chosen, deviceId, token, servingTests, compressed, true, true, 0, REPLY + chosen
+                + (servingTests ? " " + SERVING_TESTS : "") + (compressed ? " " + DEFLATE : "") + " " + OUTPUT + " "
+                + HEARTBEAT);
+    }
+
+    /**
+     * Read a string written with writeUTF at the given offset past start,
+     * null until all of it has arrived. Leaves the buffer's position at start.
+     */
+    private static String readUTF(ByteBuffer in, int start, int offset) throws IOException {
+        if (in.limit() - start < offset + 2) {
+            return null;
+        }
+        int length = in.getShort(start + offset) & 0xFFFF;
+        if (in.limit() - start < offset + 2 + length) {
+            return null;
+        }
+        byte[] bytes = new byte[2 + length];
+        in.position(start + offset);
+        in.get(bytes);
+        in.position(start);
+        return new DataInputStream(new ByteArrayInputStream(bytes)).readUTF();
+    }
+
+    /**
+     * @return line to send back to the runner, null for runners that predate
+     *         the handshake
+     */
+    public String getReply() {
+        return getReply(0);
+    }
+
+    /**
+     * @param acknowledged
+     *            last sequence decoded from the runner on earlier
+     *            connections, 0 for none
+     * @return line to send back to the runner, null for runners that predate
+     *         the handshake
+     */
+    public String getReply(long acknowledged) {
+        if (reply == null) {
+            return null;
+        }
+        return reply + (acknowledged > 0 ? " " + ACKED + " " + acknowledged : "") + "\n";
+    }
+
+    public static ResultCodec createCodec(int format) {
+        return format == FORMAT_BINARY ? new BinaryResultCodec() : new JsonResultCodec();
+    }
+}
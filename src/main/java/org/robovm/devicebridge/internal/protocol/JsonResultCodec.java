@@ -0,0 +1,199 @@
+/*
+ * Copyright (C) 2014 Trillian Mobile AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.robovm.devicebridge.internal.protocol;
+
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import org.robovm.devicebridge.ResultObject;
+import org.robovm.devicebridge.internal.adapters.GsonFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * Newline delimited JSON, the original wire format
+ */
+public class JsonResultCodec implements ResultCodec {
+
+    private static final String TYPE_FIELD = "{\"resultType\":";
+    private static final String SEQUENCE_FIELD = ",\"sequence\":";
+
+    private final TypeAdapter<ResultObject> resultAdapter = GsonFactory.create().getAdapter(ResultObject.class);
+    private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+
+    private InputStream input;
+    private JsonReader reader;
+
+    /** Reused for the lines of buffers */
+    private final CharsetDecoder decoder = Charset.forName("UTF-8").newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private CharBuffer line = CharBuffer.allocate(1024);
+    private final LineReader lineReader = new LineReader();
+
+    @Override
+    public byte[] encode(ResultObject message) throws IOException {
+        buffer.reset();
+        OutputStreamWriter writer = new OutputStreamWriter(buffer, "UTF-8");
+        resultAdapter.write(new JsonWriter(writer), message);
+        writer.write('\n');
+        writer.flush();
+        return buffer.toByteArray();
+    }
+
+    @Override
+    public ResultObject read(InputStream in) throws IOException {
+        /* keep one reader per stream, it buffers ahead of the current result */
+        if (in != input) {
+            input = in;
+            reader = new JsonReader(new InputStreamReader(in, "UTF-8"));
+            /* results are a stream of top level JSON objects */
+            reader.setLenient(true);
+        }
+        if (reader.peek() == JsonToken.END_DOCUMENT) {
+            return null;
+        }
+        return resultAdapter.read(reader);
+    }
+
+    @Override
+    public ResultObject read(ByteBuffer buffer) throws IOException {
+        return read(buffer, 0);
+    }
+
+    @Override
+    public ResultObject read(ByteBuffer buffer, long decodedThrough) throws IOException {
+        int end = -1;
+        for (int i = buffer.position(); i < buffer.limit(); i++) {
+            if (buffer.get(i) == '\n') {
+                end = i;
+                break;
+            }
+        }
+        if (end < 0) {
+            return null;
+        }
+        int limit = buffer.limit();
+        buffer.limit(end);
+        decodeLine(buffer);
+        buffer.limit(limit);
+        buffer.get();
+        if (!line.hasRemaining()) {
+            return read(buffer, decodedThrough);
+        }
+        if (decodedThrough > 0) {
+            ResultObject header = readHeader(line);
+            if (header.getSequence() != 0 && header.getSequence() <= decodedThrough) {
+                return header;
+            }
+        }
+        lineReader.reset(line);
+        /* JsonReader can't be reset once it reached the end of its input, it is the one object made per line */
+        return resultAdapter.read(new JsonReader(lineReader));
+    }
+
+    /**
+     * Decode the bytes up to the buffer's limit into {@link #line}, reusing
+     * its chars
+     */
+    private void decodeLine(ByteBuffer bytes) {
+        /* UTF-8 never takes fewer bytes than chars */
+        if (line.capacity() < bytes.remaining()) {
+            line = CharBuffer.allocate(Math.max(bytes.remaining(), line.capacity() * 2));
+        }
+        line.clear();
+        decoder.reset();
+        decoder.decode(bytes, line, true);
+        decoder.flush(line);
+        line.flip();
+    }
+
+    /**
+     * Read just the type and sequence, which lead every object the adapter
+     * writes, without decoding the rest
+     *
+     * @return type and sequence, a sequence of 0 if the line doesn't start
+     *         with them
+     */
+    private static ResultObject readHeader(CharBuffer line) {
+        ResultObject header = new ResultObject();
+        int at = skip(line, line.position(), TYPE_FIELD);
+        long type = 0;
+        for (; at > 0 && at < line.limit() && Character.isDigit(line.get(at)); at++) {
+            type = type * 10 + (line.get(at) - '0');
+        }
+        at = skip(line, at, SEQUENCE_FIELD);
+        long sequence = 0;
+        for (; at > 0 && at < line.limit() && Character.isDigit(line.get(at)); at++) {
+            sequence = sequence * 10 + (line.get(at) - '0');
+        }
+        if (at > 0) {
+            header.setResultType((int) type);
+            header.setSequence(sequence);
+        }
+        return header;
+    }
+
+    /**
+     * @return index after the expected text, -1 if it isn't there
+     */
+    private static int skip(CharBuffer line, int at, String expected) {
+        if (at < 0 || line.limit() - at < expected.length()) {
+            return -1;
+        }
+        for (int i = 0; i < expected.length(); i++) {
+            if (line.get(at + i) != expected.charAt(i)) {
+                return -1;
+            }
+        }
+        return at + expected.length();
+    }
+
+    /**
+     * Reads the chars of one line, pointed at the next line with reset
+     */
+    private static class LineReader extends Reader {
+        private CharBuffer chars;
+
+        void reset(CharBuffer chars) {
+            this.chars = chars;
+        }
+
+        @Override
+        public int read(char[] buffer, int offset, int length) {
+            if (!chars.hasRemaining()) {
+                return -1;
+            }
+            int read = Math.min(length, chars.remaining());
+            chars.get(buffer, offset, read);
+            return read;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2014 Trillian Mobile AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.robovm.devicebridge.internal.protocol;
+
+import org.robovm.devicebridge.ResultObject;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Wire encoding of results sent from the runner to the bridge. Codecs may keep
+ * state (such as a string table) for the lifetime of a session, so a single
+ * instance must be used for every frame in one direction of a session.
+ */
+public interface ResultCodec {
+
+    /**
+     * Encode a result into a complete frame, ready to be written to the wire
+     *
+     * @param message
+     * @return frame bytes
+     * @throws IOException
+     */
+    byte[] encode(ResultObject message) throws IOException;
+
+    /**
+     * Read the next result from the stream
+     *
+     * @param in
+     * @return the next result, or null at the end of the stream
+     * @throws IOException
+     */
+    ResultObject read(InputStream in) throws IOException;
+
+    /**
+     * Read the next result from bytes gathered by non-blocking reads
+     *
+     * @param buffer
+     *            buffer ready to be read, its position is moved past the
+     *            result when one is returned
+     * @return the next result, or null when the buffer doesn't hold a
+     *         complete frame yet
+     * @throws IOException
+     */
+    ResultObject read(ByteBuffer buffer) throws IOException;
+
+    /**
+     * Like {@link #read(ByteBuffer)}, but frames whose sequence is at or
+     * below the given one are skipped without decoding them, leaving the
+     * codec's state untouched: they were decoded once already. Every format
+     * puts the type and sequence ahead of the body for this.
+     *
+     * @param buffer
+     * @param decodedThrough
+     *            last sequence already decoded
+     * @return the next result; a skipped frame comes back with only its type
+     *         and sequence set
+     * @throws IOException
+     */
+    ResultObject read(ByteBuffer buffer, long decodedThrough) throws IOException;
+}
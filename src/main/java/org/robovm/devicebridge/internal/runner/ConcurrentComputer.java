@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2014 Trillian Mobile AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.robovm.devicebridge.internal.runner;
+
+import org.junit.runner.Computer;
+import org.junit.runner.Runner;
+import org.junit.runners.ParentRunner;
+import org.junit.runners.model.RunnerBuilder;
+import org.junit.runners.model.RunnerScheduler;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Like JUnit's ParallelComputer, but the methods of every class run on one
+ * pool of a fixed size, so no more than that many methods run at once
+ * however many classes are running.
+ */
+public class ConcurrentComputer extends Computer {
+
+    private final ExecutorService methods;
+
+    /**
+     * @param methodThreads
+     *            methods running at once, 1 to run them one after another
+     */
+    public ConcurrentComputer(int methodThreads) {
+        this.methods = methodThreads > 1 ? Executors.newFixedThreadPool(methodThreads) : null;
+    }
+
+    @Override
+    protected Runner getRunner(RunnerBuilder builder, Class<?> testClass) throws Throwable {
+        Runner runner = super.getRunner(builder, testClass);
+        if (methods != null && runner instanceof ParentRunner) {
+            ((ParentRunner<?>) runner).setScheduler(new PoolScheduler());
+        }
+        return runner;
+    }
+
+    public void shutdown() {
+        if (methods != null) {
+            methods.shutdown();
+        }
+    }
+
+    /**
+     * Schedules one class's methods on the shared pool and waits for them
+     */
+    private class PoolScheduler implements RunnerScheduler {
+        private final List<Future<?>> scheduled = new ArrayList<Future<?>>();
+
+        @Override
+        public void schedule(Runnable childStatement) {
+            scheduled.add(methods.submit(childStatement));
+        }
+
+        /**
+         * Wait for every method; an error that escaped one of them is thrown
+         * once all are done, so JUnit reports the class as failed
+         */
+        @Override
+        public void finished() {
+            Throwable error = null;
+            for (Future<?> future : scheduled) {
+                try {
+                    future.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                } catch (ExecutionException e) {
+                    if (error == null) {
+                        error = e.getCause();
+                    }
+                }
+            }
+            if (error instanceof RuntimeException) {
+                throw (RuntimeException) error;
+            }
+            if (error instanceof Error) {
+                throw (Error) error;
+            }
+            if (error != null) {
+                throw new RuntimeException(error);
+            }
+        }
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2014 Trillian Mobile AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.robovm.devicebridge.internal.runner;
+
+import org.junit.runner.Description;
+import org.junit.runner.Request;
+import org.junit.runner.Runner;
+import org.junit.runner.manipulation.Filter;
+import org.junit.runner.manipulation.NoTestsRemainException;
+import org.junit.runner.notification.RunNotifier;
+import org.robovm.devicebridge.internal.Logger;
+import org.robovm.devicebridge.internal.listener.RoboTestListener;
+
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Runs the tests of another runner, then runs those of them that failed
+ * again, one at a time, until they pass or run out of attempts. The
+ * attempts are part of the same run, so listeners see a single
+ * testRunStarted and testRunFinished.
+ */
+public class RetryRunner extends Runner {
+
+    private final Runner runner;
+    private final RoboTestListener listener;
+
+    /**
+     * @param runner
+     * @param listener
+     *            listener deciding which failed tests are run again
+     */
+    public RetryRunner(Runner runner, RoboTestListener listener) {
+        this.runner = runner;
+        this.listener = listener;
+    }
+
+    @Override
+    public Description getDescription() {
+        return runner.getDescription();
+    }
+
+    @Override
+    public void run(RunNotifier notifier) {
+        runner.run(notifier);
+        Set<Description> tests = new LinkedHashSet<Description>();
+        collectTests(getDescription(), tests);
+        for (Description test : tests) {
+            int attempt;
+            while ((attempt = listener.getRetryAttempt(test)) > 0) {
+                Logger.debug("Running " + test.getDisplayName() + " again after attempt " + attempt + " failed");
+                if (!runOnly(test, notifier) || listener.getRetryAttempt(test) == attempt) {
+                    /* it didn't start this time, its last failure stands */
+                    listener.giveUp(test);
+                }
+            }
+        }
+    }
+
+    private static void collectTests(Description description, Set<Description> tests) {
+        if (description.isTest()) {
+            tests.add(description);
+        }
+        for (Description child : description.getChildren()) {
+            collectTests(child, tests);
+        }
+    }
+
+    /**
+     * Run a single test described by its runner, such as a parameterized one
+     *
+     * @return false if the test can't be found
+     */
+    private static boolean runOnly(Description test, RunNotifier notifier) {
+        try {
+            Runner single = Request.aClass(Class.forName(test.getClassName())).getRunner();
+            Filter.matchMethodDescription(test).apply(single);
+            single.run(notifier);
+            return true;
+        } catch (NoTestsRemainException e) {
+            Logger.warn("Test not found: " + test.getDisplayName());
+        } catch (ClassNotFoundException e) {
+            Logger.warn("Class not found: " + test.getClassName());
+        }
+        return false;
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2014 Trillian Mobile AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.robovm.devicebridge.internal.runner;
+
+import org.junit.runner.Description;
+import org.junit.runner.manipulation.Filter;
+
+import java.util.regex.Pattern;
+
+/**
+ * Test selection entry with wildcards, such as "com.example.*Test" or
+ * "*#testLogin*". A '*' stands for any number of characters, dots included.
+ * The class part is matched against the class names the runner knows, the
+ * optional method part filters the methods of the matching classes.
+ */
+public class TestPattern {
+
+    private final String entry;
+    private final Pattern classPattern;
+    private final Pattern methodPattern;
+
+    /**
+     * @param entry
+     *            ClassPattern or ClassPattern#methodPattern
+     */
+    public TestPattern(String entry) {
+        this.entry = entry;
+        int hash = entry.lastIndexOf('#');
+        this.classPattern = compile(hash < 0 ? entry : entry.substring(0, hash));
+        this.methodPattern = hash < 0 ? null : compile(entry.substring(hash + 1));
+    }
+
+    /**
+     * @param entry
+     * @return whether the entry has wildcards, entries without are a class or
+     *         Class#method
+     */
+    public static boolean isPattern(String entry) {
+        return entry.indexOf('*') >= 0;
+    }
+
+    public boolean matchesClass(String className) {
+        return classPattern.matcher(className).matches();
+    }
+
+    /**
+     * @return filter keeping the methods that match, null when the pattern
+     *         selects whole classes
+     */
+    public Filter getMethodFilter() {
+        if (methodPattern == null) {
+            return null;
+        }
+        return new Filter() {
+            @Override
+            public boolean shouldRun(Description description) {
+                if (description.isTest()) {
+                    String method = description.getMethodName();
+                    return method != null && methodPattern.matcher(method).matches();
+                }
+                for (Description child : description.getChildren()) {
+                    if (shouldRun(child)) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+
+            @Override
+            public String describe() {
+                return "methods matching " + entry;
+            }
+        };
+    }
+
+    private static Pattern compile(String glob) {
+        StringBuilder regex = new StringBuilder();
+        int start = 0;
+        int star;
+        while ((star = glob.indexOf('*', start)) >= 0) {
+            regex.append(Pattern.quote(glob.substring(start, star))).append(".*");
+            start = star + 1;
+        }
+        regex.append(Pattern.quote(glob.substring(start)));
+        return Pattern.compile(regex.toString());
+    }
+}
@@ -2,60 +2,253 @@ package org.robovm.devicebridge.internal.runner;
 
 import org.junit.runner.JUnitCore;
 import org.junit.runner.Request;
-import org.robovm.apple.foundation.Foundation;
+import org.junit.runner.Runner;
+import org.junit.runner.manipulation.Filter;
+import org.junit.runner.manipulation.NoTestsRemainException;
 import org.robovm.apple.foundation.NSBundle;
+import org.robovm.devicebridge.internal.Constant;
+import org.robovm.devicebridge.internal.Logger;
+import org.robovm.devicebridge.internal.listener.FoundationAppender;
 import org.robovm.devicebridge.internal.listener.RoboTestListener;
+import org.robovm.devicebridge.internal.protocol.Handshake;
 
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 /**
- * Main TestRunner class run on the device/simulator
+ * Main TestRunner class run on the device/simulator. Tests to run come from
+ * the bridge when it hands them out, else from the launch arguments, else
+ * from the class list bundled with the app. Entries are a class,
+ * Class#method or a {@link TestPattern}; patterns are matched against the
+ * classes of the bundled list. Test methods that fail are run again within
+ * the same run, see {@link RetryRunner}, when {@link Constant#ARG_RETRIES} is
+ * given.
  */
 public class TestRunner {
 
     private static String classList = "classLoader.txt";
 
+    private static Set<String> bundledClasses;
+
+    /** How long to wait for the log to be written before exiting, in milliseconds */
+    private static final long LOG_FLUSH_TIMEOUT = 1000;
+
     public static void main(String[] args) throws IOException, InterruptedException {
+        Logger.setAppender(new FoundationAppender());
 
-        BufferedReader reader = new BufferedReader(new FileReader(new File(getSharedResource(classList))));
-        final RoboTestListener listener = new RoboTestListener(null, "127.0.0.1", "8889");
+        String deviceId = Handshake.DEFAULT_DEVICE_ID;
+        int classThreads = 1;
+        int methodThreads = 1;
+        List<String> selection = null;
+        String port = Constant.DEFAULT_PORT;
+        String token = null;
+        int retries = 0;
+        for (int i = 0; i < args.length - 1; i++) {
+            if (args[i].equals(Constant.ARG_DEVICE_ID)) {
+                deviceId = args[i + 1];
+            } else if (args[i].equals(Constant.ARG_PARALLEL_CLASSES)) {
+                classThreads = Math.max(1, Integer.parseInt(args[i + 1]));
+            } else if (args[i].equals(Constant.ARG_PARALLEL_METHODS)) {
+                methodThreads = Math.max(1, Integer.parseInt(args[i + 1]));
+            } else if (args[i].equals(Constant.ARG_TESTS)) {
+                selection = Arrays.asList(args[i + 1].split(","));
+            } else if (args[i].equals(Constant.ARG_PORT)) {
+                port = args[i + 1];
+            } else if (args[i].equals(Constant.ARG_TOKEN)) {
+                token = args[i + 1];
+            } else if (args[i].equals(Constant.ARG_RETRIES)) {
+                retries = Math.max(0, Integer.parseInt(args[i + 1]));
+            } else if (args[i].equals(Constant.ARG_LOG_LEVEL)) {
+                Logger.setLevel(Logger.parseLevel(args[i + 1]));
+            }
+        }
 
-        log("Reading File");
-        JUnitCore jUnitCore = new JUnitCore();
-        /* provide a means to call back to server */
-        jUnitCore.addListener(listener);
+        final RoboTestListener listener = new RoboTestListener(null, "127.0.0.1", port, deviceId, token);
+        listener.setRetries(retries);
 
         Thread.setDefaultUncaughtExceptionHandler(new Thread.UncaughtExceptionHandler() {
             @Override
             public void uncaughtException(Thread t, Throwable e) {
+                Logger.error("TestRunner threw exception " + e.getMessage(), e);
                 try {
-                    Foundation.log("TestRunner threw exception " + e.getMessage());
-                    for (StackTraceElement stackTraceElement : e.getStackTrace()) {
-                        Foundation.log("\t" + stackTraceElement.toString());
-                    }
-                    ;
-                } catch (Exception e1) {
-                    e1.printStackTrace();
+                    /* the process may be about to die */
+                    Logger.flush(LOG_FLUSH_TIMEOUT);
+                } catch (InterruptedException e1) {
+                    Thread.currentThread().interrupt();
                 }
             }
         });
 
-        log("Got here");
-
-        String classLine;
-        while ((classLine = reader.readLine()) != null) {
-            if (classLine.contains("#")) {
-                log("Running method");
-                String classMethod[] = classLine.split("#(?=[^\\.]+$)");
-                runMethodOnly(jUnitCore, classMethod[0], classMethod[1]);
-            } else {
-                log("Running whole class " + classLine);
-                runClass(jUnitCore, classLine);
-                log("done");
+        ConcurrentComputer computer = new ConcurrentComputer(methodThreads);
+        List<Thread> lanes = new ArrayList<Thread>();
+        if (listener.isHostServingTests()) {
+            /* the host hands one test at a time to each connection, so every lane
+             * after the first asks through a connection of its own; connect them
+             * all before any lane can finish */
+            List<RoboTestListener> listeners = new ArrayList<RoboTestListener>();
+            listeners.add(listener);
+            for (int i = 1; i < classThreads; i++) {
+                RoboTestListener laneListener = new RoboTestListener(null, "127.0.0.1", port, deviceId
+                        + Constant.LANE_SEPARATOR + i, token);
+                laneListener.setRetries(retries);
+                listeners.add(laneListener);
+            }
+            for (RoboTestListener laneListener : listeners) {
+                lanes.add(new Thread(new ServedLane(laneListener, computer), "TestRunner-lane"));
+            }
+        } else {
+            Queue<String> lines = new ConcurrentLinkedQueue<String>(selection != null ? selection
+                    : readBundledList());
+            for (int i = 0; i < classThreads; i++) {
+                lanes.add(new Thread(new ListLane(listener, computer, lines), "TestRunner-lane"));
+            }
+        }
+        for (Thread lane : lanes) {
+            lane.start();
+        }
+        for (Thread lane : lanes) {
+            lane.join();
+        }
+        computer.shutdown();
+        if (!listener.isHostServingTests()) {
+            listener.close();
+        }
+        Logger.flush(LOG_FLUSH_TIMEOUT);
+    }
+
+    /**
+     * Runs tests the host hands out, one at a time; a warm runner waits here
+     * until the host has more tests to run
+     */
+    private static class ServedLane implements Runnable {
+        private final RoboTestListener listener;
+        private final ConcurrentComputer computer;
+
+        ServedLane(RoboTestListener listener, ConcurrentComputer computer) {
+            this.listener = listener;
+            this.computer = computer;
+        }
+
+        @Override
+        public void run() {
+            JUnitCore jUnitCore = new JUnitCore();
+            /* provide a means to call back to server */
+            jUnitCore.addListener(listener);
+            try {
+                String classLine;
+                while ((classLine = listener.requestTest()) != null) {
+                    TestRunner.run(jUnitCore, computer, listener, classLine);
+                }
+                listener.close();
+            } catch (IOException e) {
+                Logger.warn("Lost connection to host " + e.getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Runs a list of tests, taking the next line whenever the lane is free
+     */
+    private static class ListLane implements Runnable {
+        private final RoboTestListener listener;
+        private final ConcurrentComputer computer;
+        private final Queue<String> lines;
+
+        ListLane(RoboTestListener listener, ConcurrentComputer computer, Queue<String> lines) {
+            this.listener = listener;
+            this.computer = computer;
+            this.lines = lines;
+        }
+
+        @Override
+        public void run() {
+            JUnitCore jUnitCore = new JUnitCore();
+            /* provide a means to call back to server */
+            jUnitCore.addListener(listener);
+            String classLine;
+            while ((classLine = lines.poll()) != null) {
+                TestRunner.run(jUnitCore, computer, listener, classLine);
+            }
+        }
+    }
+
+    /**
+     * @return lines of the bundled class list, empty when the app has none
+     */
+    private static List<String> readBundledList() {
+        List<String> lines = new ArrayList<String>();
+        String path = getSharedResource(classList);
+        if (path == null) {
+            Logger.warn("No " + classList + " bundled");
+            return lines;
+        }
+        try {
+            BufferedReader reader = new BufferedReader(new FileReader(new File(path)));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.trim().length() > 0) {
+                        lines.add(line.trim());
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            Logger.warn("Can't read " + classList + " " + e.getMessage());
+        }
+        return lines;
+    }
+
+    /**
+     * @return classes of the bundled list, which patterns are matched against
+     */
+    private static synchronized Set<String> getBundledClasses() {
+        if (bundledClasses == null) {
+            Set<String> classes = new LinkedHashSet<String>();
+            for (String line : readBundledList()) {
+                int hash = line.indexOf('#');
+                classes.add(hash < 0 ? line : line.substring(0, hash));
             }
+            bundledClasses = Collections.unmodifiableSet(classes);
+        }
+        return bundledClasses;
+    }
+
+    /**
+     * Run a class, Class#method or pattern line
+     * 
+     * @param jUnitCore
+     * @param computer
+     * @param listener
+     *            listener of the lane, decides which failed tests run again
+     * @param classLine
+     *            class, Class#method or pattern
+     */
+    private static void run(JUnitCore jUnitCore, ConcurrentComputer computer, RoboTestListener listener,
+            String classLine) {
+        if (TestPattern.isPattern(classLine)) {
+            Logger.debug("Running tests matching " + classLine);
+            runPattern(jUnitCore, computer, listener, new TestPattern(classLine));
+        } else if (classLine.contains("#")) {
+            Logger.debug("Running method " + classLine);
+            String classMethod[] = classLine.split("#(?=[^\\.]+$)");
+            runMethodOnly(jUnitCore, listener, classMethod[0], classMethod[1]);
+        } else {
+            Logger.debug("Running whole class " + classLine);
+            runClass(jUnitCore, computer, listener, classLine);
         }
     }
 
@@ -64,19 +257,49 @@ public class TestRunner {
         return NSBundle.getMainBundle().findResourcePathInSubPath(fileParts[0], "." + fileParts[1], "test");
     }
 
+    /**
+     * Run the bundled classes and methods matching a pattern
+     * 
+     * @param jUnitCore
+     * @param computer
+     * @param listener
+     * @param pattern
+     */
+    private static void runPattern(JUnitCore jUnitCore, ConcurrentComputer computer, RoboTestListener listener,
+            TestPattern pattern) {
+        Filter methods = pattern.getMethodFilter();
+        for (String className : getBundledClasses()) {
+            if (!pattern.matchesClass(className)) {
+                continue;
+            }
+            try {
+                Runner runner = Request.classes(computer, Class.forName(className)).getRunner();
+                if (methods != null) {
+                    methods.apply(runner);
+                }
+                jUnitCore.run(new RetryRunner(runner, listener));
+            } catch (NoTestsRemainException e) {
+                /* none of its methods match */
+            } catch (ClassNotFoundException e) {
+                Logger.warn("Class not found: " + className);
+            }
+        }
+    }
+
     /**
      * Run a single method test
      * 
      * @param jUnitCore
+     * @param listener
      * @param className
      * @param method
      */
-    private static void runMethodOnly(JUnitCore jUnitCore, String className, String method) {
+    private static void runMethodOnly(JUnitCore jUnitCore, RoboTestListener listener, String className,
+            String method) {
         try {
-            jUnitCore.run(Request.method(Class.forName(className), method));
+            jUnitCore.run(new RetryRunner(Request.method(Class.forName(className), method).getRunner(), listener));
         } catch (ClassNotFoundException e) {
-            log("Class not found: " + className);
-            e.printStackTrace();
+            Logger.warn("Class not found: " + className);
         }
     }
 
@@ -84,18 +307,16 @@ public class TestRunner {
      * Run class methods in the specified class
      * 
      * @param jUnitCore
+     * @param computer
+     * @param listener
      * @param className
      */
-    private static void runClass(JUnitCore jUnitCore, String className) {
+    private static void runClass(JUnitCore jUnitCore, ConcurrentComputer computer, RoboTestListener listener,
+            String className) {
         try {
-            jUnitCore.run(Class.forName(className));
+            jUnitCore.run(new RetryRunner(Request.classes(computer, Class.forName(className)).getRunner(), listener));
         } catch (ClassNotFoundException e) {
-            log("Class not found: " + className);
-            e.printStackTrace();
+            Logger.warn("Class not found: " + className);
         }
     }
-
-    private static void log(String logLine) {
-        System.err.println(logLine);
-    }
 }
\ No newline at end of file
@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2014 Trillian Mobile AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.robovm.devicebridge.internal.server;
+
+import org.robovm.devicebridge.OverflowPolicy;
+import org.robovm.devicebridge.internal.Logger;
+import rx.Observable;
+import rx.Scheduler;
+import rx.Subscriber;
+import rx.functions.Action0;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hands items over to the subscriber on a worker of its own, through a
+ * queue of limited size, so a slow subscriber doesn't hold up the producer
+ * until the queue is full. What happens then depends on the
+ * {@link OverflowPolicy}.
+ */
+public class BoundedBuffer<T> implements Observable.Operator<T, T> {
+
+    private static final Object COMPLETED = new Object();
+    private static final long BLOCK_POLL_MS = 100;
+
+    private final int capacity;
+    private final OverflowPolicy policy;
+    private final Scheduler scheduler;
+
+    /**
+     * @param capacity
+     *            number of items held for the subscriber
+     * @param policy
+     *            what to do with items that don't fit
+     * @param scheduler
+     *            scheduler delivering the items
+     */
+    public BoundedBuffer(int capacity, OverflowPolicy policy, Scheduler scheduler) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Buffer capacity must be positive");
+        }
+        this.capacity = capacity;
+        this.policy = policy;
+        this.scheduler = scheduler;
+    }
+
+    @Override
+    public Subscriber<? super T> call(final Subscriber<? super T> child) {
+        final Scheduler.Worker worker = scheduler.createWorker();
+        final BlockingQueue<T> queue = new ArrayBlockingQueue<T>(capacity);
+        final AtomicInteger wip = new AtomicInteger();
+
+        final Subscriber<T> parent = new Subscriber<T>() {
+            private volatile Object terminal;
+            private boolean dropping;
+
+            private final Action0 drain = new Action0() {
+                @Override
+                public void call() {
+                    do {
+                        T item;
+                        while ((item = queue.poll()) != null) {
+                            if (child.isUnsubscribed()) {
+                                return;
+                            }
+                            child.onNext(item);
+                        }
+                        Object done = terminal;
+                        if (done != null && queue.isEmpty()) {
+                            if (done == COMPLETED) {
+                                child.onCompleted();
+                            } else {
+                                child.onError((Throwable) done);
+                            }
+                            worker.unsubscribe();
+                            return;
+                        }
+                    } while (wip.decrementAndGet() > 0);
+                }
+            };
+
+            @Override
+            public void onNext(T item) {
+                if (terminal != null || !offer(item)) {
+                    return;
+                }
+                schedule();
+            }
+
+            @Override
+            public void onCompleted() {
+                if (terminal == null) {
+                    terminal = COMPLETED;
+                    schedule();
+                }
+            }
+
+            @Override
+            public void onError(Throwable e) {
+                if (terminal == null) {
+                    terminal = e;
+                    schedule();
+                }
+            }
+
+            private boolean offer(T item) {
+                switch (policy) {
+                case BLOCK:
+                    try {
+                        while (!queue.offer(item, BLOCK_POLL_MS, TimeUnit.MILLISECONDS)) {
+                            if (child.isUnsubscribed()) {
+                                return false;
+                            }
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return false;
+                    }
+                    return true;
+                case DROP_OLDEST:
+                    while (!queue.offer(item)) {
+                        queue.poll();
+                        dropped();
+                    }
+                    return true;
+                case DROP_LATEST:
+                    if (!queue.offer(item)) {
+                        dropped();
+                        return false;
+                    }
+                    return true;
+                default:
+                    if (!queue.offer(item)) {
+                        queue.clear();
+                        terminal = new IllegalStateException("Subscriber fell more than " + capacity
+                                + " results behind");
+                    }
+                    return true;
+                }
+            }
+
+            private void dropped() {
+                if (!dropping) {
+                    dropping = true;
+                    Logger.warn("Subscriber too slow, dropping results");
+                }
+            }
+
+            private void schedule() {
+                if (wip.getAndIncrement() == 0) {
+                    worker.schedule(drain);
+                }
+            }
+        };
+        child.add(worker);
+        child.add(parent);
+        return parent;
+    }
+}
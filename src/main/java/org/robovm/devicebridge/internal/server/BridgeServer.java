@@ -0,0 +1,721 @@
+/*
+ * Copyright (C) 2014 Trillian Mobile AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.robovm.devicebridge.internal.server;
+
+import org.junit.runner.Description;
+import org.robovm.devicebridge.ResultObject;
+import org.robovm.devicebridge.internal.Constant;
+import org.robovm.devicebridge.internal.Logger;
+import org.robovm.devicebridge.internal.metrics.BridgeMetrics;
+import org.robovm.devicebridge.internal.protocol.Handshake;
+import rx.Observable;
+import rx.Subscriber;
+import rx.functions.Func1;
+import rx.subjects.PublishSubject;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Serves any number of runners from a single thread using a non-blocking
+ * selector. Each runner, identified by its device id, gets a
+ * {@link DeviceSession} and its own stream of results.
+ * <p>
+ * A watchdog on the same thread fails tests that run for longer than the
+ * test time limit, after asking the runner for a thread dump, and the tests
+ * still running when the whole run exceeds its limit. The hung runner is then
+ * handed to the hang handler to be killed, and treated like a crashed one.
+ */
+public class BridgeServer {
+
+    /** How long to wait for a runner to reconnect after losing its connection */
+    public static final int RECONNECT_TIMEOUT_MS = 30000;
+
+    /** How often the selector wakes up to check whether all runners are done */
+    static final int POLL_INTERVAL_MS = 1000;
+
+    static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    /** Most bytes buffered for a single connection before it is dropped */
+    static final int MAX_BUFFERED = 64 * 1024 * 1024;
+
+    /** How long to wait for the thread dump of a hung runner */
+    static final long DUMP_TIMEOUT_MS = 5000;
+
+    /** Runners sending heartbeats are hung once they have been silent this long */
+    static final long SILENCE_TIMEOUT_MS = 6 * Constant.HEARTBEAT_INTERVAL_MS;
+
+    private final ServerSocketChannel serverChannel;
+    private final Selector selector;
+    private final int runners;
+    private final TestQueue tests;
+    private final int formats;
+    private final String token;
+
+    private final Map<String, DeviceSession> sessions = new HashMap<String, DeviceSession>();
+    private final Map<DeviceSession, PublishSubject<ResultObject>> streams = new HashMap<DeviceSession, PublishSubject<ResultObject>>();
+    private final Map<DeviceSession, Connection> live = new HashMap<DeviceSession, Connection>();
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+    private final BridgeMetrics metrics = new BridgeMetrics();
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+    private int lostRunners;
+    private long testTimeout;
+    private long runTimeout;
+    private long startedAt;
+    private boolean runTimedOut;
+    private Func1<String, Boolean> hangHandler;
+    private volatile boolean closed;
+    private volatile boolean stopped;
+
+    /**
+     * @param port
+     *            listening port
+     * @param runners
+     *            number of runners expected to connect
+     * @param tests
+     *            tests to hand out to runners on request, null to let runners
+     *            use their bundled list
+     * @param formats
+     *            bit mask of Handshake.FORMAT_* constants accepted, plus
+     *            Handshake.COMPRESS_DEFLATE to let runners compress
+     * @throws IOException
+     */
+    public BridgeServer(int port, int runners, TestQueue tests, int formats) throws IOException {
+        this(port, runners, tests, formats, null);
+    }
+
+    /**
+     * @param port
+     *            listening port, 0 for any free port
+     * @param runners
+     *            number of runners expected to connect
+     * @param tests
+     *            tests to hand out to runners on request, null to let runners
+     *            use their bundled list
+     * @param formats
+     *            bit mask of Handshake.FORMAT_* constants accepted, plus
+     *            Handshake.COMPRESS_DEFLATE to let runners compress
+     * @param token
+     *            session token of the runners this server's bridge launched;
+     *            runners presenting another one or none at all are turned
+     *            away. Null to accept any runner, such as those started by
+     *            hand or built before tokens.
+     * @throws IOException
+     */
+    public BridgeServer(int port, int runners, TestQueue tests, int formats, String token) throws IOException {
+        this.runners = runners;
+        this.tests = tests;
+        this.formats = formats;
+        this.token = token;
+        this.selector = Selector.open();
+        if (tests != null) {
+            /* runners may be waiting for these tests */
+            tests.setListener(new Runnable() {
+                @Override
+                public void run() {
+                    selector.wakeup();
+                }
+            });
+        }
+        this.serverChannel = ServerSocketChannel.open();
+        serverChannel.socket().setReuseAddress(true);
+        serverChannel.socket().bind(new InetSocketAddress(port));
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        metrics.register(getLocalPort());
+    }
+
+    public int getLocalPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    public BridgeMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Limit how long tests may run, before serving
+     *
+     * @param testTimeout
+     *            in milliseconds, for each test; 0 for no limit
+     * @param runTimeout
+     *            in milliseconds, for all tests from the time serving starts;
+     *            0 for no limit
+     */
+    public void setTimeouts(long testTimeout, long runTimeout) {
+        this.testTimeout = testTimeout;
+        this.runTimeout = runTimeout;
+    }
+
+    /**
+     * Called on the server's thread with the device id a hung runner was
+     * launched with. It should kill the runner, whose exit is then reported
+     * through {@link #runnerExited(String, boolean)} as usual, and return
+     * true; or return false if it can't, and the runner is given up on.
+     *
+     * @param hangHandler
+     */
+    public void setHangHandler(Func1<String, Boolean> hangHandler) {
+        this.hangHandler = hangHandler;
+    }
+
+    /**
+     * Serve runners until all of them finished or failed to reconnect in
+     * time. Emits the results of every runner as its own Observable when it
+     * first connects, subscribe to it right away to see all of them.
+     *
+     * @param subscriber
+     * @throws IOException
+     */
+    public void serve(Subscriber<? super Observable<ResultObject>> subscriber) throws IOException {
+        startedAt = System.currentTimeMillis();
+        try {
+            while (!closed && !subscriber.isUnsubscribed() && !isDone()) {
+                selector.select(POLL_INTERVAL_MS);
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+                    Connection connection = (Connection) key.attachment();
+                    try {
+                        if (key.isReadable()) {
+                            read(connection, subscriber);
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            connection.write();
+                        }
+                    } catch (IOException e) {
+                        Logger.debug("Lost connection to runner " + e.getMessage());
+                        drop(connection);
+                    }
+                }
+                answerWaiting();
+                runTasks();
+                watch();
+            }
+        } finally {
+            stopped = true;
+            runTasks();
+            for (SelectionKey key : selector.keys()) {
+                key.channel().close();
+            }
+            selector.close();
+            metrics.unregister();
+            for (DeviceSession session : sessions.values()) {
+                if (!session.isFinished()) {
+                    session.abandon();
+                }
+            }
+            if (tests != null) {
+                tests.setListener(null);
+                tests.close();
+            }
+        }
+        for (PublishSubject<ResultObject> stream : streams.values()) {
+            stream.onCompleted();
+        }
+        subscriber.onCompleted();
+    }
+
+    /**
+     * Stop serving, from any thread
+     */
+    public void close() {
+        closed = true;
+        selector.wakeup();
+    }
+
+    /**
+     * A runner process exited, from any thread. A runner that ended normally
+     * has finished its sessions by then, any other session of the process
+     * crashed: the tests it was running fail, the others are left for the
+     * next runner to ask for.
+     *
+     * @param deviceId
+     *            device id the process was launched with
+     * @param mayRelaunch
+     *            whether the process may be launched again
+     * @return whether the process crashed and should be launched again to run
+     *         the tests that are left
+     * @throws InterruptedException
+     */
+    public boolean runnerExited(final String deviceId, final boolean mayRelaunch) throws InterruptedException {
+        FutureTask<Boolean> task = new FutureTask<Boolean>(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return exited(deviceId, mayRelaunch);
+            }
+        });
+        tasks.add(task);
+        selector.wakeup();
+        while (true) {
+            try {
+                return task.get(POLL_INTERVAL_MS, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                if (stopped && !task.isDone()) {
+                    return false;
+                }
+            } catch (ExecutionException e) {
+                Logger.warn("Could not handle exit of runner " + deviceId + " " + e.getCause());
+                return false;
+            }
+        }
+    }
+
+    private boolean exited(String deviceId, boolean mayRelaunch) {
+        boolean connected = false;
+        List<DeviceSession> crashed = new ArrayList<DeviceSession>();
+        for (DeviceSession session : sessions.values()) {
+            String id = session.getDeviceId();
+            if (id.equals(deviceId) || id.startsWith(deviceId + Constant.LANE_SEPARATOR)) {
+                connected = true;
+                if (!session.isFinished()) {
+                    crashed.add(session);
+                }
+            }
+        }
+        if (connected && crashed.isEmpty()) {
+            return false;
+        }
+
+        /* only runners asking for their tests can resume where the crash left off */
+        boolean relaunch = mayRelaunch && tests != null && !stopped && !runTimedOut;
+        Logger.warn("Runner " + deviceId + " crashed" + (relaunch ? ", launching it again" : ""));
+        for (DeviceSession session : crashed) {
+            crash(session);
+            if (relaunch) {
+                /* the new process starts a session of its own */
+                sessions.remove(session.getDeviceId());
+            }
+        }
+        if (!connected && !relaunch) {
+            lostRunners++;
+        }
+        return relaunch;
+    }
+
+    private void crash(DeviceSession session) {
+        Connection connection = live.get(session);
+        if (connection != null) {
+            drop(connection);
+        }
+        PublishSubject<ResultObject> stream = streams.get(session);
+        for (ResultObject result : session.crash()) {
+            stream.onNext(result);
+        }
+        stream.onCompleted();
+    }
+
+    /**
+     * Deal with runners that exceeded a time limit or stopped responding
+     */
+    private void watch() {
+        long now = System.currentTimeMillis();
+        if (runTimeout > 0 && !runTimedOut && now - startedAt > runTimeout) {
+            runTimedOut = true;
+            Logger.warn("Run timed out after " + runTimeout + " ms");
+            for (DeviceSession session : new ArrayList<DeviceSession>(sessions.values())) {
+                if (session.isFinished() || session.isTimedOut()) {
+                    continue;
+                }
+                Description test;
+                while ((test = session.getOldestRunning()) != null) {
+                    timeOut(session, test, "Run timed out after " + runTimeout + " ms while " + test.getDisplayName()
+                            + " was running");
+                }
+                timeOut(session, null, null);
+                kill(session);
+            }
+            return;
+        }
+
+        for (DeviceSession session : new ArrayList<DeviceSession>(sessions.values())) {
+            if (session.isSilent(now, SILENCE_TIMEOUT_MS)) {
+                Logger.warn("Runner " + session.getDeviceId() + " stopped responding");
+                timeOut(session, session.getOldestRunning(), "Runner " + session.getDeviceId()
+                        + " stopped responding for " + SILENCE_TIMEOUT_MS + " ms");
+                kill(session);
+                continue;
+            }
+            Description test = testTimeout > 0 ? session.findHang(now, testTimeout) : null;
+            if (test == null) {
+                /* the test was slow rather than hung */
+                session.forgetThreadDump();
+                continue;
+            }
+            Connection connection = live.get(session);
+            if (connection != null && session.getDumpRequestedAt() == 0) {
+                try {
+                    session.requestThreadDump(connection.control);
+                    connection.write();
+                    continue;
+                } catch (IOException e) {
+                    Logger.debug("Lost connection to runner " + e.getMessage());
+                    drop(connection);
+                }
+            }
+            if (session.hasThreadDump() || now - session.getDumpRequestedAt() > DUMP_TIMEOUT_MS
+                    || live.get(session) == null) {
+                Logger.warn("Test " + test.getDisplayName() + " on " + session.getDeviceId() + " timed out");
+                timeOut(session, test, "Test " + test.getDisplayName() + " timed out after " + testTimeout + " ms");
+                kill(session);
+            }
+        }
+    }
+
+    private void timeOut(DeviceSession session, Description test, String reason) {
+        PublishSubject<ResultObject> stream = streams.get(session);
+        for (ResultObject result : session.timeOut(test, reason)) {
+            stream.onNext(result);
+        }
+    }
+
+    /**
+     * Have the process of a hung session killed, or give up on it
+     */
+    private void kill(DeviceSession session) {
+        String id = session.getDeviceId();
+        int lane = id.indexOf(Constant.LANE_SEPARATOR);
+        String process = lane < 0 ? id : id.substring(0, lane);
+        if (hangHandler == null || !hangHandler.call(process)) {
+            exited(process, false);
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            task.run();
+        }
+    }
+
+    /**
+     * Hand newly submitted tests to runners waiting for them
+     */
+    private void answerWaiting() {
+        for (Connection connection : new ArrayList<Connection>(live.values())) {
+            DeviceSession session = connection.session;
+            if (!session.isWaiting()) {
+                continue;
+            }
+            try {
+                if (session.answer(connection.control)) {
+                    connection.write();
+                }
+            } catch (IOException e) {
+                Logger.debug("Lost connection to runner " + e.getMessage());
+                drop(connection);
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = serverChannel.accept();
+        if (channel == null) {
+            return;
+        }
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+        key.attach(new Connection(key));
+    }
+
+    private void read(Connection connection, Subscriber<? super Observable<ResultObject>> subscriber)
+            throws IOException {
+        readBuffer.clear();
+        int read = connection.channel.read(readBuffer);
+        if (read < 0) {
+            throw new IOException("Runner closed the connection");
+        }
+        long receivedAt = System.nanoTime();
+        metrics.bytesReceived(read);
+        readBuffer.flip();
+        if (connection.inflater != null) {
+            connection.inflate(readBuffer);
+        } else {
+            connection.append(readBuffer);
+        }
+
+        connection.input.flip();
+        try {
+            if (connection.session == null && !startSession(connection, subscriber)) {
+                return;
+            }
+            /* may have been replaced when the hello turned on compression */
+            ByteBuffer input = connection.input;
+
+            DeviceSession session = connection.session;
+            PublishSubject<ResultObject> stream = streams.get(session);
+            boolean received = false;
+            while (!session.isFinished()) {
+                long decodeStart = System.nanoTime();
+                /* frames resent after a reconnect aren't decoded again, the tables moved on */
+                ResultObject resultObject = session.getCodec().read(input, session.getLastSequence());
+                if (resultObject == null) {
+                    break;
+                }
+                resultObject.setReceivedAt(receivedAt);
+                resultObject.setDecodeTime(System.nanoTime() - decodeStart);
+                if (Logger.isDebugEnabled()) {
+                    Logger.debug("Read result " + resultObject.getSequence() + " of type "
+                            + resultObject.getResultType() + " from " + session.getDeviceId());
+                }
+                received = true;
+                ResultObject result = session.receive(resultObject, connection.control);
+                if (result != null) {
+                    metrics.received(result);
+                    stream.onNext(result);
+                }
+            }
+
+            /* acknowledge once we've caught up with what the runner has sent */
+            if (received) {
+                session.acknowledge(connection.control);
+            }
+            if (session.isFinished()) {
+                stream.onCompleted();
+                connection.closeAfterWrite = true;
+            }
+        } finally {
+            connection.input.compact();
+        }
+        connection.write();
+    }
+
+    /**
+     * Complete the handshake and attach the connection to its runner's
+     * session
+     *
+     * @return false while the hello is incomplete
+     */
+    private boolean startSession(Connection connection, Subscriber<? super Observable<ResultObject>> subscriber)
+            throws IOException {
+        Handshake handshake = Handshake.accept(connection.input, formats, tests != null);
+        if (handshake == null) {
+            return false;
+        }
+        if (token != null && !token.equals(handshake.getToken())) {
+            /* most likely a runner launched by another bridge on this host */
+            Logger.warn("Rejecting runner " + handshake.getDeviceId()
+                    + (handshake.getToken() == null ? " without a session token" : " with another session's token"));
+            throw new IOException("Wrong session token from runner " + handshake.getDeviceId());
+        }
+        DeviceSession session = sessions.get(handshake.getDeviceId());
+        Connection previous = session == null ? null : live.get(session);
+        if (previous != null) {
+            /* what is still unread on it is resent after the last acknowledged frame */
+            drop(previous);
+        }
+        if (handshake.getReply() != null) {
+            connection.control.write(handshake.getReply(session == null ? 0 : session.getLastSequence()));
+            connection.control.flush();
+        }
+        if (handshake.getFormat() == 0) {
+            connection.write();
+            throw new IOException("No common wire format with runner " + handshake.getDeviceId());
+        }
+        if (handshake.isCompressed()) {
+            connection.startInflating();
+        }
+
+        if (session == null) {
+            session = new DeviceSession(handshake.getDeviceId(), tests);
+            sessions.put(session.getDeviceId(), session);
+            PublishSubject<ResultObject> stream = PublishSubject.create();
+            streams.put(session, stream);
+            subscriber.onNext(stream);
+        }
+        Logger.debug("Runner " + session.getDeviceId() + " connected");
+        session.connected(handshake, connection.control);
+        connection.session = session;
+        live.put(session, connection);
+        return true;
+    }
+
+    private void drop(Connection connection) {
+        connection.key.cancel();
+        if (connection.inflater != null) {
+            connection.inflater.end();
+            connection.inflater = null;
+        }
+        try {
+            connection.channel.close();
+        } catch (IOException ignored) {
+        }
+        if (connection.session != null && live.get(connection.session) == connection) {
+            live.remove(connection.session);
+            connection.session.disconnected();
+        }
+    }
+
+    private boolean isDone() {
+        if (sessions.size() + lostRunners < runners) {
+            return false;
+        }
+        long now = System.currentTimeMillis();
+        for (DeviceSession session : sessions.values()) {
+            if (session.isFinished()) {
+                continue;
+            }
+            if (!session.isConnected() && now - session.getDisconnectedAt() > RECONNECT_TIMEOUT_MS) {
+                Logger.warn("Runner " + session.getDeviceId() + " did not reconnect");
+                crash(session);
+                continue;
+            }
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * One runner connection and the bytes waiting to be read or written on it
+     */
+    private class Connection {
+        final SelectionKey key;
+        final SocketChannel channel;
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        final Writer control;
+
+        ByteBuffer input = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        ByteBuffer pending;
+        DeviceSession session;
+        boolean closeAfterWrite;
+        Inflater inflater;
+
+        Connection(SelectionKey key) throws IOException {
+            this.key = key;
+            this.channel = (SocketChannel) key.channel();
+            this.control = new OutputStreamWriter(output, "UTF-8");
+        }
+
+        void append(ByteBuffer bytes) throws IOException {
+            reserve(bytes.remaining());
+            input.put(bytes);
+        }
+
+        /**
+         * Everything after the hello is compressed, inflate what has already
+         * arrived of it. Called with the input flipped for reading.
+         */
+        void startInflating() throws IOException {
+            inflater = new Inflater();
+            ByteBuffer compressed = ByteBuffer.allocate(input.remaining());
+            compressed.put(input).flip();
+            input.clear();
+            inflate(compressed);
+            input.flip();
+        }
+
+        void inflate(ByteBuffer bytes) throws IOException {
+            int length = bytes.remaining();
+            if (length == 0) {
+                return;
+            }
+            byte[] compressed = new byte[length];
+            bytes.get(compressed);
+            long start = System.nanoTime();
+            int inflated = 0;
+            inflater.setInput(compressed);
+            try {
+                while (true) {
+                    if (!input.hasRemaining()) {
+                        reserve(READ_BUFFER_SIZE);
+                    }
+                    int count = inflater.inflate(input.array(), input.arrayOffset() + input.position(),
+                            input.remaining());
+                    input.position(input.position() + count);
+                    inflated += count;
+                    /* no progress with room to spare: all input used up */
+                    if (count == 0 && input.hasRemaining()) {
+                        break;
+                    }
+                }
+            } catch (DataFormatException e) {
+                throw new IOException("Corrupt compressed stream from runner " + e.getMessage());
+            }
+            metrics.inflated(length, inflated, System.nanoTime() - start);
+        }
+
+        private void reserve(int count) throws IOException {
+            if (input.remaining() >= count) {
+                return;
+            }
+            int needed = input.position() + count;
+            if (needed > MAX_BUFFERED) {
+                throw new IOException("Runner sent more than " + MAX_BUFFERED + " bytes without a complete frame");
+            }
+            ByteBuffer larger = ByteBuffer.allocate(Math.max(needed, input.capacity() * 2));
+            input.flip();
+            larger.put(input);
+            input = larger;
+        }
+
+        void write() throws IOException {
+            if (output.size() > 0) {
+                ByteBuffer bytes = ByteBuffer.wrap(output.toByteArray());
+                output.reset();
+                if (pending != null && pending.hasRemaining()) {
+                    ByteBuffer joined = ByteBuffer.allocate(pending.remaining() + bytes.remaining());
+                    joined.put(pending).put(bytes).flip();
+                    bytes = joined;
+                }
+                pending = bytes;
+            }
+            if (pending != null) {
+                channel.write(pending);
+            }
+            if (pending != null && pending.hasRemaining()) {
+                key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            } else {
+                pending = null;
+                if (closeAfterWrite) {
+                    drop(this);
+                } else {
+                    key.interestOps(SelectionKey.OP_READ);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,420 @@
+/*
+ * Copyright (C) 2014 Trillian Mobile AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.robovm.devicebridge.internal.server;
+
+import org.junit.runner.Description;
+import org.junit.runner.notification.Failure;
+import org.robovm.devicebridge.ResultObject;
+import org.robovm.devicebridge.RunnerCrashedException;
+import org.robovm.devicebridge.TestTimeoutException;
+import org.robovm.devicebridge.internal.Constant;
+import org.robovm.devicebridge.internal.protocol.Handshake;
+import org.robovm.devicebridge.internal.protocol.ResultCodec;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Bridge side state of one runner, kept across reconnects: what has been
+ * received and acknowledged, the codec in use, the last test handed out and
+ * the tests running right now, with the times the watchdog needs to tell
+ * whether the runner hangs.
+ */
+public class DeviceSession {
+
+    private final String deviceId;
+    private final TestQueue tests;
+
+    private long lastSequence;
+    private boolean finished;
+    private boolean connected;
+    private long disconnectedAt;
+    private int format;
+    private ResultCodec codec;
+
+    private long lastRequest;
+    private String lastAnswer;
+    private boolean waiting;
+    private TestQueue.Entry current;
+    /** Tests running right now, oldest first, with the time they started in milliseconds */
+    private final Map<Description, Long> running = new LinkedHashMap<Description, Long>();
+
+    private long lastProgress = System.currentTimeMillis();
+    private long lastHeard = System.currentTimeMillis();
+    private boolean heartbeating;
+    private long dumpRequestedAt;
+    private String threadDump;
+    private boolean timedOut;
+
+    /**
+     * @param deviceId
+     * @param tests
+     *            queue of tests shared by every runner, null when runners use
+     *            their bundled list
+     */
+    public DeviceSession(String deviceId, TestQueue tests) {
+        this.deviceId = deviceId;
+        this.tests = tests;
+        this.disconnectedAt = System.currentTimeMillis();
+    }
+
+    public String getDeviceId() {
+        return deviceId;
+    }
+
+    public ResultCodec getCodec() {
+        return codec;
+    }
+
+    public boolean isFinished() {
+        return finished;
+    }
+
+    public boolean isConnected() {
+        return connected;
+    }
+
+    /**
+     * @return whether the runner is waiting for a test that hasn't been
+     *         submitted yet
+     */
+    public boolean isWaiting() {
+        return waiting;
+    }
+
+    /**
+     * @return sequence of the last frame received from the runner
+     */
+    public long getLastSequence() {
+        return lastSequence;
+    }
+
+    /**
+     * @return time the runner lost its connection, in milliseconds
+     */
+    public long getDisconnectedAt() {
+        return disconnectedAt;
+    }
+
+    /**
+     * The runner (re)connected
+     *
+     * @param handshake
+     * @param control
+     *            writer to the runner
+     * @throws IOException
+     */
+    public void connected(Handshake handshake, Writer control) throws IOException {
+        connected = true;
+        lastHeard = System.currentTimeMillis();
+        if (codec == null || format != handshake.getFormat()) {
+            codec = Handshake.createCodec(handshake.getFormat());
+            format = handshake.getFormat();
+        }
+        /* the answer to the last test request may have been lost with the old connection */
+        if (lastAnswer != null) {
+            control.write(lastAnswer);
+            control.flush();
+        }
+    }
+
+    public void disconnected() {
+        connected = false;
+        disconnectedAt = System.currentTimeMillis();
+    }
+
+    /**
+     * Give up on a runner that didn't come back
+     */
+    public void abandon() {
+        finish();
+    }
+
+    /**
+     * The runner died without ending its session: fail the tests it was
+     * running and finish the session
+     *
+     * @return results reporting the crash to subscribers
+     */
+    public List<ResultObject> crash() {
+        List<ResultObject> results = new ArrayList<ResultObject>();
+        for (Description test : running.keySet()) {
+            ResultObject failure = new ResultObject();
+            failure.setResultType(ResultObject.TEST_FAILURE);
+            failure.setFailure(new Failure(test, new RunnerCrashedException("Runner " + deviceId
+                    + " crashed while running " + test.getDisplayName())));
+            results.add(failure);
+        }
+        ResultObject crashed = new ResultObject();
+        crashed.setResultType(ResultObject.RUNNER_CRASHED);
+        crashed.setDescription(running.isEmpty() ? null : running.keySet().iterator().next());
+        results.add(crashed);
+
+        publish(results);
+        running.clear();
+        finish();
+        return results;
+    }
+
+    /**
+     * @return the test that has been running for longer than the limit, a
+     *         description of the class handed out when the runner got stuck
+     *         outside of a test, null if the runner isn't stuck
+     */
+    public Description findHang(long now, long limit) {
+        if (finished || timedOut) {
+            return null;
+        }
+        for (Map.Entry<Description, Long> test : running.entrySet()) {
+            if (now - test.getValue() > limit) {
+                return test.getKey();
+            }
+        }
+        if (running.isEmpty() && current != null && now - lastProgress > limit) {
+            /* such as in a @BeforeClass method */
+            return Description.createSuiteDescription(current.getTest());
+        }
+        return null;
+    }
+
+    /**
+     * @return whether a runner that sends heartbeats has been connected but
+     *         silent for longer than the limit
+     */
+    public boolean isSilent(long now, long limit) {
+        return connected && heartbeating && !finished && !timedOut && now - lastHeard > limit;
+    }
+
+    /**
+     * @return the test that has been running the longest, null if none
+     */
+    public Description getOldestRunning() {
+        return running.isEmpty() ? null : running.keySet().iterator().next();
+    }
+
+    /**
+     * Ask the runner for a dump of its threads
+     *
+     * @param control
+     *            writer to the runner
+     * @throws IOException
+     */
+    public void requestThreadDump(Writer control) throws IOException {
+        dumpRequestedAt = System.currentTimeMillis();
+        control.write(Constant.DUMP + "\n");
+        control.flush();
+    }
+
+    /**
+     * @return time the thread dump was asked for in milliseconds, 0 if it
+     *         wasn't
+     */
+    public long getDumpRequestedAt() {
+        return dumpRequestedAt;
+    }
+
+    public boolean hasThreadDump() {
+        return threadDump != null;
+    }
+
+    public void forgetThreadDump() {
+        dumpRequestedAt = 0;
+        threadDump = null;
+    }
+
+    /**
+     * @return whether the watchdog gave up on the runner
+     */
+    public boolean isTimedOut() {
+        return timedOut;
+    }
+
+    /**
+     * The watchdog gave up on the runner: fail the given test, with the
+     * thread dump if there is one. The session ends once the runner has been
+     * dealt with, see {@link #crash()}.
+     *
+     * @param test
+     *            test to fail, null for none
+     * @param reason
+     * @return results reporting the timeout to subscribers
+     */
+    public List<ResultObject> timeOut(Description test, String reason) {
+        timedOut = true;
+        List<ResultObject> results = new ArrayList<ResultObject>();
+        if (test != null) {
+            running.remove(test);
+            ResultObject failure = new ResultObject();
+            failure.setResultType(ResultObject.TEST_FAILURE);
+            failure.setFailure(new Failure(test, new TestTimeoutException(threadDump == null ? reason : reason
+                    + "\n\nThread dump of runner " + deviceId + ":\n" + threadDump)));
+            results.add(failure);
+        }
+        publish(results);
+        return results;
+    }
+
+    /**
+     * Hand out the next test to a waiting runner
+     *
+     * @param control
+     *            writer to the runner
+     * @return false while the runner has to keep waiting
+     * @throws IOException
+     */
+    public boolean answer(Writer control) throws IOException {
+        if (!waiting) {
+            return false;
+        }
+        TestQueue.Entry entry = tests == null ? null : tests.poll();
+        if (entry == null && tests != null && tests.isOpen()) {
+            return false;
+        }
+        waiting = false;
+        current = entry;
+        lastProgress = System.currentTimeMillis();
+        lastAnswer = Constant.TEST + lastRequest + (entry == null ? "" : " " + entry.getTest()) + "\n";
+        control.write(lastAnswer);
+        control.flush();
+        return true;
+    }
+
+    /**
+     * Handle a frame received from the runner
+     *
+     * @param message
+     * @param control
+     *            writer to the runner
+     * @return the result to hand to subscribers, null for duplicates and
+     *         protocol frames
+     * @throws IOException
+     */
+    public ResultObject receive(ResultObject message, Writer control) throws IOException {
+        lastHeard = System.currentTimeMillis();
+        long sequence = message.getSequence();
+        boolean duplicate = sequence != 0 && sequence <= lastSequence;
+        if (!duplicate) {
+            lastSequence = Math.max(sequence, lastSequence);
+        }
+
+        switch (message.getResultType()) {
+        case ResultObject.REQUEST_TEST:
+            if (!duplicate) {
+                /* asking for the next test means the runner is done with the current one */
+                finishCurrent();
+                lastRequest = sequence;
+                lastAnswer = null;
+                waiting = true;
+                answer(control);
+            } else if (sequence == lastRequest && lastAnswer != null) {
+                control.write(lastAnswer);
+                control.flush();
+            }
+            return null;
+
+        case ResultObject.SESSION_END:
+            finish();
+            return null;
+
+        case ResultObject.HEARTBEAT:
+            heartbeating = true;
+            return null;
+
+        case ResultObject.THREAD_DUMP:
+            if (!duplicate) {
+                threadDump = message.getOutput();
+            }
+            return null;
+
+        default:
+            if (duplicate) {
+                return null;
+            }
+            message.setDeviceId(deviceId);
+            track(message);
+            if (current != null && current.getRun() != null) {
+                current.getRun().publish(message);
+            }
+            return message;
+        }
+    }
+
+    /**
+     * Acknowledge everything received so far
+     *
+     * @param control
+     *            writer to the runner
+     * @throws IOException
+     */
+    public void acknowledge(Writer control) throws IOException {
+        control.write(Constant.ACK + lastSequence + "\n");
+        control.flush();
+    }
+
+    private void track(ResultObject message) {
+        switch (message.getResultType()) {
+        case ResultObject.TEST_STARTED:
+            if (message.getDescription() != null) {
+                running.put(message.getDescription(), System.currentTimeMillis());
+            }
+            lastProgress = System.currentTimeMillis();
+            break;
+        case ResultObject.TEST_FINISHED:
+            running.remove(message.getDescription());
+            lastProgress = System.currentTimeMillis();
+            break;
+        case ResultObject.TEST_FAILURE:
+        case ResultObject.TEST_ATTEMPT_FAILED:
+            if (message.getFailure() != null) {
+                running.remove(message.getFailure().getDescription());
+            }
+            lastProgress = System.currentTimeMillis();
+            break;
+        default:
+            break;
+        }
+    }
+
+    /**
+     * Hand results the bridge made up to subscribers of the current run
+     */
+    private void publish(List<ResultObject> results) {
+        for (ResultObject result : results) {
+            result.setDeviceId(deviceId);
+            result.setReceivedAt(System.nanoTime());
+            if (current != null && current.getRun() != null) {
+                current.getRun().publish(result);
+            }
+        }
+    }
+
+    private void finish() {
+        finishCurrent();
+        waiting = false;
+        finished = true;
+    }
+
+    private void finishCurrent() {
+        if (current != null) {
+            current.finished();
+            current = null;
+        }
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2014 Trillian Mobile AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.robovm.devicebridge.internal.server;
+
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Tests waiting to be handed out to runners. A fixed list is closed from the
+ * start, so runners stop once it is used up. An open queue keeps runners
+ * waiting for more tests until it is closed.
+ */
+public class TestQueue {
+
+    private final Queue<Entry> entries = new ConcurrentLinkedQueue<Entry>();
+    private volatile boolean open;
+    private volatile Runnable listener;
+
+    /**
+     * Open queue, tests are added with {@link #submit(TestRun, List)}
+     */
+    public TestQueue() {
+        this.open = true;
+    }
+
+    /**
+     * Fixed list of Class or Class#method entries
+     *
+     * @param tests
+     */
+    public TestQueue(List<String> tests) {
+        for (String test : tests) {
+            entries.add(new Entry(test, null));
+        }
+    }
+
+    /**
+     * Queue the tests of a run
+     *
+     * @param run
+     * @param tests
+     *            Class or Class#method entries
+     */
+    public void submit(TestRun run, List<String> tests) {
+        if (!open) {
+            throw new IllegalStateException("Test queue is closed");
+        }
+        for (String test : tests) {
+            entries.add(new Entry(test, run));
+        }
+        notifyListener();
+    }
+
+    /**
+     * @return next entry, null when there is none right now
+     */
+    public Entry poll() {
+        return entries.poll();
+    }
+
+    /**
+     * @return whether more tests may still be submitted
+     */
+    public boolean isOpen() {
+        return open;
+    }
+
+    /**
+     * Let runners stop once they are done with their current test. Tests that
+     * haven't been handed out yet are dropped.
+     */
+    public void close() {
+        open = false;
+        Entry entry;
+        while ((entry = entries.poll()) != null) {
+            entry.finished();
+        }
+        notifyListener();
+    }
+
+    /**
+     * @param listener
+     *            called when tests are submitted or the queue is closed
+     */
+    public void setListener(Runnable listener) {
+        this.listener = listener;
+    }
+
+    private void notifyListener() {
+        Runnable current = listener;
+        if (current != null) {
+            current.run();
+        }
+    }
+
+    /**
+     * A test and the run it belongs to
+     */
+    public static class Entry {
+        private final String test;
+        private final TestRun run;
+
+        Entry(String test, TestRun run) {
+            this.test = test;
+            this.run = run;
+        }
+
+        public String getTest() {
+            return test;
+        }
+
+        /**
+         * @return run the test was submitted with, null for a fixed list
+         */
+        public TestRun getRun() {
+            return run;
+        }
+
+        /**
+         * The runner is done with this test, or won't run it
+         */
+        public void finished() {
+            if (run != null) {
+                run.entryFinished();
+            }
+        }
+    }
+}
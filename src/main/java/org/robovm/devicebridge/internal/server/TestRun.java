@@ -0,0 +1,60 @@
+/*
+ * Copyright (C) 2014 Trillian Mobile AB
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.robovm.devicebridge.internal.server;
+
+import org.robovm.devicebridge.ResultObject;
+import rx.Observable;
+import rx.subjects.ReplaySubject;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests submitted together to a warm runner and the results they produce.
+ * The results complete once every test has run.
+ */
+public class TestRun {
+
+    private final ReplaySubject<ResultObject> results = ReplaySubject.create();
+    private final AtomicInteger remaining;
+
+    /**
+     * @param size
+     *            number of tests in the run
+     */
+    public TestRun(int size) {
+        this.remaining = new AtomicInteger(size);
+        if (size == 0) {
+            results.onCompleted();
+        }
+    }
+
+    /**
+     * @return results of the run, replayed to late subscribers
+     */
+    public Observable<ResultObject> getResults() {
+        return results;
+    }
+
+    void publish(ResultObject result) {
+        results.onNext(result);
+    }
+
+    void entryFinished() {
+        if (remaining.decrementAndGet() == 0) {
+            results.onCompleted();
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package org.robovm.junitbridge;
+
+import org.junit.Test;
+import org.robovm.devicebridge.OverflowPolicy;
+import org.robovm.devicebridge.ResultBatches;
+import org.robovm.devicebridge.ResultObject;
+import org.robovm.devicebridge.internal.server.BoundedBuffer;
+import rx.Observable;
+import rx.Subscriber;
+import rx.observables.BlockingObservable;
+import rx.schedulers.Schedulers;
+import rx.subjects.PublishSubject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class BoundedBufferTest {
+
+    @Test
+    public void testBlockKeepsEveryItemInOrder() throws Exception {
+        PublishSubject<Integer> source = PublishSubject.create();
+        final List<Integer> received = Collections.synchronizedList(new ArrayList<Integer>());
+        final CountDownLatch done = new CountDownLatch(1);
+        source.lift(new BoundedBuffer<Integer>(4, OverflowPolicy.BLOCK, Schedulers.newThread())).subscribe(
+                new Subscriber<Integer>() {
+                    @Override
+                    public void onNext(Integer item) {
+                        received.add(item);
+                    }
+
+                    @Override
+                    public void onCompleted() {
+                        done.countDown();
+                    }
+
+                    @Override
+                    public void onError(Throwable e) {
+                    }
+                });
+        for (int i = 0; i < 1000; i++) {
+            source.onNext(i);
+        }
+        source.onCompleted();
+
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals(1000, received.size());
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(i, received.get(i).intValue());
+        }
+    }
+
+    @Test
+    public void testSlowSubscriberDoesNotHoldUpProducer() throws Exception {
+        PublishSubject<Integer> source = PublishSubject.create();
+        final CountDownLatch release = new CountDownLatch(1);
+        final List<Integer> received = Collections.synchronizedList(new ArrayList<Integer>());
+        final CountDownLatch done = new CountDownLatch(1);
+        source.lift(new BoundedBuffer<Integer>(10, OverflowPolicy.DROP_LATEST, Schedulers.newThread())).subscribe(
+                new Subscriber<Integer>() {
+                    @Override
+                    public void onNext(Integer item) {
+                        try {
+                            release.await();
+                        } catch (InterruptedException e) {
+                        }
+                        received.add(item);
+                    }
+
+                    @Override
+                    public void onCompleted() {
+                        done.countDown();
+                    }
+
+                    @Override
+                    public void onError(Throwable e) {
+                    }
+                });
+        for (int i = 0; i < 100; i++) {
+            source.onNext(i);
+        }
+        source.onCompleted();
+        release.countDown();
+
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        /* the first item is being delivered, the buffer holds the next ten */
+        assertTrue(received.size() <= 11);
+        assertEquals(0, received.get(0).intValue());
+    }
+
+    @Test
+    public void testFailSignalsOverflow() throws Exception {
+        PublishSubject<Integer> source = PublishSubject.create();
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+        final CountDownLatch done = new CountDownLatch(1);
+        source.lift(new BoundedBuffer<Integer>(10, OverflowPolicy.FAIL, Schedulers.newThread())).subscribe(
+                new Subscriber<Integer>() {
+                    @Override
+                    public void onNext(Integer item) {
+                        try {
+                            release.await();
+                        } catch (InterruptedException e) {
+                        }
+                    }
+
+                    @Override
+                    public void onCompleted() {
+                        done.countDown();
+                    }
+
+                    @Override
+                    public void onError(Throwable e) {
+                        error.set(e);
+                        done.countDown();
+                    }
+                });
+        for (int i = 0; i < 100; i++) {
+            source.onNext(i);
+        }
+        release.countDown();
+
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertTrue(error.get() instanceof IllegalStateException);
+    }
+
+    @Test
+    public void testBatchesByCount() {
+        List<ResultObject> results = new ArrayList<ResultObject>();
+        for (int i = 0; i < 25; i++) {
+            results.add(new ResultObject());
+        }
+        List<Integer> sizes = new ArrayList<Integer>();
+        for (List<ResultObject> batch : BlockingObservable.from(
+                ResultBatches.byCount(Observable.from(results), 10)).toIterable()) {
+            sizes.add(batch.size());
+        }
+        assertEquals(3, sizes.size());
+        assertEquals(5, sizes.get(2).intValue());
+    }
+}
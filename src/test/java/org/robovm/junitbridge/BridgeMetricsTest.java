@@ -0,0 +1,80 @@
+package org.robovm.junitbridge;
+
+import org.junit.Test;
+import org.junit.runner.Description;
+import org.junit.runner.notification.Failure;
+import org.robovm.devicebridge.ResultObject;
+import org.robovm.devicebridge.internal.metrics.BridgeMetrics;
+import org.robovm.devicebridge.internal.metrics.LatencyHistogram;
+
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BridgeMetricsTest {
+
+    @Test
+    public void testHistogramPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i);
+        }
+
+        assertEquals(1000, histogram.getCount());
+        assertEquals(1000, histogram.getMax());
+        assertWithin(500, histogram.getPercentile(50));
+        assertWithin(990, histogram.getPercentile(99));
+        assertEquals(1000, histogram.getPercentile(100));
+        assertEquals(0, new LatencyHistogram().getPercentile(50));
+    }
+
+    @Test
+    public void testPublishedOverJmx() throws Exception {
+        BridgeMetrics metrics = new BridgeMetrics();
+        metrics.register(47001);
+        ObjectName name = new ObjectName("org.robovm.devicebridge:type=Bridge,port=47001");
+        try {
+            long start = 5000000000L;
+            metrics.received(result(ResultObject.TEST_STARTED, start, start + 2000000));
+            /* arrived 3ms later than the fastest delivery, after running 40ms */
+            metrics.received(result(ResultObject.TEST_FINISHED, start + 40000000, start + 45000000));
+
+            assertEquals(2L, ManagementFactory.getPlatformMBeanServer().getAttribute(name, "Events"));
+            assertWithin(40, metrics.getTestDurationMax());
+            assertWithin(3000, metrics.getLagMax());
+        } finally {
+            metrics.unregister();
+        }
+        assertFalse(ManagementFactory.getPlatformMBeanServer().isRegistered(name));
+    }
+
+    @Test
+    public void testFailedTestsCountTheirDuration() {
+        BridgeMetrics metrics = new BridgeMetrics();
+        long start = 5000000000L;
+        metrics.received(result(ResultObject.TEST_STARTED, start, start));
+        ResultObject failure = result(ResultObject.TEST_FAILURE, start + 80000000, start + 80000000);
+        failure.setFailure(new Failure(failure.getDescription(), new AssertionError("failed")));
+        failure.setDescription(null);
+        metrics.received(failure);
+
+        assertWithin(80, metrics.getTestDurationMax());
+    }
+
+    private ResultObject result(int type, long timestamp, long receivedAt) {
+        ResultObject result = new ResultObject();
+        result.setResultType(type);
+        result.setDescription(Description.createTestDescription("a.A", "testA"));
+        result.setDeviceId("device-0");
+        result.setTimestamp(timestamp);
+        result.setReceivedAt(receivedAt);
+        return result;
+    }
+
+    private static void assertWithin(long expected, long actual) {
+        assertTrue("expected about " + expected + " but was " + actual, Math.abs(actual - expected) <= expected / 4);
+    }
+}
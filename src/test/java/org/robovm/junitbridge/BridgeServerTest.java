@@ -0,0 +1,518 @@
+package org.robovm.junitbridge;
+
+import org.junit.Test;
+import org.junit.runner.Description;
+import org.junit.runner.JUnitCore;
+import org.junit.runner.Request;
+import org.junit.runner.Result;
+import org.robovm.devicebridge.ResultObject;
+import org.robovm.devicebridge.RoboVMDeviceBridge;
+import org.robovm.devicebridge.TestDaemon;
+import org.robovm.devicebridge.TestTimeoutException;
+import org.robovm.devicebridge.internal.Constant;
+import org.robovm.devicebridge.internal.listener.ResultSender;
+import org.robovm.devicebridge.internal.listener.RoboTestListener;
+import org.robovm.devicebridge.internal.protocol.BinaryResultCodec;
+import org.robovm.devicebridge.internal.protocol.Handshake;
+import org.robovm.devicebridge.internal.runner.RetryRunner;
+import org.robovm.devicebridge.internal.server.BridgeServer;
+import rx.Observable;
+import rx.Subscriber;
+import rx.functions.Action1;
+import rx.functions.Func1;
+import rx.observables.BlockingObservable;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BridgeServerTest {
+
+    private static final int DEVICES = 50;
+    private static final int RESULTS = 200;
+
+    @Test
+    public void testManyDevicesOverLoopback() throws Exception {
+        final int port = freePort();
+        final Map<String, List<String>> received = Collections.synchronizedMap(new HashMap<String, List<String>>());
+
+        final RoboVMDeviceBridge bridge = new RoboVMDeviceBridge();
+        bridge.setTestHistory(null);
+        final Observable<Observable<ResultObject>> sessions = bridge.startSessions(port, DEVICES, null);
+        Thread server = new Thread() {
+            @Override
+            public void run() {
+                BlockingObservable.from(sessions).forEach(new Action1<Observable<ResultObject>>() {
+                    @Override
+                    public void call(Observable<ResultObject> session) {
+                        /* each device has a stream of its own */
+                        final List<String> names = new ArrayList<String>();
+                        session.subscribe(new Action1<ResultObject>() {
+                            @Override
+                            public void call(ResultObject result) {
+                                if (names.isEmpty()) {
+                                    received.put(result.getDeviceId(), names);
+                                }
+                                names.add(result.getDescription().getMethodName());
+                            }
+                        });
+                    }
+                });
+            }
+        };
+        server.start();
+
+        List<Thread> devices = new ArrayList<Thread>();
+        final List<Exception> errors = Collections.synchronizedList(new ArrayList<Exception>());
+        for (int d = 0; d < DEVICES; d++) {
+            final String deviceId = "device-" + d;
+            Thread device = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        /* retries until the server listens */
+                        ResultSender sender = new ResultSender("127.0.0.1", port, deviceId, bridge.getSessionToken());
+                        for (int i = 0; i < RESULTS; i++) {
+                            ResultObject result = new ResultObject();
+                            result.setResultType(ResultObject.TEST_FINISHED);
+                            result.setDescription(Description.createTestDescription("a.A", deviceId + "-" + i));
+                            sender.send(result);
+                        }
+                        sender.close();
+                    } catch (Exception e) {
+                        errors.add(e);
+                    }
+                }
+            };
+            device.start();
+            devices.add(device);
+        }
+        for (Thread device : devices) {
+            device.join();
+        }
+        server.join(60000);
+
+        assertTrue(errors.toString(), errors.isEmpty());
+        assertEquals(DEVICES, received.size());
+        for (Map.Entry<String, List<String>> entry : received.entrySet()) {
+            List<String> names = entry.getValue();
+            assertEquals(RESULTS, names.size());
+            for (int i = 0; i < RESULTS; i++) {
+                assertEquals(entry.getKey() + "-" + i, names.get(i));
+            }
+        }
+    }
+
+    @Test
+    public void testCompressedStream() throws Exception {
+        final int port = freePort();
+        RoboVMDeviceBridge bridge = new RoboVMDeviceBridge();
+        bridge.setTestHistory(null);
+        bridge.setCompressionEnabled(true);
+        final Observable<ResultObject> results = bridge.startServer(port);
+        final List<ResultObject> received = Collections.synchronizedList(new ArrayList<ResultObject>());
+        Thread server = new Thread() {
+            @Override
+            public void run() {
+                received.addAll(BlockingObservable.from(results.toList()).single());
+            }
+        };
+        server.start();
+
+        ResultSender sender = new ResultSender("127.0.0.1", port, "default", bridge.getSessionToken());
+        for (int i = 0; i < RESULTS; i++) {
+            ResultObject result = new ResultObject();
+            result.setResultType(ResultObject.TEST_FINISHED);
+            result.setDescription(Description.createTestDescription("a.A", "test" + i));
+            sender.send(result);
+        }
+        sender.close();
+        server.join(60000);
+
+        assertEquals(RESULTS, received.size());
+        for (int i = 0; i < RESULTS; i++) {
+            assertEquals("test" + i, received.get(i).getDescription().getMethodName());
+        }
+    }
+
+    @Test
+    public void testWarmRunnerRunsSubmittedBatches() throws Exception {
+        final int port = freePort();
+        final RoboVMDeviceBridge bridge = new RoboVMDeviceBridge();
+        bridge.setTestHistory(null);
+        TestDaemon daemon = bridge.startDaemon(port, 1);
+
+        final List<Exception> errors = Collections.synchronizedList(new ArrayList<Exception>());
+        Thread runner = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    ResultSender sender = new ResultSender("127.0.0.1", port, "device-0", bridge.getSessionToken());
+                    String test;
+                    while ((test = sender.requestTest()) != null) {
+                        ResultObject result = new ResultObject();
+                        result.setResultType(ResultObject.TEST_FINISHED);
+                        result.setDescription(Description.createTestDescription("a.A", test));
+                        sender.send(result);
+                    }
+                    sender.close();
+                } catch (Exception e) {
+                    errors.add(e);
+                }
+            }
+        };
+        runner.start();
+
+        for (int batch = 0; batch < 3; batch++) {
+            List<String> tests = Arrays.asList("first" + batch, "second" + batch);
+            List<ResultObject> results = BlockingObservable.from(daemon.submit(tests).toList()).single();
+            assertEquals(2, results.size());
+            assertEquals("first" + batch, results.get(0).getDescription().getMethodName());
+            assertEquals("second" + batch, results.get(1).getDescription().getMethodName());
+        }
+
+        daemon.close();
+        runner.join(10000);
+        assertFalse(runner.isAlive());
+        assertTrue(errors.toString(), errors.isEmpty());
+    }
+
+    @Test
+    public void testRunnerWithoutTokenIsTurnedAway() throws Exception {
+        BridgeServer server = new BridgeServer(RoboVMDeviceBridge.EPHEMERAL_PORT, 1, null,
+                Handshake.FORMAT_BINARY, "secret");
+        final int port = server.getLocalPort();
+        final List<Exception> errors = Collections.synchronizedList(new ArrayList<Exception>());
+        Thread runners = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    new ResultSender("127.0.0.1", port, "intruder", "guess");
+                } catch (IOException e) {
+                    errors.add(e);
+                }
+                try {
+                    /* runners started by hand present no token */
+                    new ResultSender("127.0.0.1", port, "manual", null);
+                } catch (IOException e) {
+                    errors.add(e);
+                }
+                try {
+                    new ResultSender("127.0.0.1", port, "default", "secret").close();
+                } catch (Exception e) {
+                    errors.add(e);
+                }
+            }
+        };
+        runners.start();
+        server.serve(new Subscriber<Observable<ResultObject>>() {
+            @Override
+            public void onNext(Observable<ResultObject> session) {
+                session.subscribe(new Action1<ResultObject>() {
+                    @Override
+                    public void call(ResultObject result) {
+                    }
+                });
+            }
+
+            @Override
+            public void onCompleted() {
+            }
+
+            @Override
+            public void onError(Throwable e) {
+            }
+        });
+        server.close();
+        runners.join(10000);
+
+        assertEquals(2, errors.size());
+        assertTrue(errors.get(0) instanceof IOException);
+        assertTrue(errors.get(1) instanceof IOException);
+    }
+
+    @Test
+    public void testResendAcrossRunBoundary() throws Exception {
+        BridgeServer server = new BridgeServer(RoboVMDeviceBridge.EPHEMERAL_PORT, 1, null,
+                Handshake.FORMAT_BINARY);
+        final int port = server.getLocalPort();
+        final List<Exception> errors = Collections.synchronizedList(new ArrayList<Exception>());
+        final long[] acknowledged = new long[1];
+        Thread runner = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    BinaryResultCodec codec = new BinaryResultCodec();
+                    Description first = Description.createSuiteDescription("a.A");
+                    first.addChild(Description.createTestDescription("a.A", "testFirst"));
+                    Description second = Description.createSuiteDescription("b.B");
+                    second.addChild(Description.createTestDescription("b.B", "testSecond"));
+                    List<byte[]> frames = new ArrayList<byte[]>();
+                    frames.add(codec.encode(frame(1, ResultObject.TEST_RUN_STARTED, first)));
+                    frames.add(codec.encode(frame(2, ResultObject.TEST_STARTED, first.getChildren().get(0))));
+                    frames.add(codec.encode(frame(3, ResultObject.TEST_FINISHED, first.getChildren().get(0))));
+                    /* a new run resets the description ids on both ends */
+                    frames.add(codec.encode(frame(4, ResultObject.TEST_RUN_STARTED, second)));
+                    frames.add(codec.encode(frame(5, ResultObject.TEST_STARTED, second.getChildren().get(0))));
+                    frames.add(codec.encode(frame(6, ResultObject.TEST_FINISHED, second.getChildren().get(0))));
+                    frames.add(codec.encode(frame(7, ResultObject.SESSION_END, null)));
+
+                    /* the connection drops once frames up to 4 got through */
+                    Socket socket = new Socket("127.0.0.1", port);
+                    Handshake.writeHello(socket.getOutputStream(), Handshake.FORMAT_BINARY, "default");
+                    BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+                    Handshake.readReply(in, "default");
+                    for (byte[] bytes : frames.subList(0, 4)) {
+                        socket.getOutputStream().write(bytes);
+                    }
+                    String line;
+                    while ((line = in.readLine()) != null && !line.equals(Constant.ACK + 4)) {
+                    }
+                    socket.close();
+
+                    /* resend from frame 3, as if the acknowledgements had been lost */
+                    socket = new Socket("127.0.0.1", port);
+                    Handshake.writeHello(socket.getOutputStream(), Handshake.FORMAT_BINARY, "default");
+                    in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+                    acknowledged[0] = Handshake.readReply(in, "default").getAcknowledged();
+                    for (byte[] bytes : frames.subList(2, 7)) {
+                        socket.getOutputStream().write(bytes);
+                    }
+                    while ((line = in.readLine()) != null && !line.equals(Constant.ACK + 7)) {
+                    }
+                    socket.close();
+                } catch (Exception e) {
+                    errors.add(e);
+                }
+            }
+        };
+        runner.start();
+        final List<String> received = Collections.synchronizedList(new ArrayList<String>());
+        server.serve(new Subscriber<Observable<ResultObject>>() {
+            @Override
+            public void onNext(Observable<ResultObject> session) {
+                session.subscribe(new Action1<ResultObject>() {
+                    @Override
+                    public void call(ResultObject result) {
+                        received.add(result.getResultType() + " " + result.getDescription().getDisplayName());
+                    }
+                });
+            }
+
+            @Override
+            public void onCompleted() {
+            }
+
+            @Override
+            public void onError(Throwable e) {
+            }
+        });
+        server.close();
+        runner.join(10000);
+
+        assertTrue(errors.toString(), errors.isEmpty());
+        assertEquals(4, acknowledged[0]);
+        assertEquals(Arrays.asList(ResultObject.TEST_RUN_STARTED + " a.A", ResultObject.TEST_STARTED
+                + " testFirst(a.A)", ResultObject.TEST_FINISHED + " testFirst(a.A)", ResultObject.TEST_RUN_STARTED
+                + " b.B", ResultObject.TEST_STARTED + " testSecond(b.B)", ResultObject.TEST_FINISHED
+                + " testSecond(b.B)"), received);
+    }
+
+    @Test
+    public void testHungTestTimesOutWithThreadDump() throws Exception {
+        BridgeServer server = new BridgeServer(RoboVMDeviceBridge.EPHEMERAL_PORT, 1, null,
+                Handshake.FORMAT_BINARY, "secret");
+        server.setTimeouts(300, 0);
+        final int port = server.getLocalPort();
+        final List<Exception> errors = Collections.synchronizedList(new ArrayList<Exception>());
+        final CountDownLatch killed = new CountDownLatch(1);
+        server.setHangHandler(new Func1<String, Boolean>() {
+            @Override
+            public Boolean call(String deviceId) {
+                killed.countDown();
+                return false;
+            }
+        });
+        Thread runner = new Thread("hung-runner") {
+            @Override
+            public void run() {
+                try {
+                    ResultSender sender = new ResultSender("127.0.0.1", port, "default", "secret");
+                    ResultObject started = new ResultObject();
+                    started.setResultType(ResultObject.TEST_STARTED);
+                    started.setDescription(Description.createTestDescription("a.A", "hangs"));
+                    sender.send(started);
+                    sender.flush();
+                    killed.await(10, TimeUnit.SECONDS);
+                    sender.close();
+                } catch (Exception e) {
+                    errors.add(e);
+                }
+            }
+        };
+        runner.start();
+        final List<ResultObject> received = Collections.synchronizedList(new ArrayList<ResultObject>());
+        server.serve(new Subscriber<Observable<ResultObject>>() {
+            @Override
+            public void onNext(Observable<ResultObject> session) {
+                session.subscribe(new Action1<ResultObject>() {
+                    @Override
+                    public void call(ResultObject result) {
+                        received.add(result);
+                    }
+                });
+            }
+
+            @Override
+            public void onCompleted() {
+            }
+
+            @Override
+            public void onError(Throwable e) {
+            }
+        });
+        server.close();
+        runner.join(10000);
+
+        assertEquals(0, killed.getCount());
+        ResultObject failure = null;
+        for (ResultObject result : received) {
+            if (result.getResultType() == ResultObject.TEST_FAILURE && failure == null) {
+                failure = result;
+            }
+        }
+        assertTrue(failure.getFailure().getException() instanceof TestTimeoutException);
+        assertEquals("hangs", failure.getFailure().getDescription().getMethodName());
+        assertTrue(failure.getFailure().getMessage().contains("hung-runner"));
+    }
+
+    @Test
+    public void testFailedTestsAreRetried() throws Exception {
+        BridgeServer server = new BridgeServer(RoboVMDeviceBridge.EPHEMERAL_PORT, 1, null,
+                Handshake.FORMAT_BINARY);
+        final int port = server.getLocalPort();
+        final List<Exception> errors = Collections.synchronizedList(new ArrayList<Exception>());
+        Thread runner = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    RoboTestListener listener = new RoboTestListener(null, "127.0.0.1", String.valueOf(port));
+                    listener.setRetries(2);
+                    JUnitCore jUnitCore = new JUnitCore();
+                    jUnitCore.addListener(listener);
+                    jUnitCore.run(new RetryRunner(Request.aClass(Retried.class).getRunner(), listener));
+                    listener.close();
+                } catch (Exception e) {
+                    errors.add(e);
+                }
+            }
+        };
+        runner.start();
+        final Map<String, List<String>> verdicts = Collections.synchronizedMap(new HashMap<String, List<String>>());
+        final List<Integer> runEvents = Collections.synchronizedList(new ArrayList<Integer>());
+        final List<Result> runResults = Collections.synchronizedList(new ArrayList<Result>());
+        server.serve(new Subscriber<Observable<ResultObject>>() {
+            @Override
+            public void onNext(Observable<ResultObject> session) {
+                session.subscribe(new Action1<ResultObject>() {
+                    @Override
+                    public void call(ResultObject result) {
+                        Description test = result.getFailure() != null ? result.getFailure().getDescription()
+                                : result.getDescription();
+                        if (result.getResultType() == ResultObject.TEST_RUN_STARTED
+                                || result.getResultType() == ResultObject.TEST_RUN_FINISHED) {
+                            runEvents.add(result.getResultType());
+                        }
+                        if (result.getResult() != null) {
+                            runResults.add(result.getResult());
+                        }
+                        if (result.getResultType() == ResultObject.TEST_STARTED
+                                || result.getResultType() == ResultObject.TEST_OUTPUT) {
+                            return;
+                        }
+                        if (test == null || test.getMethodName() == null) {
+                            return;
+                        }
+                        List<String> list = verdicts.get(test.getMethodName());
+                        if (list == null) {
+                            list = new ArrayList<String>();
+                            verdicts.put(test.getMethodName(), list);
+                        }
+                        list.add(result.getResultType() + "@" + result.getAttempt());
+                    }
+                });
+            }
+
+            @Override
+            public void onCompleted() {
+            }
+
+            @Override
+            public void onError(Throwable e) {
+            }
+        });
+        server.close();
+        runner.join(10000);
+
+        assertTrue(errors.toString(), errors.isEmpty());
+        assertEquals(Arrays.asList(ResultObject.TEST_FINISHED + "@0"), verdicts.get("testPasses"));
+        assertEquals(Arrays.asList(ResultObject.TEST_ATTEMPT_FAILED + "@1", ResultObject.TEST_FINISHED + "@2"),
+                verdicts.get("testFlaky"));
+        assertEquals(Arrays.asList(ResultObject.TEST_ATTEMPT_FAILED + "@1", ResultObject.TEST_ATTEMPT_FAILED + "@2",
+                ResultObject.TEST_FAILURE + "@3"), verdicts.get("testBroken"));
+        /* the attempts are part of the one run */
+        assertEquals(Arrays.asList(ResultObject.TEST_RUN_STARTED, ResultObject.TEST_RUN_FINISHED), runEvents);
+        /* counted by their final verdicts */
+        Result run = runResults.get(0);
+        assertEquals(3, run.getRunCount());
+        assertEquals(1, run.getFailureCount());
+        assertEquals("testBroken", run.getFailures().get(0).getDescription().getMethodName());
+    }
+
+    public static class Retried {
+        static int runs;
+
+        @Test
+        public void testPasses() {
+        }
+
+        @Test
+        public void testFlaky() {
+            assertTrue(++runs > 1);
+        }
+
+        @Test
+        public void testBroken() {
+            assertTrue(false);
+        }
+    }
+
+    private static ResultObject frame(long sequence, int type, Description description) {
+        ResultObject result = new ResultObject();
+        result.setSequence(sequence);
+        result.setResultType(type);
+        result.setDescription(description);
+        return result;
+    }
+
+    private static int freePort() throws IOException {
+        ServerSocket socket = new ServerSocket(0);
+        int port = socket.getLocalPort();
+        socket.close();
+        return port;
+    }
+}
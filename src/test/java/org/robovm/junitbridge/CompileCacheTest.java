@@ -0,0 +1,64 @@
+package org.robovm.junitbridge;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.robovm.devicebridge.internal.cache.CompileCache;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class CompileCacheTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testHashFollowsContent() throws Exception {
+        CompileCache cache = new CompileCache(folder.newFolder("cache"), CompileCache.DEFAULT_MAX_ENTRIES);
+        File classes = folder.newFolder("classes");
+        File clazz = write(new File(classes, "A.class"), "first");
+        List<String> settings = Arrays.asList("org.example.Main", "ios", "x86");
+
+        String key = cache.hash(settings, Arrays.asList(classes));
+        assertEquals(key, cache.hash(settings, Arrays.asList(classes)));
+
+        /* a new date alone doesn't change the key */
+        clazz.setLastModified(clazz.lastModified() - 10000);
+        assertEquals(key, cache.hash(settings, Arrays.asList(classes)));
+
+        write(clazz, "second");
+        String changed = cache.hash(settings, Arrays.asList(classes));
+        assertFalse(key.equals(changed));
+
+        write(new File(classes, "B.class"), "");
+        assertFalse(changed.equals(cache.hash(settings, Arrays.asList(classes))));
+    }
+
+    @Test
+    public void testHashFollowsSettings() throws Exception {
+        CompileCache cache = new CompileCache(folder.newFolder("cache"), CompileCache.DEFAULT_MAX_ENTRIES);
+        File jar = write(folder.newFile("lib.jar"), "jar");
+
+        String key = cache.hash(Arrays.asList("org.example.Main", "ios", "x86"), Arrays.asList(jar));
+
+        assertFalse(key.equals(cache.hash(Arrays.asList("org.example.Main", "ios", "thumbv7"), Arrays.asList(jar))));
+        assertFalse(key.equals(cache.hash(Arrays.asList("org.example.Other", "ios", "x86"), Arrays.asList(jar))));
+    }
+
+    private static File write(File file, String content) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+}
@@ -0,0 +1,124 @@
+package org.robovm.junitbridge;
+
+import org.junit.Test;
+import org.junit.runner.Description;
+import org.junit.runner.JUnitCore;
+import org.junit.runner.Result;
+import org.junit.runner.RunWith;
+import org.junit.runner.notification.RunNotifier;
+import org.junit.runners.ParentRunner;
+import org.junit.runners.model.InitializationError;
+import org.robovm.devicebridge.internal.runner.ConcurrentComputer;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ConcurrentComputerTest {
+
+    static final AtomicInteger running = new AtomicInteger();
+    static final AtomicInteger mostRunning = new AtomicInteger();
+
+    public static class Sleepy {
+        private void sleep() throws InterruptedException {
+            int now = running.incrementAndGet();
+            while (true) {
+                int most = mostRunning.get();
+                if (now <= most || mostRunning.compareAndSet(most, now)) {
+                    break;
+                }
+            }
+            Thread.sleep(50);
+            running.decrementAndGet();
+        }
+
+        @Test
+        public void a() throws Exception {
+            sleep();
+        }
+
+        @Test
+        public void b() throws Exception {
+            sleep();
+        }
+
+        @Test
+        public void c() throws Exception {
+            sleep();
+        }
+
+        @Test
+        public void d() throws Exception {
+            sleep();
+        }
+
+        @Test
+        public void e() throws Exception {
+            sleep();
+        }
+
+        @Test
+        public void f() throws Exception {
+            sleep();
+        }
+    }
+
+    public static class Escaping extends ParentRunner<String> {
+        public Escaping(Class<?> testClass) throws InitializationError {
+            super(testClass);
+        }
+
+        @Override
+        protected List<String> getChildren() {
+            return Arrays.asList("a", "b");
+        }
+
+        @Override
+        protected Description describeChild(String child) {
+            return Description.createTestDescription(getTestClass().getJavaClass(), child);
+        }
+
+        @Override
+        protected void runChild(String child, RunNotifier notifier) {
+            throw new IllegalStateException("escaped " + child);
+        }
+    }
+
+    @RunWith(Escaping.class)
+    public static class Broken {
+    }
+
+    @Test
+    public void testMethodsRunAtMostThreadsAtOnce() {
+        mostRunning.set(0);
+        ConcurrentComputer computer = new ConcurrentComputer(3);
+        Result result = new JUnitCore().run(computer, Sleepy.class, Sleepy.class);
+        computer.shutdown();
+
+        assertEquals(12, result.getRunCount());
+        assertTrue(result.wasSuccessful());
+        assertEquals(3, mostRunning.get());
+    }
+
+    @Test
+    public void testSingleThreadRunsMethodsInTurn() {
+        mostRunning.set(0);
+        Result result = new JUnitCore().run(new ConcurrentComputer(1), Sleepy.class);
+
+        assertEquals(6, result.getRunCount());
+        assertEquals(1, mostRunning.get());
+    }
+
+    @Test
+    public void testErrorEscapingMethodFailsClass() {
+        ConcurrentComputer computer = new ConcurrentComputer(2);
+        Result result = new JUnitCore().run(computer, Broken.class);
+        computer.shutdown();
+
+        assertEquals(1, result.getFailureCount());
+        assertTrue(result.getFailures().get(0).getMessage().startsWith("escaped"));
+    }
+}
@@ -0,0 +1,131 @@
+package org.robovm.junitbridge;
+
+import org.junit.Test;
+import org.junit.runner.Description;
+import org.robovm.devicebridge.ResultObject;
+import org.robovm.devicebridge.RunnerCrashedException;
+import org.robovm.devicebridge.internal.server.DeviceSession;
+import org.robovm.devicebridge.internal.server.TestQueue;
+import org.robovm.devicebridge.internal.server.TestRun;
+import rx.observables.BlockingObservable;
+
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class DeviceSessionTest {
+
+    @Test
+    public void testRunnersShareTestQueue() throws Exception {
+        TestQueue tests = new TestQueue(Arrays.asList("a.A", "b.B#testB", "c.C"));
+        DeviceSession first = new DeviceSession("device-0", tests);
+        DeviceSession second = new DeviceSession("device-1", tests);
+        StringWriter firstControl = new StringWriter();
+        StringWriter secondControl = new StringWriter();
+
+        first.receive(request(1), firstControl);
+        second.receive(request(1), secondControl);
+        first.receive(request(2), firstControl);
+        second.receive(request(2), secondControl);
+
+        assertEquals("TEST 1 a.A\nTEST 2 c.C\n", firstControl.toString());
+        assertEquals("TEST 1 b.B#testB\nTEST 2\n", secondControl.toString());
+    }
+
+    @Test
+    public void testResentRequestGetsSameAnswer() throws Exception {
+        TestQueue tests = new TestQueue(Arrays.asList("a.A", "b.B"));
+        DeviceSession session = new DeviceSession("device-0", tests);
+        StringWriter control = new StringWriter();
+
+        session.receive(request(1), control);
+        session.receive(request(1), control);
+
+        assertEquals("TEST 1 a.A\nTEST 1 a.A\n", control.toString());
+        assertEquals("b.B", tests.poll().getTest());
+    }
+
+    @Test
+    public void testWarmRunnerWaitsForSubmittedRun() throws Exception {
+        TestQueue tests = new TestQueue();
+        DeviceSession session = new DeviceSession("device-0", tests);
+        StringWriter control = new StringWriter();
+
+        session.receive(request(1), control);
+        assertEquals("", control.toString());
+        assertTrue(session.isWaiting());
+
+        TestRun run = new TestRun(1);
+        tests.submit(run, Arrays.asList("a.A"));
+        assertTrue(session.answer(control));
+        assertEquals("TEST 1 a.A\n", control.toString());
+
+        ResultObject result = new ResultObject();
+        result.setResultType(ResultObject.TEST_FINISHED);
+        result.setDescription(Description.createTestDescription("a.A", "testA"));
+        result.setSequence(2);
+        session.receive(result, control);
+        session.receive(request(3), control);
+
+        List<ResultObject> results = BlockingObservable.from(run.getResults().toList()).single();
+        assertEquals(1, results.size());
+        assertEquals("testA", results.get(0).getDescription().getMethodName());
+
+        /* nothing more to run once closed */
+        tests.close();
+        assertTrue(session.answer(control));
+        assertEquals("TEST 1 a.A\nTEST 3\n", control.toString());
+    }
+
+    @Test
+    public void testResultsTaggedWithDeviceId() throws Exception {
+        DeviceSession session = new DeviceSession("device-3", null);
+        ResultObject result = new ResultObject();
+        result.setResultType(ResultObject.TEST_STARTED);
+        result.setDescription(Description.createTestDescription("a.A", "testA"));
+        result.setSequence(1);
+
+        assertEquals("device-3", session.receive(result, new StringWriter()).getDeviceId());
+        assertNull(session.receive(result, new StringWriter()));
+    }
+
+    @Test
+    public void testCrashFailsRunningTestAndLeavesTheRest() throws Exception {
+        TestQueue tests = new TestQueue(Arrays.asList("a.A", "b.B", "c.C"));
+        DeviceSession session = new DeviceSession("device-0", tests);
+        StringWriter control = new StringWriter();
+
+        session.receive(request(1), control);
+        ResultObject started = new ResultObject();
+        started.setResultType(ResultObject.TEST_STARTED);
+        started.setDescription(Description.createTestDescription("a.A", "testA"));
+        started.setSequence(2);
+        session.receive(started, control);
+
+        List<ResultObject> results = session.crash();
+        assertTrue(session.isFinished());
+        assertEquals(2, results.size());
+        assertEquals(ResultObject.TEST_FAILURE, results.get(0).getResultType());
+        assertEquals("testA", results.get(0).getFailure().getDescription().getMethodName());
+        assertTrue(results.get(0).getFailure().getException() instanceof RunnerCrashedException);
+        assertEquals(ResultObject.RUNNER_CRASHED, results.get(1).getResultType());
+        assertEquals("device-0", results.get(1).getDeviceId());
+
+        /* a relaunched runner picks up after the crashed test */
+        DeviceSession relaunched = new DeviceSession("device-0", tests);
+        StringWriter relaunchedControl = new StringWriter();
+        relaunched.receive(request(1), relaunchedControl);
+        assertEquals("TEST 1 b.B\n", relaunchedControl.toString());
+    }
+
+    private ResultObject request(long sequence) {
+        ResultObject request = new ResultObject();
+        request.setResultType(ResultObject.REQUEST_TEST);
+        request.setSequence(sequence);
+        return request;
+    }
+}
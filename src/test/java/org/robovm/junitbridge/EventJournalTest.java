@@ -0,0 +1,96 @@
+package org.robovm.junitbridge;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.Description;
+import org.junit.runner.notification.Failure;
+import org.robovm.devicebridge.ResultObject;
+import org.robovm.devicebridge.internal.journal.EventJournal;
+import rx.observables.BlockingObservable;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class EventJournalTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testReplaysWhatWasRecorded() throws Exception {
+        File file = new File(folder.getRoot(), "run.journal");
+        Description test = Description.createTestDescription("a.A", "testA");
+        EventJournal journal = new EventJournal(file);
+        journal.record(result(ResultObject.TEST_STARTED, "device-1", test, 1000));
+        ResultObject failure = result(ResultObject.TEST_FAILURE, "device-2", null, 2000);
+        failure.setFailure(new Failure(test, new IllegalStateException("broken")));
+        failure.setAttempt(2);
+        journal.record(failure);
+        journal.record(result(ResultObject.TEST_FINISHED, null, test, 3000));
+        journal.close();
+
+        /* trimmed to what was written */
+        assertTrue(file.length() < 64 * 1024);
+        List<ResultObject> replayed = BlockingObservable.from(EventJournal.replay(file, 0).toList()).single();
+        assertEquals(3, replayed.size());
+        assertEquals(ResultObject.TEST_STARTED, replayed.get(0).getResultType());
+        assertEquals("device-1", replayed.get(0).getDeviceId());
+        assertEquals(test, replayed.get(0).getDescription());
+        assertEquals(1000, replayed.get(0).getReceivedAt());
+        assertEquals("device-2", replayed.get(1).getDeviceId());
+        assertEquals("broken", replayed.get(1).getFailure().getMessage());
+        assertEquals(2, replayed.get(1).getAttempt());
+        assertNull(replayed.get(2).getDeviceId());
+        assertEquals(3000, replayed.get(2).getReceivedAt());
+    }
+
+    @Test
+    public void testReplaysAtTheOriginalPace() throws Exception {
+        File file = new File(folder.getRoot(), "run.journal");
+        EventJournal journal = new EventJournal(file);
+        journal.record(result(ResultObject.TEST_RUN_STARTED, "device-1", null, 0));
+        journal.record(result(ResultObject.TEST_RUN_FINISHED, "device-1", null, TimeUnit.SECONDS.toNanos(1)));
+        journal.close();
+
+        long start = System.nanoTime();
+        BlockingObservable.from(EventJournal.replay(file, 4).toList()).single();
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(250));
+    }
+
+    @Test
+    public void testReadableWithoutClose() throws Exception {
+        File file = new File(folder.getRoot(), "run.journal");
+        EventJournal journal = new EventJournal(file);
+        ResultObject large = result(ResultObject.TEST_OUTPUT, "device-1", null, 1);
+        StringBuilder output = new StringBuilder();
+        while (output.length() < 5 * 1024 * 1024) {
+            output.append("more output\n");
+        }
+        large.setOutput(output.toString());
+        journal.record(result(ResultObject.TEST_RUN_STARTED, "device-1", null, 0));
+        journal.record(large);
+        journal.record(result(ResultObject.TEST_RUN_FINISHED, "device-1", null, 2));
+        journal.force();
+
+        try {
+            List<ResultObject> replayed = BlockingObservable.from(EventJournal.replay(file, 0).toList()).single();
+            assertEquals(3, replayed.size());
+            assertEquals(output.toString(), replayed.get(1).getOutput());
+        } finally {
+            journal.close();
+        }
+    }
+
+    private static ResultObject result(int type, String deviceId, Description description, long receivedAt) {
+        ResultObject result = new ResultObject();
+        result.setResultType(type);
+        result.setDeviceId(deviceId);
+        result.setDescription(description);
+        result.setReceivedAt(receivedAt);
+        return result;
+    }
+}
@@ -0,0 +1,177 @@
+package org.robovm.junitbridge;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.Description;
+import org.junit.runner.notification.Failure;
+import org.robovm.devicebridge.JUnitXmlReporter;
+import org.robovm.devicebridge.ResultObject;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import java.io.File;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class JUnitXmlReporterTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testClassWrittenWhenRunFinishes() throws Exception {
+        File reports = folder.getRoot();
+        JUnitXmlReporter reporter = new JUnitXmlReporter(reports);
+
+        Description passing = Description.createTestDescription("a.A", "testPasses");
+        Description failing = Description.createTestDescription("a.A", "testFails");
+        Description broken = Description.createTestDescription("a.A", "testBreaks");
+        reporter.onNext(result(ResultObject.TEST_STARTED, passing, 1000000000L));
+        reporter.onNext(result(ResultObject.TEST_FINISHED, passing, 1250000000L));
+        reporter.onNext(result(ResultObject.TEST_STARTED, failing, 2000000000L));
+        reporter.onNext(failure(failing, new AssertionError("expected <1> & got <2>"), 2500000000L));
+        reporter.onNext(result(ResultObject.TEST_STARTED, broken, 3000000000L));
+        reporter.onNext(failure(broken, new IllegalStateException("broken"), 3000000000L));
+        reporter.onNext(result(ResultObject.TEST_IGNORED, Description.createTestDescription("a.A", "testLater"), 0));
+
+        File report = new File(reports, "TEST-a.A.xml");
+        assertFalse(report.exists());
+        reporter.onNext(result(ResultObject.TEST_RUN_FINISHED, null, 0));
+        assertTrue(report.exists());
+
+        Element suite = parse(report).getDocumentElement();
+        assertEquals("testsuite", suite.getTagName());
+        assertEquals("a.A", suite.getAttribute("name"));
+        assertEquals("4", suite.getAttribute("tests"));
+        assertEquals("1", suite.getAttribute("failures"));
+        assertEquals("1", suite.getAttribute("errors"));
+        assertEquals("1", suite.getAttribute("skipped"));
+        assertEquals("0.750", suite.getAttribute("time"));
+
+        NodeList cases = suite.getElementsByTagName("testcase");
+        assertEquals(4, cases.getLength());
+        assertEquals("0.250", ((Element) cases.item(0)).getAttribute("time"));
+        Element failure = (Element) ((Element) cases.item(1)).getElementsByTagName("failure").item(0);
+        assertEquals("expected <1> & got <2>", failure.getAttribute("message"));
+        assertEquals("java.lang.AssertionError", failure.getAttribute("type"));
+        assertEquals(1, ((Element) cases.item(2)).getElementsByTagName("error").getLength());
+        assertEquals(1, ((Element) cases.item(3)).getElementsByTagName("skipped").getLength());
+
+        Element summary = parse(new File(reports, JUnitXmlReporter.SUMMARY_FILE)).getDocumentElement();
+        assertEquals("4", summary.getAttribute("tests"));
+        assertEquals("1", summary.getAttribute("failures"));
+    }
+
+    @Test
+    public void testParallelRunsCloseOnlyTheirClasses() throws Exception {
+        File reports = folder.getRoot();
+        JUnitXmlReporter reporter = new JUnitXmlReporter(reports);
+        Description first = Description.createTestDescription("a.A", "testFirst");
+        Description second = Description.createTestDescription("b.B", "testSecond");
+        Description runA = Description.createSuiteDescription("a.A");
+        runA.addChild(first);
+        Description runB = Description.createSuiteDescription("b.B");
+        runB.addChild(second);
+
+        /* two lanes of one device */
+        reporter.onNext(result(ResultObject.TEST_RUN_STARTED, runA, 0));
+        reporter.onNext(result(ResultObject.TEST_RUN_STARTED, runB, 0));
+        reporter.onNext(result(ResultObject.TEST_STARTED, first, 1));
+        reporter.onNext(result(ResultObject.TEST_STARTED, second, 2));
+        reporter.onNext(result(ResultObject.TEST_FINISHED, first, 3));
+        reporter.onNext(result(ResultObject.TEST_RUN_FINISHED, runA, 0));
+        assertTrue(new File(reports, "TEST-a.A.xml").exists());
+        assertFalse(new File(reports, "TEST-b.B.xml").exists());
+
+        reporter.onNext(result(ResultObject.TEST_FINISHED, second, 4));
+        reporter.onNext(result(ResultObject.TEST_RUN_FINISHED, runB, 0));
+        Element suite = parse(new File(reports, "TEST-b.B.xml")).getDocumentElement();
+        assertEquals("1", suite.getAttribute("tests"));
+        assertFalse(new File(reports, "TEST-b.B-1.xml").exists());
+    }
+
+    @Test
+    public void testOpenClassesWrittenOnCompletion() throws Exception {
+        File reports = folder.getRoot();
+        JUnitXmlReporter reporter = new JUnitXmlReporter(reports);
+        for (int i = 0; i < 1000; i++) {
+            Description test = Description.createTestDescription("b.B", "test[" + i + "]");
+            reporter.onNext(result(ResultObject.TEST_STARTED, test, i));
+            reporter.onNext(result(ResultObject.TEST_FINISHED, test, i + 1));
+        }
+        reporter.onCompleted();
+
+        Element suite = parse(new File(reports, "TEST-b.B.xml")).getDocumentElement();
+        assertEquals("1000", suite.getAttribute("tests"));
+        assertEquals(1000, suite.getElementsByTagName("testcase").getLength());
+        /* nothing but the reports is left behind */
+        assertEquals(2, reports.list().length);
+    }
+
+    @Test
+    public void testRetriedTestsWrittenAsReruns() throws Exception {
+        File reports = folder.getRoot();
+        JUnitXmlReporter reporter = new JUnitXmlReporter(reports);
+
+        Description flaky = Description.createTestDescription("c.C", "testFlaky");
+        Description broken = Description.createTestDescription("c.C", "testBroken");
+        /* as the runner sends them: the class runs, then its failed tests again, in the one run */
+        reporter.onNext(result(ResultObject.TEST_RUN_STARTED, null, 0));
+        reporter.onNext(result(ResultObject.TEST_STARTED, flaky, 1));
+        reporter.onNext(attemptFailure(flaky, new AssertionError("first"), 2));
+        reporter.onNext(result(ResultObject.TEST_STARTED, broken, 3));
+        reporter.onNext(attemptFailure(broken, new AssertionError("once"), 4));
+        reporter.onNext(result(ResultObject.TEST_STARTED, flaky, 5));
+        reporter.onNext(result(ResultObject.TEST_FINISHED, flaky, 6));
+        reporter.onNext(result(ResultObject.TEST_STARTED, broken, 7));
+        reporter.onNext(failure(broken, new AssertionError("twice"), 8));
+        reporter.onNext(result(ResultObject.TEST_RUN_FINISHED, null, 0));
+
+        assertFalse(new File(reports, "TEST-c.C-1.xml").exists());
+        Element suite = parse(new File(reports, "TEST-c.C.xml")).getDocumentElement();
+        assertEquals("2", suite.getAttribute("tests"));
+        assertEquals("1", suite.getAttribute("failures"));
+        NodeList cases = suite.getElementsByTagName("testcase");
+        Element flakyCase = (Element) cases.item(0);
+        assertEquals(0, flakyCase.getElementsByTagName("failure").getLength());
+        assertEquals("first", ((Element) flakyCase.getElementsByTagName("flakyFailure").item(0))
+                .getAttribute("message"));
+        Element brokenCase = (Element) cases.item(1);
+        assertEquals("once", ((Element) brokenCase.getElementsByTagName("failure").item(0)).getAttribute("message"));
+        assertEquals("twice", ((Element) brokenCase.getElementsByTagName("rerunFailure").item(0))
+                .getAttribute("message"));
+
+        Element summary = parse(new File(reports, JUnitXmlReporter.SUMMARY_FILE)).getDocumentElement();
+        assertEquals("1", summary.getAttribute("flakes"));
+    }
+
+    private static ResultObject result(int type, Description description, long timestamp) {
+        ResultObject result = new ResultObject();
+        result.setResultType(type);
+        result.setDescription(description);
+        result.setTimestamp(timestamp);
+        result.setDeviceId("device-0");
+        return result;
+    }
+
+    private static ResultObject failure(Description description, Throwable exception, long timestamp) {
+        ResultObject result = result(ResultObject.TEST_FAILURE, null, timestamp);
+        result.setFailure(new Failure(description, exception));
+        return result;
+    }
+
+    private static ResultObject attemptFailure(Description description, Throwable exception, long timestamp) {
+        ResultObject result = failure(description, exception, timestamp);
+        result.setResultType(ResultObject.TEST_ATTEMPT_FAILED);
+        return result;
+    }
+
+    private static Document parse(File file) throws Exception {
+        return DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(file);
+    }
+}
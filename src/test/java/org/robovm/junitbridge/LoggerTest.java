@@ -0,0 +1,75 @@
+package org.robovm.junitbridge;
+
+import org.junit.After;
+import org.junit.Test;
+import org.robovm.devicebridge.internal.Logger;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class LoggerTest {
+
+    private final int level = Logger.getLevel();
+    private final List<String> messages = Collections.synchronizedList(new ArrayList<String>());
+
+    @After
+    public void restore() throws Exception {
+        Logger.flush(1000);
+        Logger.setLevel(level);
+        Logger.setAppender(new Logger.Appender() {
+            @Override
+            public void append(String message) {
+                System.out.println(message);
+            }
+        });
+    }
+
+    @Test
+    public void testOnlyEnabledLevelsAreAppended() throws Exception {
+        Logger.setAppender(new Logger.Appender() {
+            @Override
+            public void append(String message) {
+                messages.add(message);
+            }
+        });
+        Logger.setLevel(Logger.parseLevel("INFO"));
+
+        assertTrue(Logger.isEnabled(Logger.WARN));
+        assertFalse(Logger.isDebugEnabled());
+        Logger.debug("hidden %s", new Object() {
+            @Override
+            public String toString() {
+                throw new AssertionError("formatted a disabled message");
+            }
+        });
+        Logger.warn("shown");
+        Logger.info("%d of %d", 1, 2);
+        Logger.flush(1000);
+
+        assertEquals("[shown, 1 of 2]", messages.toString());
+    }
+
+    @Test
+    public void testFlushWaitsForLastMessage() throws Exception {
+        Logger.setAppender(new Logger.Appender() {
+            @Override
+            public void append(String message) {
+                messages.add(message);
+            }
+        });
+        Logger.setLevel(Logger.WARN);
+        for (int i = 0; i < 1000; i++) {
+            Logger.warn("message " + i);
+            Logger.flush(1000);
+            assertEquals(i + 1, messages.size());
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnknownLevel() {
+        Logger.parseLevel("verbose");
+    }
+}
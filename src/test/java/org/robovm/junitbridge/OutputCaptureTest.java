@@ -0,0 +1,95 @@
+package org.robovm.junitbridge;
+
+import org.junit.Test;
+import org.robovm.devicebridge.internal.listener.OutputCapture;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+
+import static org.junit.Assert.*;
+
+public class OutputCaptureTest {
+
+    @Test
+    public void testKeepsEverythingThatFits() throws Exception {
+        OutputCapture.Buffer buffer = new OutputCapture.Buffer(4, 4);
+        write(buffer, "abcdef");
+
+        assertEquals("abcdef", buffer.toString());
+        assertEquals(0, buffer.getDropped());
+    }
+
+    @Test
+    public void testKeepsHeadAndTail() throws Exception {
+        OutputCapture.Buffer buffer = new OutputCapture.Buffer(4, 4);
+        write(buffer, "abcdef");
+        write(buffer, "ghij");
+        write(buffer, "k");
+
+        assertEquals(3, buffer.getDropped());
+        assertEquals("abcd\n[... 3 bytes dropped ...]\nhijk", buffer.toString());
+    }
+
+    @Test
+    public void testKeepsCharactersCutWhereBytesWereDropped() throws Exception {
+        OutputCapture.Buffer buffer = new OutputCapture.Buffer(4, 4);
+        /* the head ends inside \u00E8 and the tail starts inside \u00E0 */
+        write(buffer, "a\u00E9\u00E8xy\u00E0\u00F9z");
+
+        assertEquals("a\u00E9\n[... 6 bytes dropped ...]\n\u00F9z", buffer.toString());
+        buffer = new OutputCapture.Buffer(4, 4);
+        /* nothing dropped, a character spanning head and tail stays whole */
+        write(buffer, "abc\u00E9de");
+        assertEquals("abc\u00E9de", buffer.toString());
+    }
+
+    @Test
+    public void testCapturesPerThread() throws Exception {
+        PrintStream out = System.out;
+        PrintStream err = System.err;
+        /* another test's listener may have installed it over the console already */
+        boolean installed = OutputCapture.uninstall();
+        PrintStream realOut = System.out;
+        PrintStream realErr = System.err;
+        ByteArrayOutputStream console = new ByteArrayOutputStream();
+        System.setOut(new PrintStream(console, true));
+        System.setErr(new PrintStream(console, true));
+        OutputCapture capture;
+        try {
+            OutputCapture.install();
+            OutputCapture.start();
+            System.out.print("captured");
+            Thread other = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    System.out.print("elsewhere");
+                }
+            });
+            other.start();
+            other.join();
+            System.err.print("error");
+            capture = OutputCapture.stop();
+        } finally {
+            OutputCapture.uninstall();
+            System.setOut(realOut);
+            System.setErr(realErr);
+            if (installed) {
+                OutputCapture.install();
+            } else {
+                System.setOut(out);
+                System.setErr(err);
+            }
+        }
+
+        assertEquals("captured", capture.getOut().toString());
+        assertEquals("error", capture.getErr().toString());
+        assertNull(OutputCapture.stop());
+        /* everything still went through */
+        assertEquals("capturedelsewhereerror", console.toString("UTF-8"));
+    }
+
+    private static void write(OutputCapture.Buffer buffer, String text) throws Exception {
+        byte[] bytes = text.getBytes("UTF-8");
+        buffer.write(bytes, 0, bytes.length);
+    }
+}
@@ -0,0 +1,659 @@
+package org.robovm.junitbridge;
+
+import biz.source_code.base64Coder.Base64Coder;
+import org.junit.Test;
+import org.junit.runner.Description;
+import org.junit.runner.Result;
+import org.junit.runner.notification.Failure;
+import org.junit.runner.notification.RunListener;
+import org.robovm.devicebridge.RemoteAssertionError;
+import org.robovm.devicebridge.RemoteThrowable;
+import org.robovm.devicebridge.ResultObject;
+import org.robovm.devicebridge.internal.adapters.StackTraceRegistry;
+import org.robovm.devicebridge.internal.adapters.ThrowableData;
+import org.robovm.devicebridge.internal.protocol.BinaryResultCodec;
+import org.robovm.devicebridge.internal.protocol.Handshake;
+import org.robovm.devicebridge.internal.protocol.JsonResultCodec;
+import org.robovm.devicebridge.internal.protocol.ResultCodec;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.ObjectOutputStream;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ResultCodecTest {
+
+    private static final int[] TYPES = { ResultObject.TEST_IGNORED, ResultObject.TEST_RUN_STARTED,
+            ResultObject.TEST_RUN_FINISHED, ResultObject.TEST_STARTED, ResultObject.TEST_FINISHED,
+            ResultObject.TEST_FAILURE, ResultObject.SESSION_END };
+
+    @Test
+    public void testAllResultTypesRoundTrip() throws Exception {
+        List<ResultObject> messages = new ArrayList<ResultObject>();
+        long sequence = 1;
+        for (int type : TYPES) {
+            ResultObject message = new ResultObject();
+            message.setResultType(type);
+            message.setSequence(sequence++);
+            switch (type) {
+            case ResultObject.TEST_RUN_FINISHED:
+                message.setResult(createResult());
+                break;
+            case ResultObject.TEST_FAILURE:
+                message.setFailure(new Failure(testDescription("testFailing"), new IllegalStateException("boom")));
+                break;
+            case ResultObject.SESSION_END:
+                break;
+            case ResultObject.TEST_RUN_STARTED:
+                message.setDescription(suiteDescription());
+                break;
+            default:
+                message.setDescription(testDescription("test" + type));
+            }
+            messages.add(message);
+        }
+
+        assertCodecsAgree(messages);
+    }
+
+    @Test
+    public void testAttemptRoundTrip() throws Exception {
+        List<ResultObject> messages = new ArrayList<ResultObject>();
+        ResultObject attemptFailed = new ResultObject();
+        attemptFailed.setResultType(ResultObject.TEST_ATTEMPT_FAILED);
+        attemptFailed.setSequence(1);
+        attemptFailed.setFailure(new Failure(testDescription("testFlaky"), new AssertionError("first")));
+        attemptFailed.setAttempt(1);
+        messages.add(attemptFailed);
+        ResultObject finished = new ResultObject();
+        finished.setResultType(ResultObject.TEST_FINISHED);
+        finished.setSequence(2);
+        finished.setDescription(testDescription("testFlaky"));
+        finished.setAttempt(2);
+        messages.add(finished);
+
+        assertCodecsAgree(messages);
+    }
+
+    @Test
+    public void testTimingRoundTrip() throws Exception {
+        for (ResultCodec[] codecs : codecPairs()) {
+            ResultObject timed = new ResultObject();
+            timed.setResultType(ResultObject.TEST_STARTED);
+            timed.setDescription(testDescription("testTimed"));
+            timed.setTimestamp(123456789012L);
+            ResultObject untimed = new ResultObject();
+            untimed.setResultType(ResultObject.TEST_FINISHED);
+            untimed.setDescription(testDescription("testTimed"));
+
+            List<ResultObject> messages = new ArrayList<ResultObject>();
+            messages.add(timed);
+            messages.add(untimed);
+            List<ResultObject> decoded = roundTrip(codecs[0], codecs[1], messages);
+
+            assertEquals(123456789012L, decoded.get(0).getTimestamp());
+            assertTrue(timed.getEncodeTime() > 0);
+            assertEquals(timed.getEncodeTime(), decoded.get(0).getEncodeTime());
+            assertEquals(0, decoded.get(1).getTimestamp());
+            assertEquals(0, decoded.get(1).getEncodeTime());
+        }
+    }
+
+    @Test
+    public void testOutputRoundTrip() throws Exception {
+        for (ResultCodec[] codecs : codecPairs()) {
+            ResultObject output = new ResultObject();
+            output.setResultType(ResultObject.TEST_ERROR_OUTPUT);
+            output.setDescription(testDescription("testOutput"));
+            output.setOutput("line 1\nl\u00EFne 2\n");
+            output.setTimestamp(42);
+
+            List<ResultObject> messages = new ArrayList<ResultObject>();
+            messages.add(output);
+            ResultObject decoded = roundTrip(codecs[0], codecs[1], messages).get(0);
+
+            assertEquals(ResultObject.TEST_ERROR_OUTPUT, decoded.getResultType());
+            assertEquals("line 1\nl\u00EFne 2\n", decoded.getOutput());
+            assertEquals(testDescription("testOutput"), decoded.getDescription());
+            assertEquals(42, decoded.getTimestamp());
+        }
+    }
+
+    @Test
+    public void testFailureWithoutExceptionRoundTrip() throws Exception {
+        ResultObject message = new ResultObject();
+        message.setResultType(ResultObject.TEST_FAILURE);
+        message.setFailure(new Failure(testDescription("testNull"), null));
+
+        List<ResultObject> messages = new ArrayList<ResultObject>();
+        messages.add(message);
+        assertCodecsAgree(messages);
+    }
+
+    @Test
+    public void testLegacyExceptionFormatDecodes() throws Exception {
+        String json = legacyFailure(new IllegalStateException("legacy")) + legacyFailure(new Smuggling());
+        JsonResultCodec codec = new JsonResultCodec();
+        InputStream in = new ByteArrayInputStream(json.getBytes("UTF-8"));
+
+        ResultObject legacy = codec.read(in);
+        assertEquals(ResultObject.TEST_FAILURE, legacy.getResultType());
+        assertEquals(7, legacy.getSequence());
+        assertEquals("testLegacy", legacy.getFailure().getDescription().getMethodName());
+        assertEquals("legacy", legacy.getFailure().getMessage());
+
+        /* only what an exception is made of is deserialized */
+        ResultObject smuggling = codec.read(in);
+        assertEquals(ResultObject.TEST_FAILURE, smuggling.getResultType());
+        assertEquals("Exception could not be deserialized", smuggling.getFailure().getMessage());
+        assertNull(codec.read(in));
+    }
+
+    @Test
+    public void testDescriptionsResolveToTreeInstances() throws Exception {
+        assertDescriptionsResolveToTreeInstances(new JsonResultCodec(), new JsonResultCodec());
+        assertDescriptionsResolveToTreeInstances(new BinaryResultCodec(), new BinaryResultCodec());
+    }
+
+    @Test
+    public void testDescriptionSentOnceIsSmall() throws Exception {
+        ResultCodec[] codecs = { new JsonResultCodec(), new BinaryResultCodec() };
+        for (ResultCodec codec : codecs) {
+            ResultObject runStarted = new ResultObject();
+            runStarted.setResultType(ResultObject.TEST_RUN_STARTED);
+            runStarted.setDescription(suiteDescription());
+            codec.encode(runStarted);
+
+            ResultObject suiteAgain = new ResultObject();
+            suiteAgain.setResultType(ResultObject.TEST_STARTED);
+            suiteAgain.setDescription(suiteDescription());
+            int length = codec.encode(suiteAgain).length;
+            assertTrue(codec.getClass().getSimpleName() + " " + length, length < 64);
+        }
+    }
+
+    @Test
+    public void testExceptionChainRoundTrip() throws Exception {
+        IllegalStateException root = new IllegalStateException("root");
+        RuntimeException wrapper = new RuntimeException("wrapper", root);
+        wrapper.addSuppressed(new IllegalArgumentException("suppressed"));
+
+        for (ResultCodec[] codecs : codecPairs()) {
+            Throwable decoded = roundTripException(codecs[0], codecs[1], wrapper);
+
+            assertEquals(RuntimeException.class, decoded.getClass());
+            assertEquals("wrapper", decoded.getMessage());
+            assertSameFrames(wrapper.getStackTrace(), decoded.getStackTrace());
+            assertEquals(IllegalStateException.class, decoded.getCause().getClass());
+            assertSameFrames(root.getStackTrace(), decoded.getCause().getStackTrace());
+            assertEquals(1, decoded.getSuppressed().length);
+            assertEquals("suppressed", decoded.getSuppressed()[0].getMessage());
+        }
+    }
+
+    @Test
+    public void testDeepStackTraceIsCapped() throws Exception {
+        Throwable deep = recurse(200);
+        for (ResultCodec[] codecs : codecPairs()) {
+            Throwable decoded = roundTripException(codecs[0], codecs[1], deep);
+            assertTrue(decoded.getStackTrace().length < deep.getStackTrace().length);
+            assertSameFrames(new StackTraceElement[] { deep.getStackTrace()[0] },
+                    new StackTraceElement[] { decoded.getStackTrace()[0] });
+        }
+    }
+
+    @Test
+    public void testCauseOfTruncatedTraceKeepsItsOwnFrames() throws Exception {
+        Throwable outer = recurseWithCause(100);
+        StackTraceElement[] expected = outer.getCause().getStackTrace();
+        for (ResultCodec[] codecs : codecPairs()) {
+            Throwable decoded = roundTripException(codecs[0], codecs[1], outer);
+            StackTraceElement[] actual = decoded.getCause().getStackTrace();
+            /* the frames it shares with the outer trace were cut from that one */
+            assertSameFrames(Arrays.copyOf(expected, 64), Arrays.copyOf(actual, 64));
+            assertEquals("...", actual[64].getClassName());
+        }
+    }
+
+    @Test
+    public void testRepeatedStackTraceSentOnce() throws Exception {
+        ResultCodec[] encoders = { new JsonResultCodec(), new BinaryResultCodec() };
+        for (ResultCodec encoder : encoders) {
+            int[] lengths = new int[2];
+            for (int i = 0; i < lengths.length; i++) {
+                ResultObject message = new ResultObject();
+                message.setResultType(ResultObject.TEST_FAILURE);
+                message.setFailure(new Failure(testDescription("testRepeated"), sameTrace("failure " + i)));
+                lengths[i] = encoder.encode(message).length;
+            }
+            assertTrue(encoder.getClass().getSimpleName() + " " + lengths[0] + " " + lengths[1],
+                    lengths[1] < lengths[0] / 2);
+        }
+    }
+
+    @Test
+    public void testUnknownExceptionClassGetsPlaceholder() throws Exception {
+        StackTraceElement[] frames = { new StackTraceElement("com.example.Device", "run", "Device.java", 42) };
+        Throwable error = new ThrowableData("com.example.DeviceOnlyException", "gone", false, 0, frames, 0, 0, null,
+                Collections.<ThrowableData> emptyList()).rebuild(new StackTraceRegistry());
+        Throwable assertion = new ThrowableData("com.example.DeviceOnlyAssertion", "expected", true, 0, frames, 0,
+                0, null, Collections.<ThrowableData> emptyList()).rebuild(new StackTraceRegistry());
+
+        assertTrue(error instanceof RemoteThrowable);
+        assertEquals("com.example.DeviceOnlyException: gone", error.toString());
+        assertSameFrames(frames, error.getStackTrace());
+        assertTrue(assertion instanceof AssertionError);
+        assertEquals("expected", assertion.getMessage());
+        assertEquals("com.example.DeviceOnlyAssertion", ((RemoteAssertionError) assertion).getClassName());
+    }
+
+    @Test
+    public void testBinaryStringTableShrinksRepeatedNames() throws Exception {
+        BinaryResultCodec codec = new BinaryResultCodec();
+        ResultObject message = new ResultObject();
+        message.setResultType(ResultObject.TEST_RUN_STARTED);
+        message.setDescription(suiteDescription());
+
+        int first = codec.encode(message).length;
+        int second = codec.encode(message).length;
+        assertTrue("first " + first + " second " + second, second < first / 2);
+    }
+
+    @Test
+    public void testResentBinaryFramesDecodeAgain() throws Exception {
+        BinaryResultCodec encoder = new BinaryResultCodec();
+        List<byte[]> frames = new ArrayList<byte[]>();
+        for (int i = 0; i < 3; i++) {
+            ResultObject message = new ResultObject();
+            message.setResultType(ResultObject.TEST_STARTED);
+            message.setSequence(i + 1);
+            message.setDescription(testDescription("test" + i));
+            frames.add(encoder.encode(message));
+        }
+
+        /* the runner resends frames 2 and 3 after a reconnect */
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        for (int i : new int[] { 0, 1, 2, 1, 2 }) {
+            stream.write(frames.get(i));
+        }
+
+        BinaryResultCodec decoder = new BinaryResultCodec();
+        InputStream in = new ByteArrayInputStream(stream.toByteArray());
+        for (int i : new int[] { 0, 1, 2, 1, 2 }) {
+            ResultObject decoded = decoder.read(in);
+            assertEquals(i + 1, decoded.getSequence());
+            assertEquals(testDescription("test" + i).getDisplayName(), decoded.getDescription().getDisplayName());
+        }
+        assertNull(decoder.read(in));
+    }
+
+    @Test
+    public void testResentFramesSkippedWithoutDecoding() throws Exception {
+        for (ResultCodec[] codecs : codecPairs()) {
+            List<byte[]> frames = new ArrayList<byte[]>();
+            for (int i = 0; i < 4; i++) {
+                ResultObject message = new ResultObject();
+                message.setResultType(ResultObject.TEST_STARTED);
+                message.setSequence(i + 1);
+                message.setDescription(testDescription("t\u00EBst" + i));
+                frames.add(codecs[0].encode(message));
+            }
+            ByteBuffer buffer = ByteBuffer.allocate(16 * 1024);
+            for (int i : new int[] { 0, 1, 2, 1, 2, 3 }) {
+                buffer.put(frames.get(i));
+            }
+            buffer.flip();
+
+            for (int i = 0; i < 3; i++) {
+                assertEquals("t\u00EBst" + i, codecs[1].read(buffer, i).getDescription().getMethodName());
+            }
+            /* the runner resends frames 2 and 3 after a reconnect */
+            for (int i = 1; i < 3; i++) {
+                ResultObject skipped = codecs[1].read(buffer, 3);
+                assertEquals(ResultObject.TEST_STARTED, skipped.getResultType());
+                assertEquals(i + 1, skipped.getSequence());
+                assertNull(skipped.getDescription());
+            }
+            assertEquals("t\u00EBst3", codecs[1].read(buffer, 3).getDescription().getMethodName());
+            assertNull(codecs[1].read(buffer, 4));
+        }
+    }
+
+    @Test
+    public void testHandshakeNegotiatesBinary() throws Exception {
+        ByteArrayOutputStream hello = new ByteArrayOutputStream();
+        Handshake.writeHello(hello, Handshake.FORMAT_JSON | Handshake.FORMAT_BINARY, "device-1");
+
+        Handshake accepted = Handshake.accept(ByteBuffer.wrap(hello.toByteArray()), Handshake.FORMAT_JSON
+                | Handshake.FORMAT_BINARY, false);
+
+        assertEquals(Handshake.FORMAT_BINARY, accepted.getFormat());
+        assertEquals("device-1", accepted.getDeviceId());
+        Handshake answer = Handshake.readReply(new BufferedReader(new StringReader(accepted.getReply())), "device-1");
+        assertEquals(Handshake.FORMAT_BINARY, answer.getFormat());
+        assertFalse(answer.isServingTests());
+        assertTrue(answer.isAcceptingOutput());
+    }
+
+    @Test
+    public void testHandshakeFallsBackToJson() throws Exception {
+        ByteArrayOutputStream hello = new ByteArrayOutputStream();
+        Handshake.writeHello(hello, Handshake.FORMAT_JSON | Handshake.FORMAT_BINARY, Handshake.DEFAULT_DEVICE_ID);
+
+        Handshake accepted = Handshake.accept(ByteBuffer.wrap(hello.toByteArray()), Handshake.FORMAT_JSON, true);
+
+        assertEquals(Handshake.FORMAT_JSON, accepted.getFormat());
+        Handshake answer = Handshake.readReply(new BufferedReader(new StringReader(accepted.getReply())),
+                Handshake.DEFAULT_DEVICE_ID);
+        assertEquals(Handshake.FORMAT_JSON, answer.getFormat());
+        assertTrue(answer.isServingTests());
+    }
+
+    @Test
+    public void testHandshakeNegotiatesCompression() throws Exception {
+        ByteArrayOutputStream hello = new ByteArrayOutputStream();
+        Handshake.writeHello(hello, Handshake.FORMAT_BINARY | Handshake.COMPRESS_DEFLATE, "device-1");
+        byte[] bytes = hello.toByteArray();
+
+        Handshake declined = Handshake.accept(ByteBuffer.wrap(bytes), Handshake.FORMAT_BINARY, true);
+        assertFalse(declined.isCompressed());
+        assertFalse(Handshake.readReply(new BufferedReader(new StringReader(declined.getReply())), "device-1")
+                .isCompressed());
+
+        Handshake accepted = Handshake.accept(ByteBuffer.wrap(bytes), Handshake.FORMAT_BINARY
+                | Handshake.COMPRESS_DEFLATE, true);
+        assertTrue(accepted.isCompressed());
+        Handshake answer = Handshake.readReply(new BufferedReader(new StringReader(accepted.getReply())), "device-1");
+        assertEquals(Handshake.FORMAT_BINARY, answer.getFormat());
+        assertTrue(answer.isServingTests());
+        assertTrue(answer.isCompressed());
+    }
+
+    @Test
+    public void testHandshakeAcceptsLegacyRunner() throws Exception {
+        ResultObject message = new ResultObject();
+        message.setResultType(ResultObject.TEST_STARTED);
+        message.setDescription(testDescription("testLegacy"));
+        byte[] json = new JsonResultCodec().encode(message);
+
+        ByteBuffer in = ByteBuffer.wrap(json);
+        Handshake accepted = Handshake.accept(in, Handshake.FORMAT_JSON | Handshake.FORMAT_BINARY, true);
+
+        assertEquals(Handshake.FORMAT_JSON, accepted.getFormat());
+        assertEquals(Handshake.DEFAULT_DEVICE_ID, accepted.getDeviceId());
+        assertFalse(accepted.isServingTests());
+        assertNull(accepted.getReply());
+        assertEquals("testLegacy", new JsonResultCodec().read(in).getDescription().getMethodName());
+    }
+
+    @Test
+    public void testHandshakeCarriesToken() throws Exception {
+        ByteArrayOutputStream hello = new ByteArrayOutputStream();
+        Handshake.writeHello(hello, Handshake.FORMAT_BINARY, "device-1", "s3cret");
+        byte[] bytes = hello.toByteArray();
+
+        assertNull(Handshake.accept(ByteBuffer.wrap(bytes, 0, bytes.length - 1), Handshake.FORMAT_BINARY, false));
+        ByteBuffer whole = ByteBuffer.wrap(bytes);
+        Handshake accepted = Handshake.accept(whole, Handshake.FORMAT_BINARY, false);
+        assertEquals("device-1", accepted.getDeviceId());
+        assertEquals("s3cret", accepted.getToken());
+        assertFalse(whole.hasRemaining());
+
+        hello.reset();
+        Handshake.writeHello(hello, Handshake.FORMAT_BINARY, "device-1");
+        assertNull(Handshake.accept(ByteBuffer.wrap(hello.toByteArray()), Handshake.FORMAT_BINARY, false).getToken());
+    }
+
+    @Test
+    public void testHandshakeWaitsForWholeHello() throws Exception {
+        ByteArrayOutputStream hello = new ByteArrayOutputStream();
+        Handshake.writeHello(hello, Handshake.FORMAT_BINARY, "device-12");
+        byte[] bytes = hello.toByteArray();
+
+        ByteBuffer partial = ByteBuffer.wrap(bytes, 0, bytes.length - 1);
+        assertNull(Handshake.accept(partial, Handshake.FORMAT_BINARY, false));
+        assertEquals(0, partial.position());
+
+        ByteBuffer whole = ByteBuffer.wrap(bytes);
+        assertEquals("device-12", Handshake.accept(whole, Handshake.FORMAT_BINARY, false).getDeviceId());
+        assertFalse(whole.hasRemaining());
+    }
+
+    @Test
+    public void testReadFramesArrivingInPieces() throws Exception {
+        for (ResultCodec[] codecs : codecPairs()) {
+            ByteArrayOutputStream wire = new ByteArrayOutputStream();
+            for (int i = 0; i < 3; i++) {
+                ResultObject message = new ResultObject();
+                message.setResultType(ResultObject.TEST_STARTED);
+                message.setDescription(testDescription("testPiece" + i));
+                message.setSequence(i + 1);
+                wire.write(codecs[0].encode(message));
+            }
+            byte[] bytes = wire.toByteArray();
+
+            /* deliver one byte at a time, as a slow connection might */
+            ByteBuffer buffer = ByteBuffer.allocate(bytes.length);
+            List<ResultObject> decoded = new ArrayList<ResultObject>();
+            for (byte b : bytes) {
+                buffer.put(b);
+                buffer.flip();
+                ResultObject message;
+                while ((message = codecs[1].read(buffer)) != null) {
+                    decoded.add(message);
+                }
+                buffer.compact();
+            }
+
+            assertEquals(3, decoded.size());
+            for (int i = 0; i < 3; i++) {
+                assertEquals("testPiece" + i, decoded.get(i).getDescription().getMethodName());
+                assertEquals(i + 1, decoded.get(i).getSequence());
+            }
+        }
+    }
+
+    private ResultCodec[][] codecPairs() {
+        return new ResultCodec[][] { { new JsonResultCodec(), new JsonResultCodec() },
+                { new BinaryResultCodec(), new BinaryResultCodec() } };
+    }
+
+    private Throwable roundTripException(ResultCodec encoder, ResultCodec decoder, Throwable throwable)
+            throws Exception {
+        ResultObject message = new ResultObject();
+        message.setResultType(ResultObject.TEST_FAILURE);
+        message.setFailure(new Failure(testDescription("testException"), throwable));
+
+        List<ResultObject> messages = new ArrayList<ResultObject>();
+        messages.add(message);
+        return roundTrip(encoder, decoder, messages).get(0).getFailure().getException();
+    }
+
+    private void assertSameFrames(StackTraceElement[] expected, StackTraceElement[] actual) {
+        assertEquals(expected.length, actual.length);
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i].getClassName(), actual[i].getClassName());
+            assertEquals(expected[i].getMethodName(), actual[i].getMethodName());
+            assertEquals(expected[i].getFileName(), actual[i].getFileName());
+            assertEquals(expected[i].getLineNumber(), actual[i].getLineNumber());
+        }
+    }
+
+    private Throwable recurse(int depth) {
+        return depth == 0 ? new RuntimeException("deep") : recurse(depth - 1);
+    }
+
+    private Throwable recurseWithCause(int depth) {
+        if (depth > 0) {
+            return recurseWithCause(depth - 1);
+        }
+        Throwable cause = new IllegalStateException("cause");
+        return new RuntimeException("outer", cause);
+    }
+
+    private Throwable sameTrace(String message) {
+        return new RuntimeException(message);
+    }
+
+    private void assertDescriptionsResolveToTreeInstances(ResultCodec encoder, ResultCodec decoder)
+            throws Exception {
+        List<ResultObject> messages = new ArrayList<ResultObject>();
+        ResultObject runStarted = new ResultObject();
+        runStarted.setResultType(ResultObject.TEST_RUN_STARTED);
+        runStarted.setDescription(suiteDescription());
+        messages.add(runStarted);
+
+        ResultObject testStarted = new ResultObject();
+        testStarted.setResultType(ResultObject.TEST_STARTED);
+        testStarted.setDescription(testDescription("test3"));
+        messages.add(testStarted);
+
+        ResultObject testFailure = new ResultObject();
+        testFailure.setResultType(ResultObject.TEST_FAILURE);
+        testFailure.setFailure(new Failure(testDescription("test3"), new AssertionError("failed")));
+        messages.add(testFailure);
+
+        List<ResultObject> decoded = roundTrip(encoder, decoder, messages);
+        Description tree = decoded.get(0).getDescription();
+        Description test3 = tree.getChildren().get(3);
+
+        assertTrue(test3 == decoded.get(1).getDescription());
+        assertTrue(test3 == decoded.get(2).getFailure().getDescription());
+        assertEquals(RunnerClass.class.getName(), test3.getClassName());
+        assertEquals("test3", test3.getMethodName());
+        assertEquals(RunnerClass.class.getName(), tree.getClassName());
+    }
+
+    private void assertCodecsAgree(List<ResultObject> messages) throws Exception {
+        List<ResultObject> fromJson = roundTrip(new JsonResultCodec(), new JsonResultCodec(), messages);
+        List<ResultObject> fromBinary = roundTrip(new BinaryResultCodec(), new BinaryResultCodec(), messages);
+
+        for (int i = 0; i < messages.size(); i++) {
+            assertSameResultObject(messages.get(i), fromJson.get(i));
+            assertSameResultObject(messages.get(i), fromBinary.get(i));
+            assertSameResultObject(fromJson.get(i), fromBinary.get(i));
+        }
+    }
+
+    private List<ResultObject> roundTrip(ResultCodec encoder, ResultCodec decoder, List<ResultObject> messages)
+            throws Exception {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        for (ResultObject message : messages) {
+            stream.write(encoder.encode(message));
+        }
+
+        InputStream in = new ByteArrayInputStream(stream.toByteArray());
+        List<ResultObject> decoded = new ArrayList<ResultObject>();
+        ResultObject message;
+        while ((message = decoder.read(in)) != null) {
+            decoded.add(message);
+        }
+        assertEquals(messages.size(), decoded.size());
+        return decoded;
+    }
+
+    private void assertSameResultObject(ResultObject expected, ResultObject actual) {
+        assertEquals(expected.getResultType(), actual.getResultType());
+        assertEquals(expected.getSequence(), actual.getSequence());
+        assertEquals(expected.getAttempt(), actual.getAttempt());
+        assertSameDescription(expected.getDescription(), actual.getDescription());
+        assertSameFailure(expected.getFailure(), actual.getFailure());
+
+        Result expectedResult = expected.getResult();
+        Result actualResult = actual.getResult();
+        if (expectedResult == null) {
+            assertNull(actualResult);
+        } else {
+            assertEquals(expectedResult.getRunCount(), actualResult.getRunCount());
+            assertEquals(expectedResult.getIgnoreCount(), actualResult.getIgnoreCount());
+            assertEquals(expectedResult.getRunTime(), actualResult.getRunTime());
+            assertEquals(expectedResult.getFailureCount(), actualResult.getFailureCount());
+            for (int i = 0; i < expectedResult.getFailureCount(); i++) {
+                assertSameFailure(expectedResult.getFailures().get(i), actualResult.getFailures().get(i));
+            }
+        }
+    }
+
+    private void assertSameFailure(Failure expected, Failure actual) {
+        if (expected == null) {
+            assertNull(actual);
+            return;
+        }
+        assertSameDescription(expected.getDescription(), actual.getDescription());
+        if (expected.getException() == null) {
+            assertNull(actual.getException());
+        } else {
+            assertEquals(expected.getException().getClass().getName(), actual.getException().getClass().getName());
+            assertEquals(expected.getMessage(), actual.getMessage());
+        }
+    }
+
+    private void assertSameDescription(Description expected, Description actual) {
+        if (expected == null) {
+            assertNull(actual);
+            return;
+        }
+        assertEquals(expected.getDisplayName(), actual.getDisplayName());
+        assertEquals(expected.getChildren().size(), actual.getChildren().size());
+        for (int i = 0; i < expected.getChildren().size(); i++) {
+            assertSameDescription(expected.getChildren().get(i), actual.getChildren().get(i));
+        }
+    }
+
+    /**
+     * A failure the way runners that predate the structured format send it
+     */
+    private String legacyFailure(Throwable exception) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(exception);
+        out.close();
+        return "{\"resultType\":" + ResultObject.TEST_FAILURE + ",\"failure\":{\"exception\":{\"throwableObject\":\""
+                + new String(Base64Coder.encode(bytes.toByteArray())) + "\"},\"description\":{\"display_name\":"
+                + "\"testLegacy(a.A)\",\"class_name\":\"a.A\",\"method_name\":\"testLegacy\"}},\"sequence\":7}\n";
+    }
+
+    /** Carries an object that isn't part of an exception */
+    static class Smuggling extends Exception {
+        private final Object payload = new Date();
+    }
+
+    private Description testDescription(String method) {
+        return Description.createTestDescription(RunnerClass.class, method);
+    }
+
+    private Description suiteDescription() {
+        Description suite = Description.createSuiteDescription(RunnerClass.class);
+        for (int i = 0; i < 20; i++) {
+            suite.addChild(testDescription("test" + i));
+        }
+        return suite;
+    }
+
+    private Result createResult() throws Exception {
+        Result result = new Result();
+        RunListener listener = result.createListener();
+        Description description = testDescription("testCounted");
+
+        listener.testRunStarted(suiteDescription());
+        listener.testStarted(description);
+        listener.testFailure(new Failure(description, new AssertionError("counted")));
+        listener.testFinished(description);
+        listener.testIgnored(testDescription("testIgnored"));
+        listener.testRunFinished(result);
+        return result;
+    }
+}
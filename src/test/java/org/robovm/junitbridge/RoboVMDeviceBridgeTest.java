@@ -43,7 +43,7 @@ public class RoboVMDeviceBridgeTest {
         }).start();
 
         BlockingObservable<ResultObject> blockingObservable = BlockingObservable.from(roboVMDeviceBridge
-                .startServer(8889));
+                .startServer());
 
         int successfulTests = 0;
         int failedTests = 0;
@@ -0,0 +1,87 @@
+package org.robovm.junitbridge;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.Description;
+import org.junit.runner.notification.Failure;
+import org.robovm.devicebridge.ResultObject;
+import org.robovm.devicebridge.internal.history.TestHistory;
+
+import java.io.File;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+
+public class TestHistoryTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testLongestFirst() throws Exception {
+        TestHistory history = new TestHistory(new File(folder.getRoot(), "history"));
+        history.beginRun();
+        run(history, "a.A", "testShort", 10, false);
+        run(history, "a.A", "testLong", 500, false);
+        run(history, "b.B", "testMedium", 200, false);
+
+        assertEquals(Arrays.asList("a.A#testLong", "b.B#testMedium", "a.A#testShort"),
+                history.order(Arrays.asList("a.A#testShort", "a.A#testLong", "b.B#testMedium")));
+        /* whole classes count with the sum of their methods */
+        assertEquals(Arrays.asList("a.A", "b.B"), history.order(Arrays.asList("b.B", "a.A")));
+    }
+
+    @Test
+    public void testRecentFailuresAndNewTestsFirst() throws Exception {
+        File file = new File(folder.getRoot(), "history");
+        TestHistory history = new TestHistory(file);
+        history.beginRun();
+        run(history, "a.A", "testLong", 500, false);
+        run(history, "a.A", "testFailing", 10, true);
+        history.save();
+
+        /* survives a restart */
+        history = new TestHistory(file);
+        assertEquals(Arrays.asList("a.A#testFailing", "a.A#testNew", "a.A#testLong"),
+                history.order(Arrays.asList("a.A#testLong", "a.A#testNew", "a.A#testFailing")));
+
+        for (int i = 0; i < TestHistory.RECENT_RUNS; i++) {
+            history.beginRun();
+            run(history, "a.A", "testFailing", 10, false);
+        }
+        assertEquals(Arrays.asList("a.A#testLong", "a.A#testFailing"),
+                history.order(Arrays.asList("a.A#testFailing", "a.A#testLong")));
+    }
+
+    @Test
+    public void testFailedTestsKeepTheirDuration() throws Exception {
+        TestHistory history = new TestHistory(new File(folder.getRoot(), "history"));
+        history.beginRun();
+        run(history, "a.A", "testShort", 10, true);
+        run(history, "a.A", "testLong", 500, true);
+
+        assertEquals(Arrays.asList("a.A#testLong", "a.A#testShort"),
+                history.order(Arrays.asList("a.A#testShort", "a.A#testLong")));
+    }
+
+    private void run(TestHistory history, String className, String methodName, long duration, boolean fail) {
+        Description description = Description.createTestDescription(className, methodName);
+        history.record(result(ResultObject.TEST_STARTED, description), 1000);
+        if (fail) {
+            ResultObject failure = new ResultObject();
+            failure.setResultType(ResultObject.TEST_FAILURE);
+            failure.setFailure(new Failure(description, new AssertionError("failed")));
+            history.record(failure, 1000 + duration);
+        } else {
+            history.record(result(ResultObject.TEST_FINISHED, description), 1000 + duration);
+        }
+    }
+
+    private ResultObject result(int type, Description description) {
+        ResultObject result = new ResultObject();
+        result.setResultType(type);
+        result.setDescription(description);
+        return result;
+    }
+}
@@ -0,0 +1,48 @@
+package org.robovm.junitbridge;
+
+import org.junit.Test;
+import org.junit.runner.Description;
+import org.junit.runner.manipulation.Filter;
+import org.robovm.devicebridge.internal.runner.TestPattern;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TestPatternTest {
+
+    @Test
+    public void testClassPattern() {
+        TestPattern pattern = new TestPattern("com.example.*Test");
+
+        assertTrue(pattern.matchesClass("com.example.LoginTest"));
+        assertTrue(pattern.matchesClass("com.example.ui.LoginTest"));
+        assertFalse(pattern.matchesClass("com.example.LoginTests"));
+        assertFalse(pattern.matchesClass("comXexample.LoginTest"));
+        assertNull(pattern.getMethodFilter());
+    }
+
+    @Test
+    public void testMethodPattern() {
+        TestPattern pattern = new TestPattern("*#testLogin*");
+        Filter filter = pattern.getMethodFilter();
+
+        Description login = Description.createTestDescription("a.A", "testLoginFails");
+        Description logout = Description.createTestDescription("a.A", "testLogout");
+        Description suite = Description.createSuiteDescription("a.A");
+        suite.addChild(logout);
+
+        assertTrue(pattern.matchesClass("a.A"));
+        assertTrue(filter.shouldRun(login));
+        assertFalse(filter.shouldRun(logout));
+        assertFalse(filter.shouldRun(suite));
+        suite.addChild(login);
+        assertTrue(filter.shouldRun(suite));
+    }
+
+    @Test
+    public void testPlainEntriesAreNotPatterns() {
+        assertFalse(TestPattern.isPattern("a.A#testA"));
+        assertTrue(TestPattern.isPattern("a.*"));
+    }
+}